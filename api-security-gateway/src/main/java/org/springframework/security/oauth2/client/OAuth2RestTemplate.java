@@ -6,9 +6,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.Arrays;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.aop.scope.ScopedObject;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.security.oauth2.client.http.AccessTokenRequiredException;
@@ -19,6 +25,7 @@ import org.springframework.security.oauth2.client.resource.UserRedirectRequiredE
 import org.springframework.security.oauth2.client.token.AccessTokenProvider;
 import org.springframework.security.oauth2.client.token.AccessTokenProviderChain;
 import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.implicit.ImplicitAccessTokenProvider;
@@ -32,14 +39,23 @@ import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import testcase.gateway.AdaptiveConcurrencyLimiter;
+import testcase.gateway.RefreshAheadPolicy;
+import testcase.gateway.SharedSessionFilter;
+import testcase.gateway.SharedTokenStore;
+import testcase.gateway.TokenLifecycleTracer;
+import testcase.gateway.TokenMetrics;
+
 /**
  * Modified OAuth2RestTemplate version overwriting spring-oauth2 2.0.10 one only for the test case.
- * It adds logs (lines marked with comment "// ADDED JUST FOR THE TEST CASE")
+ * It traces the token lifecycle (see {@link #setTokenLifecycleTracer(TokenLifecycleTracer)}) and coalesces concurrent
+ * refreshes of the same expired access token (see {@link #setCoalesceTokenRefresh(boolean)}) and can renew tokens
+ * ahead of their expiry (see {@link #setRefreshAheadPolicy(RefreshAheadPolicy)}). Tokens can be shared with
+ * other gateway instances, which then refresh them once between them (see
+ * {@link #setSharedTokenStore(SharedTokenStore)}). Token acquisition, refresh collisions and retries can be recorded
+ * (see {@link #setTokenMetrics(TokenMetrics)}).
  */
 public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperations {
-	
-	// ADDED JUST FOR THE TEST CASE
-	protected final Log logger = LogFactory.getLog(getClass());
 
 	private final OAuth2ProtectedResourceDetails resource;
 
@@ -53,6 +69,26 @@ public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperat
 
 	private OAuth2RequestAuthenticator authenticator = new DefaultOAuth2RequestAuthenticator();
 
+	private boolean coalesceTokenRefresh = true;
+
+	private final ConcurrentMap<String, CompletableFuture<OAuth2AccessToken>> refreshesInFlight = new ConcurrentHashMap<String, CompletableFuture<OAuth2AccessToken>>();
+
+	private RefreshAheadPolicy refreshAheadPolicy;
+
+	private Executor refreshAheadExecutor;
+
+	private TokenMetrics tokenMetrics;
+
+	private TokenLifecycleTracer tokenLifecycleTracer;
+
+	private SharedTokenStore sharedTokenStore;
+
+	private long sharedTokenLeaseTime = 10000;
+
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+	private final String instanceId = UUID.randomUUID().toString();
+
 	public OAuth2RestTemplate(OAuth2ProtectedResourceDetails resource) {
 		this(resource, new DefaultOAuth2ClientContext());
 	}
@@ -89,6 +125,79 @@ public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperat
 		this.retryBadAccessTokens = retryBadAccessTokens;
 	}
 
+	/**
+	 * Flag to determine whether concurrent requests that find the same expired access token should share a single
+	 * refresh. When set, only the first caller posts to the token endpoint and every other caller waits for (and
+	 * returns) the token it obtained, so N parallel requests at an expiry boundary produce one grant instead of N.
+	 * 
+	 * @param coalesceTokenRefresh the flag to set (default true)
+	 */
+	public void setCoalesceTokenRefresh(boolean coalesceTokenRefresh) {
+		this.coalesceTokenRefresh = coalesceTokenRefresh;
+	}
+
+	/**
+	 * Policy renewing access tokens before they expire. The first request finding its token due hands the renewal to
+	 * the executor and, like every other request of the session, goes on with the token, still valid. The renewed
+	 * token is stored in the session context (not the request scoped proxy) as soon as the grant returns. If the
+	 * renewal fails, or the executor is saturated, the token is used until it expires and then refreshed on the
+	 * request path. Requests only wait for a renewal in flight once their token has expired.
+	 * 
+	 * @param refreshAheadPolicy the policy to use (default none: tokens are refreshed on expiry)
+	 * @param refreshAheadExecutor runs the renewals, bounded
+	 */
+	public void setRefreshAheadPolicy(RefreshAheadPolicy refreshAheadPolicy, Executor refreshAheadExecutor) {
+		if (refreshAheadPolicy != null && refreshAheadExecutor == null) {
+			throw new IllegalArgumentException("An executor is required to refresh tokens ahead of expiry");
+		}
+		this.refreshAheadPolicy = refreshAheadPolicy;
+		this.refreshAheadExecutor = refreshAheadExecutor;
+	}
+
+	/**
+	 * @param tokenMetrics records token acquisitions, refresh collisions and bad token retries (default none)
+	 */
+	public void setTokenMetrics(TokenMetrics tokenMetrics) {
+		this.tokenMetrics = tokenMetrics;
+	}
+
+	/**
+	 * @param tokenLifecycleTracer traces expired tokens, refreshes and bad token retries (default none)
+	 */
+	public void setTokenLifecycleTracer(TokenLifecycleTracer tokenLifecycleTracer) {
+		this.tokenLifecycleTracer = tokenLifecycleTracer;
+	}
+
+	/**
+	 * Store sharing the tokens of the sessions with the other gateway instances (see {@link SharedSessionFilter}).
+	 * The store is read on every request of a shared session to pick up tokens renewed by another instance, and the
+	 * refresh of an expired token is done under a lease on the session, so that a single instance refreshes while the
+	 * others wait for its result.
+	 * 
+	 * @param sharedTokenStore the store to use (default none: tokens are local to the session)
+	 */
+	public void setSharedTokenStore(SharedTokenStore sharedTokenStore) {
+		this.sharedTokenStore = sharedTokenStore;
+	}
+
+	/**
+	 * @param sharedTokenLeaseTime millis after which a refresh lease not released (instance gone) can be taken by
+	 * another instance (default 10000)
+	 */
+	public void setSharedTokenLeaseTime(long sharedTokenLeaseTime) {
+		this.sharedTokenLeaseTime = sharedTokenLeaseTime;
+	}
+
+	/**
+	 * Limiter bounding the concurrent calls to the token endpoint (grants and refreshes, including the ones made ahead
+	 * of expiry). Calls over the limit fail at once instead of queueing up behind a slow authorization server.
+	 * 
+	 * @param concurrencyLimiter the limiter to use (default none)
+	 */
+	public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
 	@Override
 	public void setErrorHandler(ResponseErrorHandler errorHandler) {
 		if (!(errorHandler instanceof OAuth2ErrorHandler)) {
@@ -141,7 +250,17 @@ public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperat
 			rethrow = new OAuth2AccessDeniedException("Invalid token for client=" + getClientId());
 		}
 		if (accessToken != null && retryBadAccessTokens) {
-			context.setAccessToken(null);
+			if (tokenMetrics != null) {
+				tokenMetrics.badTokenRetry();
+			}
+			if (tokenLifecycleTracer != null) {
+				tokenLifecycleTracer.retried(accessToken);
+			}
+			discardSharedToken(accessToken);
+			// A renewal ahead of expiry may have replaced the token meanwhile, the retry uses it
+			if (context.getAccessToken() == accessToken) {
+				context.setAccessToken(null);
+			}
 			try {
 				return super.doExecute(url, method, requestCallback, responseExtractor);
 			}
@@ -171,17 +290,37 @@ public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperat
 
 		OAuth2AccessToken accessToken = context.getAccessToken();
 
+		// Another instance may have renewed the token of the session (which revokes the one held here)
+		OAuth2AccessToken shared = getSharedToken();
+		if (shared != null && !shared.isExpired()
+				&& (accessToken == null || !shared.getValue().equals(accessToken.getValue()))) {
+			if (tokenMetrics != null) {
+				tokenMetrics.sharedTokenUsed();
+			}
+			context.setAccessToken(shared);
+			accessToken = shared;
+		}
+
+		if (accessToken != null && refreshAheadPolicy != null && refreshAheadPolicy.isDue(accessToken)) {
+			refreshAhead(accessToken);
+		}
+
 		if (accessToken == null || accessToken.isExpired()) {
 
-			// ADDED JUST FOR THE TEST CASE 
-			if (accessToken != null){
-				logger.debug("############################################################################################################################################################");
-				logger.debug("#### RETRIEVED EXPIRED ACCESS TOKEN FROM OAuth2ClientContext: " + accessToken.getValue() + " REFRESH TOKEN: " + accessToken.getRefreshToken().getValue());
-				logger.debug("############################################################################################################################################################");
-			}		
+			if (accessToken != null && tokenLifecycleTracer != null) {
+				tokenLifecycleTracer.expired(accessToken);
+			}
 			
 			try {
-				accessToken = acquireAccessToken(context);
+				if (accessToken != null && coalesceTokenRefresh) {
+					accessToken = acquireAccessTokenOnce(context, accessToken);
+				}
+				else if (accessToken != null) {
+					accessToken = acquireSharedAccessToken(context, accessToken);
+				}
+				else {
+					accessToken = acquireAccessToken(context);
+				}
 			}
 			catch (UserRedirectRequiredException e) {
 				context.setAccessToken(null); // No point hanging onto it now
@@ -228,48 +367,383 @@ public class OAuth2RestTemplate extends RestTemplate implements OAuth2RestOperat
 			accessTokenRequest.setExistingToken(existingToken);
 		}
 
+		OAuth2AccessToken accessToken = grant(accessTokenRequest, existingToken);
+		oauth2Context.setAccessToken(accessToken);
+		publishSharedToken(sharedTokenStore != null ? SharedSessionFilter.currentKey() : null, accessToken);
+		return accessToken;
+	}
+
+	/**
+	 * Call the token endpoint for a first token or the renewal of the existing one, recording and tracing it.
+	 */
+	private OAuth2AccessToken grant(AccessTokenRequest accessTokenRequest, OAuth2AccessToken existingToken) {
 		OAuth2AccessToken accessToken = null;
-		accessToken = accessTokenProvider.obtainAccessToken(resource, accessTokenRequest);
+		long start = tokenMetrics != null ? tokenMetrics.start() : 0;
+		long traceStart = 0;
+		if (tokenLifecycleTracer != null && existingToken != null) {
+			traceStart = tokenLifecycleTracer.start();
+			tokenLifecycleTracer.refreshStarted(existingToken);
+		}
+		try {
+			accessToken = obtainAccessToken(accessTokenRequest);
+		}
+		catch (UserRedirectRequiredException e) {
+			// Not a failure: the user is sent to the authorization server to obtain a first token
+			throw e;
+		}
+		catch (RuntimeException e) {
+			if (tokenMetrics != null) {
+				tokenMetrics.tokenFailed(e);
+			}
+			if (tokenLifecycleTracer != null && existingToken != null) {
+				tokenLifecycleTracer.refreshFailed(existingToken, e, traceStart);
+			}
+			throw e;
+		}
+		if (tokenMetrics != null) {
+			tokenMetrics.tokenObtained(start, existingToken != null);
+		}
 		if (accessToken == null || accessToken.getValue() == null) {
 			throw new IllegalStateException(
 					"Access token provider returned a null access token, which is illegal according to the contract.");
 		}
-		oauth2Context.setAccessToken(accessToken);
-		
-		// ADDED JUST FOR THE TEST CASE
-		logger.debug("#################################################################################################################################################################################");
-		logger.debug("#### TOKEN REFRESHED!!! UPDATED CONTEXT WITH NEW TOKEN, WRITTEN IN OAuth2ClientContext: " + oauth2Context.getAccessToken().getValue() + " REFRESH TOKEN: " + oauth2Context.getAccessToken().getRefreshToken().getValue());
-		logger.debug("#################################################################################################################################################################################");			
-		
+		if (tokenLifecycleTracer != null && existingToken != null) {
+			tokenLifecycleTracer.refreshFinished(existingToken, accessToken, traceStart);
+		}
+		if (refreshAheadPolicy != null) {
+			if (existingToken != null) {
+				refreshAheadPolicy.forget(existingToken);
+			}
+			refreshAheadPolicy.track(accessToken);
+		}
 		return accessToken;
 	}
 
+	/**
+	 * Renew an expired access token at most once per expired token. The first caller registers the refresh and calls
+	 * {@link #acquireAccessToken(OAuth2ClientContext)}, which stores the new token in the context; concurrent callers
+	 * presenting the same expired token wait for that refresh and return its result (or rethrow its failure), as do
+	 * the callers whose token expired while it was being renewed ahead of expiry.
+	 * 
+	 * @param oauth2Context the context holding the expired token
+	 * @param expiredToken the expired token read from the context
+	 * @return a fresh access token
+	 */
+	protected OAuth2AccessToken acquireAccessTokenOnce(OAuth2ClientContext oauth2Context, OAuth2AccessToken expiredToken)
+			throws UserRedirectRequiredException {
+
+		String key = refreshKey(expiredToken);
+		CompletableFuture<OAuth2AccessToken> refresh = new CompletableFuture<OAuth2AccessToken>();
+		CompletableFuture<OAuth2AccessToken> inFlight;
+		while ((inFlight = refreshesInFlight.putIfAbsent(key, refresh)) != null) {
+			if (tokenMetrics != null) {
+				tokenMetrics.refreshCollision();
+			}
+			OAuth2AccessToken accessToken = awaitRefresh(inFlight);
+			if (accessToken != expiredToken) {
+				return accessToken;
+			}
+			// A renewal ahead of expiry left the token to another instance, which did not renew it in time
+		}
+		try {
+			OAuth2AccessToken accessToken = oauth2Context.getAccessToken();
+			// A previous refresh may have finished between reading the expired token and registering this one
+			if (accessToken == null || accessToken == expiredToken || accessToken.isExpired()) {
+				accessToken = acquireSharedAccessToken(oauth2Context, expiredToken);
+			}
+			else if (tokenMetrics != null) {
+				tokenMetrics.refreshCollision();
+			}
+			refresh.complete(accessToken);
+			return accessToken;
+		}
+		catch (RuntimeException e) {
+			refresh.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			refreshesInFlight.remove(key, refresh);
+		}
+	}
+
+	/**
+	 * Renew an expired access token at most once across the gateway instances sharing the session: take the token
+	 * another instance refreshed, or refresh it under the session lease, or wait for the lease holder's token (the
+	 * lease expires if its holder is gone). The wait backs off, gives up as soon as the lease holder reports its
+	 * refresh failed and is bounded by the lease time. Without a shared session this is {@link #acquireAccessToken}.
+	 * 
+	 * @param oauth2Context the context holding the expired token
+	 * @param expiredToken the expired token read from the context
+	 * @return a fresh access token
+	 */
+	protected OAuth2AccessToken acquireSharedAccessToken(OAuth2ClientContext oauth2Context,
+			OAuth2AccessToken expiredToken) throws UserRedirectRequiredException {
+
+		String key = sharedTokenStore != null ? SharedSessionFilter.currentKey() : null;
+		if (key == null) {
+			return acquireAccessToken(oauth2Context);
+		}
+		long waitStart = System.currentTimeMillis();
+		long deadline = waitStart + sharedTokenLeaseTime;
+		long backoff = 10;
+		while (true) {
+			OAuth2AccessToken shared = sharedTokenStore.getAccessToken(key);
+			if (isRenewal(shared, expiredToken)) {
+				return useSharedToken(oauth2Context, shared);
+			}
+			if (sharedTokenStore.acquireLease(key, instanceId, sharedTokenLeaseTime)) {
+				return acquireUnderLease(oauth2Context, expiredToken, key);
+			}
+			if (sharedTokenStore.getLeaseFailure(key) >= waitStart) {
+				throw new OAuth2AccessDeniedException("Token refresh failed on another instance for client="
+						+ getClientId());
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new OAuth2AccessDeniedException("Timed out waiting for token refresh for client="
+						+ getClientId());
+			}
+			try {
+				Thread.sleep(Math.min(backoff, remaining));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OAuth2AccessDeniedException("Interrupted while waiting for token refresh for client="
+						+ getClientId());
+			}
+			backoff = Math.min(backoff * 2, 500);
+		}
+	}
+
+	private OAuth2AccessToken acquireUnderLease(OAuth2ClientContext oauth2Context, OAuth2AccessToken expiredToken,
+			String key) {
+		boolean failed = true;
+		try {
+			// The previous lease holder may have stored its token between the read and the lease
+			OAuth2AccessToken shared = sharedTokenStore.getAccessToken(key);
+			OAuth2AccessToken accessToken = isRenewal(shared, expiredToken) ? useSharedToken(oauth2Context, shared)
+					: acquireAccessToken(oauth2Context);
+			failed = false;
+			return accessToken;
+		}
+		finally {
+			if (failed) {
+				sharedTokenStore.failLease(key, instanceId);
+			}
+			else {
+				sharedTokenStore.releaseLease(key, instanceId);
+			}
+		}
+	}
+
+	private boolean isRenewal(OAuth2AccessToken shared, OAuth2AccessToken expiredToken) {
+		return shared != null && !shared.isExpired() && !shared.getValue().equals(expiredToken.getValue());
+	}
+
+	private OAuth2AccessToken useSharedToken(OAuth2ClientContext oauth2Context, OAuth2AccessToken shared) {
+		if (tokenMetrics != null) {
+			tokenMetrics.sharedTokenUsed();
+		}
+		oauth2Context.setAccessToken(shared);
+		return shared;
+	}
+
+	private OAuth2AccessToken getSharedToken() {
+		String key = sharedTokenStore != null ? SharedSessionFilter.currentKey() : null;
+		return key != null ? sharedTokenStore.getAccessToken(key) : null;
+	}
+
+	private void publishSharedToken(String key, OAuth2AccessToken accessToken) {
+		if (key != null) {
+			sharedTokenStore.storeAccessToken(key, accessToken);
+		}
+	}
+
+	/**
+	 * Drop the shared token of the session if it is the one just rejected, so that the retry does not pick it up.
+	 */
+	private void discardSharedToken(OAuth2AccessToken rejected) {
+		String key = sharedTokenStore != null ? SharedSessionFilter.currentKey() : null;
+		if (key != null) {
+			OAuth2AccessToken shared = sharedTokenStore.getAccessToken(key);
+			if (shared != null && shared.getValue().equals(rejected.getValue())) {
+				sharedTokenStore.removeAccessToken(key);
+			}
+		}
+	}
+
+	/**
+	 * Renew a token due for renewal but still valid on the refresh ahead executor, once for the concurrent requests of
+	 * the session (registered as the refresh of the token, which requests finding it expired wait for). The caller
+	 * does not wait: it goes on with the token. If the renewal cannot be run, the token is refreshed when it expires.
+	 */
+	private void refreshAhead(final OAuth2AccessToken accessToken) {
+		final String key = refreshKey(accessToken);
+		final CompletableFuture<OAuth2AccessToken> renewal = new CompletableFuture<OAuth2AccessToken>();
+		if (refreshesInFlight.putIfAbsent(key, renewal) != null) {
+			return;
+		}
+		// The session context itself: the context proxy only resolves it on a request thread
+		final OAuth2ClientContext sessionContext = context instanceof ScopedObject
+				? (OAuth2ClientContext) ((ScopedObject) context).getTargetObject() : context;
+		final String sharedKey = sharedTokenStore != null ? SharedSessionFilter.currentKey() : null;
+		try {
+			refreshAheadExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = tokenMetrics != null ? tokenMetrics.start() : 0;
+					OAuth2AccessToken renewed;
+					try {
+						renewed = renewAhead(sessionContext, accessToken, sharedKey);
+					}
+					catch (RuntimeException e) {
+						// Already recorded as a failed refresh; the token is refreshed again when it expires
+						refreshAheadPolicy.forget(accessToken);
+						refreshesInFlight.remove(key, renewal);
+						renewal.completeExceptionally(e);
+						return;
+					}
+					if (renewed == accessToken) {
+						refreshAheadPolicy.forget(accessToken);
+					}
+					else if (tokenMetrics != null) {
+						tokenMetrics.refreshedAhead(start);
+					}
+					// Removed first, so that a request whose token is left to another instance refreshes it itself
+					refreshesInFlight.remove(key, renewal);
+					renewal.complete(renewed);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			refreshAheadPolicy.forget(accessToken);
+			refreshesInFlight.remove(key, renewal);
+			renewal.complete(accessToken);
+		}
+	}
+
+	/**
+	 * Renew a token ahead of its expiry off the request thread, under the lease of the shared session if any, and
+	 * swap the new token into the session context unless the context moved on to another token meanwhile.
+	 *
+	 * @return the renewed token, or the given one when another instance holds the lease of the session (it stores its
+	 * renewal for the next request to pick up)
+	 */
+	private OAuth2AccessToken renewAhead(OAuth2ClientContext sessionContext, OAuth2AccessToken accessToken,
+			String sharedKey) {
+		if (sharedKey != null && !sharedTokenStore.acquireLease(sharedKey, instanceId, sharedTokenLeaseTime)) {
+			return accessToken;
+		}
+		boolean failed = true;
+		try {
+			OAuth2AccessToken renewed = sharedKey != null ? sharedTokenStore.getAccessToken(sharedKey) : null;
+			if (isRenewal(renewed, accessToken)) {
+				if (tokenMetrics != null) {
+					tokenMetrics.sharedTokenUsed();
+				}
+			}
+			else {
+				DefaultAccessTokenRequest accessTokenRequest = new DefaultAccessTokenRequest();
+				accessTokenRequest.setExistingToken(accessToken);
+				renewed = grant(accessTokenRequest, accessToken);
+				publishSharedToken(sharedKey, renewed);
+			}
+			if (sessionContext.getAccessToken() == accessToken) {
+				sessionContext.setAccessToken(renewed);
+			}
+			failed = false;
+			return renewed;
+		}
+		finally {
+			if (sharedKey != null && failed) {
+				sharedTokenStore.failLease(sharedKey, instanceId);
+			}
+			else if (sharedKey != null) {
+				sharedTokenStore.releaseLease(sharedKey, instanceId);
+			}
+		}
+	}
+
+	/**
+	 * Call the token endpoint, within the concurrency limit if any.
+	 */
+	private OAuth2AccessToken obtainAccessToken(AccessTokenRequest accessTokenRequest) {
+		if (concurrencyLimiter == null) {
+			return requestAccessToken(accessTokenRequest);
+		}
+		long permit = concurrencyLimiter.acquire();
+		try {
+			OAuth2AccessToken accessToken = requestAccessToken(accessTokenRequest);
+			concurrencyLimiter.release(permit, null);
+			return accessToken;
+		}
+		catch (RuntimeException e) {
+			concurrencyLimiter.release(permit, e);
+			throw e;
+		}
+	}
+
+	private OAuth2AccessToken requestAccessToken(AccessTokenRequest accessTokenRequest) {
+		OAuth2AccessToken existingToken = accessTokenRequest.getExistingToken();
+		if (existingToken != null && !existingToken.isExpired() && existingToken.getRefreshToken() != null) {
+			// Renewal ahead of expiry: the provider chain would hand back the existing token while it is valid
+			return accessTokenProvider.refreshAccessToken(resource, existingToken.getRefreshToken(),
+					accessTokenRequest);
+		}
+		return accessTokenProvider.obtainAccessToken(resource, accessTokenRequest);
+	}
+
+	private String refreshKey(OAuth2AccessToken expiredToken) {
+		if (expiredToken.getRefreshToken() != null) {
+			return expiredToken.getRefreshToken().getValue();
+		}
+		return expiredToken.getValue();
+	}
+
+	private OAuth2AccessToken awaitRefresh(CompletableFuture<OAuth2AccessToken> refresh) {
+		try {
+			return refresh.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OAuth2AccessDeniedException("Interrupted while waiting for token refresh for client=" + getClientId());
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Token refresh failed for client=" + getClientId(), cause);
+		}
+	}
+
 	protected URI appendQueryParameter(URI uri, OAuth2AccessToken accessToken) {
 
 		try {
 
-			// TODO: there is some duplication with UriUtils here. Probably unavoidable as long as this
-			// method signature uses URI not String.
-			String query = uri.getRawQuery(); // Don't decode anything here
+			// Reassemble the URI from its raw (still encoded) parts, so that nothing is decoded and re-encoded
+			// (SECOAUTH-90) and it is parsed only once
 			String queryFragment = resource.getTokenName() + "=" + URLEncoder.encode(accessToken.getValue(), "UTF-8");
-			if (query == null) {
-				query = queryFragment;
+			StringBuilder sb = new StringBuilder(uri.toString().length() + queryFragment.length() + 2);
+			if (uri.getScheme() != null) {
+				sb.append(uri.getScheme()).append(':');
 			}
-			else {
-				query = query + "&" + queryFragment;
-			}
-
-			// first form the URI without query and fragment parts, so that it doesn't re-encode some query string chars
-			// (SECOAUTH-90)
-			URI update = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(), null,
-					null);
-			// now add the encoded query string and the then fragment
-			StringBuffer sb = new StringBuffer(update.toString());
-			sb.append("?");
-			sb.append(query);
-			if (uri.getFragment() != null) {
-				sb.append("#");
-				sb.append(uri.getFragment());
+			if (uri.getRawAuthority() != null) {
+				sb.append("//").append(uri.getRawAuthority());
+			}
+			if (uri.getRawPath() != null) {
+				sb.append(uri.getRawPath());
+			}
+			sb.append('?');
+			if (uri.getRawQuery() != null) {
+				sb.append(uri.getRawQuery()).append('&');
+			}
+			sb.append(queryFragment);
+			if (uri.getRawFragment() != null) {
+				sb.append('#').append(uri.getRawFragment());
 			}
 
 			return new URI(sb.toString());
@@ -0,0 +1,191 @@
+package testcase.gateway;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Bounds the number of concurrent calls to the authorization server with a limit that adapts to its latency, so a
+ * slow server gets fewer calls instead of a growing queue of them (and of gateway threads waiting on them).
+ * <ul>
+ * <li>Gradient: every successful call compares its latency with the long term average. While it is within
+ * <code>tolerance</code> times the average the limit grows by a small headroom; beyond it the limit shrinks in
+ * proportion (at most by half per sample). Changes are smoothed, and only calls made while at least half the limit
+ * is in use count, so an idle period does not inflate the limit.</li>
+ * <li>AIMD backoff: a timeout, connection failure or 5xx multiplies the limit by <code>backoffRatio</code>.</li>
+ * </ul>
+ * A call over the limit fails at once with a {@link ConcurrencyLimitExceededException}, and the current request is
+ * flagged with {@link #REJECTED_ATTRIBUTE} so that the gateway answers 503 whatever the exception is wrapped into.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	/** Name of the request attribute set when a call of the current request was rejected */
+	public static final String REJECTED_ATTRIBUTE = AdaptiveConcurrencyLimiter.class.getName() + ".REJECTED";
+
+	/** Number of samples the long term latency average is taken over */
+	private static final int LONG_WINDOW = 600;
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final String name;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private volatile double limit;
+
+	private double longRtt;
+
+	private double tolerance = 1.5;
+
+	private double smoothing = 0.2;
+
+	private double backoffRatio = 0.9;
+
+	/**
+	 * @param name name of the calls in log and error messages, e.g. <code>check_token</code>
+	 * @param initialLimit limit until latencies have been observed
+	 * @param minLimit the limit never goes below
+	 * @param maxLimit the limit never goes above
+	 */
+	public AdaptiveConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("Expected 1 <= minLimit <= initialLimit <= maxLimit");
+		}
+		this.name = name;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * @param tolerance latency increase over the long term average tolerated before the limit shrinks (default 1.5)
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param smoothing weight of each new sample in the limit, between 0 and 1 (default 0.2)
+	 */
+	public void setSmoothing(double smoothing) {
+		this.smoothing = smoothing;
+	}
+
+	/**
+	 * @param backoffRatio factor applied to the limit when a call times out or fails on the server (default 0.9)
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * Take a slot for a call, to be given back with {@link #release(long, Throwable)} once it completed.
+	 *
+	 * @return the start time of the call
+	 * @throws ConcurrencyLimitExceededException if the limit is reached
+	 */
+	public long acquire() {
+		int limit = (int) this.limit;
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= limit) {
+				rejected.increment();
+				RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+				if (attributes != null) {
+					attributes.setAttribute(REJECTED_ATTRIBUTE, name, RequestAttributes.SCOPE_REQUEST);
+				}
+				throw new ConcurrencyLimitExceededException("Too many concurrent " + name + " calls (limit " + limit
+						+ ")");
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Give back the slot of a call and adjust the limit to its outcome.
+	 *
+	 * @param start the value returned by {@link #acquire()}
+	 * @param error what the call failed with, null if it succeeded
+	 */
+	public void release(long start, Throwable error) {
+		int current = inFlight.getAndDecrement();
+		if (error == null) {
+			sample(System.nanoTime() - start, current);
+		}
+		else if (isOverload(error)) {
+			backoff();
+		}
+	}
+
+	/**
+	 * @return the current limit
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return the number of calls in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return the number of calls rejected since startup
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	private synchronized void sample(long rtt, int inFlight) {
+		longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOW;
+		if (inFlight < limit / 2) {
+			// Not using the limit: the latency says nothing about whether it is right
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / rtt));
+		double headroom = Math.sqrt(limit);
+		double newLimit = limit * gradient + headroom;
+		update(limit * (1 - smoothing) + newLimit * smoothing);
+	}
+
+	private synchronized void backoff() {
+		update(limit * backoffRatio);
+	}
+
+	private void update(double newLimit) {
+		newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		if ((int) newLimit != (int) limit && logger.isDebugEnabled()) {
+			logger.debug("Concurrency limit of " + name + " calls: " + (int) newLimit);
+		}
+		limit = newLimit;
+	}
+
+	/**
+	 * @return whether the failure means the server is struggling: timeout, connection failure or 5xx, possibly
+	 * wrapped (the token providers wrap them in OAuth2 exceptions)
+	 */
+	private static boolean isOverload(Throwable error) {
+		for (Throwable e = error; e != null; e = e.getCause()) {
+			if (e instanceof ResourceAccessException || e instanceof HttpServerErrorException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
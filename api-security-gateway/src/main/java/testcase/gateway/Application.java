@@ -1,17 +1,49 @@
 package testcase.gateway;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.security.oauth2.client.EnableOAuth2Sso;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoRestTemplateCustomizer;
 import org.springframework.cloud.netflix.zuul.EnableZuulProxy;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
 import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestTemplate;
 import org.springframework.stereotype.Component;
 
-@SpringBootApplication
+import com.codahale.metrics.MetricRegistry;
+
+// DataSource only for the jdbc shared token store, see JdbcSharedTokenStoreConfiguration
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
 @EnableZuulProxy
 public class Application {
 	
@@ -25,13 +57,279 @@ public class Application {
 
 		@Value(value = "${checkTokenUrl}")
 		private String checkTokenEndpointURL;
+
+		@Value(value = "${tokenKeyUrl}")
+		private String tokenKeyEndpointURL;
+
+		@Value(value = "${gateway.introspection.jwt.enabled:false}")
+		private boolean jwtEnabled;
+
+		@Value(value = "${gateway.token.coalesceRefresh:true}")
+		private boolean coalesceTokenRefresh;
+
+		@Value(value = "${gateway.introspection.intern.enabled:true}")
+		private boolean internAuthentication;
+
+		@Value(value = "${gateway.introspection.intern.maxEntries:10000}")
+		private int internMaxEntries;
+
+		@Value(value = "${gateway.token.shared.cookieName:GATEWAY_SESSION}")
+		private String sharedSessionCookieName;
+
+		@Value(value = "${gateway.token.shared.secureCookie:true}")
+		private boolean sharedSessionSecureCookie;
 		
 		@Bean
-		public ResourceServerTokenServices userInfoTokenServices() {
-			CustomRemoteTokenServices services = new CustomRemoteTokenServices();
+		public ResourceServerTokenServices userInfoTokenServices(PooledClientHttpRequestFactory checkTokenRequestFactory,
+				TokenMetrics tokenMetrics, Optional<TokenLifecycleTracer> tokenLifecycleTracer,
+				final Optional<IntrospectionCache> introspectionCache,
+				final Optional<BatchingIntrospector> batchingIntrospector,
+				final Optional<PooledAsyncClientHttpRequestFactory> checkTokenAsyncRequestFactory,
+				@Qualifier("checkTokenConcurrencyLimiter") Optional<AdaptiveConcurrencyLimiter> concurrencyLimiter) {
+			if (jwtEnabled) {
+				// Signed JWT access tokens are validated locally, check_token is never called
+				JwtTokenServices services = new JwtTokenServices(new RestTemplate(checkTokenRequestFactory),
+						tokenKeyEndpointURL);
+				services.setAccessTokenConverter(accessTokenConverter());
+				return services;
+			}
+			CustomRemoteTokenServices services = new CustomRemoteTokenServices(checkTokenRequestFactory);
 			services.setCheckTokenEndpointUrl(checkTokenEndpointURL);
+			services.setAccessTokenConverter(accessTokenConverter());
+			services.setIntrospectionCache(introspectionCache.orElse(null));
+			services.setBatchingIntrospector(batchingIntrospector.orElse(null));
+			services.setTokenMetrics(tokenMetrics);
+			services.setTokenLifecycleTracer(tokenLifecycleTracer.orElse(null));
+			if (checkTokenAsyncRequestFactory.isPresent()) {
+				services.setAsyncRequestFactory(checkTokenAsyncRequestFactory.get());
+			}
+			services.setConcurrencyLimiter(concurrencyLimiter.orElse(null));
 			return services;
 		}
+
+		private AccessTokenConverter accessTokenConverter() {
+			if (internAuthentication) {
+				// Clients, scopes, authorities and users repeat across tokens: build them once and share them
+				return new InterningAccessTokenConverter(internMaxEntries);
+			}
+			return new DefaultAccessTokenConverter();
+		}
+
+		@Bean
+		public TokenMetrics tokenMetrics(CounterService counterService, MetricRegistry metricRegistry) {
+			return new TokenMetrics(counterService, metricRegistry);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.token.trace", name = "enabled")
+		public TokenLifecycleTracer tokenLifecycleTracer(
+				@Value("${gateway.token.trace.sampleRate:0.01}") double sampleRate) {
+			return new TokenLifecycleTracer(sampleRate);
+		}
+
+		@Bean
+		public PooledClientHttpRequestFactory checkTokenRequestFactory(
+				@Value("${gateway.introspection.http.maxTotal:200}") int maxTotal,
+				@Value("${gateway.introspection.http.maxPerRoute:100}") int maxPerRoute,
+				@Value("${gateway.introspection.http.connectTimeout:1000}") int connectTimeout,
+				@Value("${gateway.introspection.http.readTimeout:5000}") int readTimeout,
+				@Value("${gateway.introspection.http.maxIdleTime:30000}") long maxIdleTime) {
+			return new PooledClientHttpRequestFactory(maxTotal, maxPerRoute, connectTimeout, readTimeout, maxIdleTime);
+		}
+
+		@Bean
+		public PublicMetrics checkTokenConnectionPoolMetrics(PooledClientHttpRequestFactory checkTokenRequestFactory) {
+			return new ConnectionPoolPublicMetrics("httpclient.checktoken", checkTokenRequestFactory);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.introspection.cache", name = "enabled")
+		public IntrospectionCache introspectionCache(
+				@Value("${gateway.introspection.cache.maximumSize:10000}") int maximumSize,
+				@Value("${gateway.introspection.cache.timeToLive:60000}") long timeToLive,
+				@Value("${gateway.introspection.cache.negativeTimeToLive:2000}") long negativeTimeToLive,
+				@Value("${gateway.introspection.cache.staleTimeToLive:0}") long staleTimeToLive) {
+			IntrospectionCache cache = new IntrospectionCache(maximumSize);
+			cache.setTimeToLive(timeToLive);
+			cache.setNegativeTimeToLive(negativeTimeToLive);
+			if (staleTimeToLive > 0) {
+				CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("introspection-revalidate-");
+				threadFactory.setDaemon(true);
+				Executor executor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(1000), threadFactory);
+				cache.setStaleWhileRevalidate(staleTimeToLive, executor);
+			}
+			return cache;
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.introspection.cache", name = "enabled")
+		public PublicMetrics introspectionCacheMetrics(IntrospectionCache introspectionCache) {
+			return new IntrospectionCachePublicMetrics("gateway.introspection.cache", introspectionCache);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.introspection.revocation", name = "enabled")
+		public RevocationSubscriber revocationSubscriber(IntrospectionCache introspectionCache,
+				TokenMetrics tokenMetrics, @Value("${revocationsUrl}") String revocationsUrl,
+				@Value("${gateway.introspection.revocation.pollTimeout:25000}") long pollTimeout,
+				@Value("${gateway.introspection.revocation.maxDisconnectedTime:30000}") long maxDisconnectedTime,
+				@Value("${security.oauth2.client.clientId}") String clientId,
+				@Value("${security.oauth2.client.clientSecret}") String clientSecret) {
+			SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+			requestFactory.setConnectTimeout(1000);
+			// The server holds a poll for up to pollTimeout when there is nothing new
+			requestFactory.setReadTimeout((int) pollTimeout + 5000);
+			RestTemplate restTemplate = new RestTemplate(requestFactory);
+			// The feed is for registered clients only (http basic, as on the token endpoint)
+			final String authorization = "Basic " + Base64.getEncoder().encodeToString(
+					(clientId + ":" + clientSecret).getBytes(StandardCharsets.UTF_8));
+			restTemplate.setInterceptors(Collections.<ClientHttpRequestInterceptor> singletonList(
+					new ClientHttpRequestInterceptor() {
+						@Override
+						public ClientHttpResponse intercept(HttpRequest request, byte[] body,
+								ClientHttpRequestExecution execution) throws IOException {
+							request.getHeaders().set(HttpHeaders.AUTHORIZATION, authorization);
+							return execution.execute(request, body);
+						}
+					}));
+			RevocationSubscriber subscriber = new RevocationSubscriber(restTemplate, revocationsUrl,
+					introspectionCache);
+			subscriber.setTokenMetrics(tokenMetrics);
+			subscriber.setPollTimeout(pollTimeout);
+			subscriber.setMaxDisconnectedTime(maxDisconnectedTime);
+			return subscriber;
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.introspection.batch", name = "enabled")
+		public BatchingIntrospector batchingIntrospector(PooledClientHttpRequestFactory checkTokenRequestFactory,
+				@Value("${checkTokenBatchUrl}") String checkTokenBatchUrl,
+				@Value("${gateway.introspection.batch.maxSize:50}") int maxBatchSize,
+				@Value("${gateway.introspection.batch.maxWait:5}") long maxWait,
+				@Value("${gateway.introspection.batch.maxConcurrent:4}") int maxConcurrentBatches) {
+			return new BatchingIntrospector(new RestTemplate(checkTokenRequestFactory), checkTokenBatchUrl,
+					maxBatchSize, maxWait, maxConcurrentBatches);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.concurrencyLimit", name = "enabled")
+		public AdaptiveConcurrencyLimiter checkTokenConcurrencyLimiter(
+				@Value("${gateway.concurrencyLimit.checkToken.initialLimit:20}") int initialLimit,
+				@Value("${gateway.concurrencyLimit.checkToken.minLimit:4}") int minLimit,
+				@Value("${gateway.concurrencyLimit.checkToken.maxLimit:200}") int maxLimit) {
+			return new AdaptiveConcurrencyLimiter("check_token", initialLimit, minLimit, maxLimit);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.concurrencyLimit", name = "enabled")
+		public AdaptiveConcurrencyLimiter tokenConcurrencyLimiter(
+				@Value("${gateway.concurrencyLimit.token.initialLimit:10}") int initialLimit,
+				@Value("${gateway.concurrencyLimit.token.minLimit:2}") int minLimit,
+				@Value("${gateway.concurrencyLimit.token.maxLimit:100}") int maxLimit) {
+			return new AdaptiveConcurrencyLimiter("token", initialLimit, minLimit, maxLimit);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.concurrencyLimit", name = "enabled")
+		public PublicMetrics checkTokenConcurrencyLimiterMetrics(
+				@Qualifier("checkTokenConcurrencyLimiter") AdaptiveConcurrencyLimiter checkTokenConcurrencyLimiter) {
+			return new ConcurrencyLimiterPublicMetrics("gateway.limit.checktoken", checkTokenConcurrencyLimiter);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.concurrencyLimit", name = "enabled")
+		public PublicMetrics tokenConcurrencyLimiterMetrics(
+				@Qualifier("tokenConcurrencyLimiter") AdaptiveConcurrencyLimiter tokenConcurrencyLimiter) {
+			return new ConcurrencyLimiterPublicMetrics("gateway.limit.token", tokenConcurrencyLimiter);
+		}
+
+		/**
+		 * Answer 503 to the requests whose call to the authorization server was shed by a concurrency limiter
+		 */
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.concurrencyLimit", name = "enabled")
+		public LoadSheddingErrorFilter loadSheddingErrorFilter() {
+			return new LoadSheddingErrorFilter();
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.collapsing", name = "enabled")
+		public RequestCollapser requestCollapser(CounterService counterService,
+				@Value("${gateway.collapsing.routes:}") String[] routeIds,
+				@Value("${gateway.collapsing.headers:accept,accept-language}") String[] headers,
+				@Value("${gateway.collapsing.maxBodySize:1048576}") int maxBodySize,
+				@Value("${gateway.collapsing.maxWait:10000}") long maxWait) {
+			return new RequestCollapser(Arrays.asList(routeIds), Arrays.asList(headers), maxBodySize, maxWait,
+					counterService);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.collapsing", name = "enabled")
+		public CollapsingRouteFilter collapsingRouteFilter(RequestCollapser requestCollapser) {
+			return new CollapsingRouteFilter(requestCollapser);
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.collapsing", name = "enabled")
+		public CollapsingResponseFilter collapsingResponseFilter(RequestCollapser requestCollapser) {
+			return new CollapsingResponseFilter(requestCollapser);
+		}
+
+		/**
+		 * Configure the OAuth2RestTemplate used by the SSO filter and the Zuul token relay
+		 */
+		@Bean
+		public UserInfoRestTemplateCustomizer oauth2RestTemplateCustomizer(final TokenMetrics tokenMetrics,
+				final Optional<TokenLifecycleTracer> tokenLifecycleTracer,
+				final Optional<RefreshAheadPolicy> refreshAheadPolicy,
+				@Qualifier("refreshAheadExecutor") final Optional<Executor> refreshAheadExecutor,
+				final Optional<SharedTokenStore> sharedTokenStore,
+				@Qualifier("tokenConcurrencyLimiter") final Optional<AdaptiveConcurrencyLimiter> concurrencyLimiter,
+				@Value("${gateway.token.shared.leaseTime:10000}") final long sharedTokenLeaseTime) {
+			return new UserInfoRestTemplateCustomizer() {
+				@Override
+				public void customize(OAuth2RestTemplate template) {
+					template.setCoalesceTokenRefresh(coalesceTokenRefresh);
+					template.setRefreshAheadPolicy(refreshAheadPolicy.orElse(null), refreshAheadExecutor.orElse(null));
+					template.setTokenMetrics(tokenMetrics);
+					template.setTokenLifecycleTracer(tokenLifecycleTracer.orElse(null));
+					template.setSharedTokenStore(sharedTokenStore.orElse(null));
+					template.setSharedTokenLeaseTime(sharedTokenLeaseTime);
+					template.setConcurrencyLimiter(concurrencyLimiter.orElse(null));
+				}
+			};
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.token.shared", name = "store", havingValue = "memory")
+		public SharedTokenStore inMemorySharedTokenStore() {
+			return new InMemorySharedTokenStore();
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.token.refreshAhead", name = "enabled")
+		public RefreshAheadPolicy refreshAheadPolicy(
+				@Value("${gateway.token.refreshAhead.ratio:0.8}") double refreshRatio,
+				@Value("${gateway.token.refreshAhead.jitter:0.1}") double jitterRatio,
+				@Value("${gateway.token.refreshAhead.maxTracked:10000}") int maxTracked) {
+			RefreshAheadPolicy policy = new RefreshAheadPolicy();
+			policy.setRefreshRatio(refreshRatio);
+			policy.setJitterRatio(jitterRatio);
+			policy.setMaxTracked(maxTracked);
+			return policy;
+		}
+
+		@Bean
+		@ConditionalOnProperty(prefix = "gateway.token.refreshAhead", name = "enabled")
+		public ThreadPoolExecutor refreshAheadExecutor(
+				@Value("${gateway.token.refreshAhead.threads:2}") int threads,
+				@Value("${gateway.token.refreshAhead.queueSize:1000}") int queueSize) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("refresh-ahead-");
+			threadFactory.setDaemon(true);
+			return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), threadFactory);
+		}
 		
 		/**
 		 * Define the security that applies to the proxy
@@ -44,6 +342,17 @@ public class Application {
 		        .anyRequest().authenticated()
 		        // CSRF disabled for testcase simplicity
 	            .and().csrf().disable();
+			if (getApplicationContext().getBeanNamesForType(SharedTokenStore.class).length > 0) {
+				// Sessions shared with the other gateway instances, restored before the login kicks in
+				SharedSessionFilter filter = new SharedSessionFilter(
+						getApplicationContext().getBean(SharedTokenStore.class),
+						getApplicationContext().getBean(OAuth2RestTemplate.class),
+						getApplicationContext().getBean(ResourceServerTokenServices.class));
+				filter.setCookieName(sharedSessionCookieName);
+				filter.setSecureCookie(sharedSessionSecureCookie);
+				http.addFilterAfter(filter, SecurityContextPersistenceFilter.class);
+				http.logout().addLogoutHandler(filter);
+			}
 		
 		}
 	}	
@@ -0,0 +1,196 @@
+package testcase.gateway;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.error.OAuth2AuthenticationEntryPoint;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Authenticates requests carrying an <code>Authorization: Bearer</code> token without holding the container thread
+ * while the token is introspected: the request is put in asynchronous mode, the thread goes back to the pool, and the
+ * request is dispatched again through the filter chain when the introspection completes, this time with its result.
+ * Cached tokens (and token services that cannot introspect asynchronously) are handled inline.
+ * <p>
+ * Invalid tokens get a 401 from the OAuth2 entry point. If the authorization server cannot be reached, or does not
+ * answer within the timeout, the request fails with a 503 rather than being treated as unauthenticated. The token is
+ * exposed in the {@link #TOKEN_ATTRIBUTE} request attribute for {@link BearerTokenRelayFilter}.
+ * <p>
+ * Meant for a stateless filter chain: the authentication is only valid for the request.
+ */
+public class AsyncBearerTokenFilter extends OncePerRequestFilter {
+
+	/** Name of the request attribute holding the token of an authenticated bearer request */
+	public static final String TOKEN_ATTRIBUTE = AsyncBearerTokenFilter.class.getName() + ".TOKEN";
+
+	private static final String RESULT_ATTRIBUTE = AsyncBearerTokenFilter.class.getName() + ".RESULT";
+
+	private final ResourceServerTokenServices tokenServices;
+
+	private AuthenticationEntryPoint authenticationEntryPoint = new OAuth2AuthenticationEntryPoint();
+
+	private long timeout = 10000;
+
+	public AsyncBearerTokenFilter(ResourceServerTokenServices tokenServices) {
+		this.tokenServices = tokenServices;
+	}
+
+	/**
+	 * @param authenticationEntryPoint answers requests with an invalid token (default an
+	 * {@link OAuth2AuthenticationEntryPoint})
+	 */
+	public void setAuthenticationEntryPoint(AuthenticationEntryPoint authenticationEntryPoint) {
+		this.authenticationEntryPoint = authenticationEntryPoint;
+	}
+
+	/**
+	 * @param timeout maximum time in millis a request waits for the introspection of its token (default 10000)
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	protected boolean shouldNotFilterAsyncDispatch() {
+		return false;
+	}
+
+	@Override
+	protected void doFilterInternal(final HttpServletRequest request, HttpServletResponse response,
+			FilterChain filterChain) throws ServletException, IOException {
+		Object outcome = request.getAttribute(RESULT_ATTRIBUTE);
+		if (outcome != null) {
+			// Dispatched again once the introspection completed
+			request.removeAttribute(RESULT_ATTRIBUTE);
+			authenticate(request, response, filterChain, outcome);
+			return;
+		}
+		String token = bearerToken(request);
+		if (token == null || request.getDispatcherType() != DispatcherType.REQUEST) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		if (!(tokenServices instanceof AsyncResourceServerTokenServices)) {
+			try {
+				outcome = tokenServices.loadAuthentication(token);
+			}
+			catch (RuntimeException e) {
+				outcome = e;
+			}
+			authenticate(request, response, filterChain, outcome);
+			return;
+		}
+		CompletableFuture<OAuth2Authentication> future = ((AsyncResourceServerTokenServices) tokenServices)
+				.loadAuthenticationAsync(token);
+		if (future.isDone()) {
+			authenticate(request, response, filterChain, outcome(future));
+			return;
+		}
+		final AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(timeout);
+		// Whichever of the introspection and the timeout comes first resumes the request
+		final AtomicBoolean resumed = new AtomicBoolean();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (resumed.compareAndSet(false, true)) {
+					logger.debug("Timed out waiting for the introspection of a bearer token");
+					((HttpServletResponse) event.getSuppliedResponse()).sendError(
+							HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Token introspection timed out");
+					asyncContext.complete();
+				}
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		future.whenComplete(new BiConsumer<OAuth2Authentication, Throwable>() {
+			@Override
+			public void accept(OAuth2Authentication authentication, Throwable error) {
+				if (resumed.compareAndSet(false, true)) {
+					request.setAttribute(RESULT_ATTRIBUTE, authentication != null ? authentication : unwrap(error));
+					asyncContext.dispatch();
+				}
+			}
+		});
+	}
+
+	private void authenticate(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain,
+			Object outcome) throws ServletException, IOException {
+		if (outcome instanceof OAuth2Authentication) {
+			// No OAuth2AuthenticationDetails, so that the SSO token relay leaves the request to BearerTokenRelayFilter
+			OAuth2Authentication authentication = (OAuth2Authentication) outcome;
+			SecurityContextHolder.getContext().setAuthentication(authentication);
+			request.setAttribute(TOKEN_ATTRIBUTE, bearerToken(request));
+			filterChain.doFilter(request, response);
+		}
+		else if (outcome instanceof InvalidTokenException) {
+			SecurityContextHolder.clearContext();
+			Exception e = (Exception) outcome;
+			authenticationEntryPoint.commence(request, response, new BadCredentialsException(e.getMessage(), e));
+		}
+		else {
+			SecurityContextHolder.clearContext();
+			logger.warn("Could not introspect bearer token: " + outcome);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Token introspection failed");
+		}
+	}
+
+	private Object outcome(CompletableFuture<OAuth2Authentication> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e;
+		}
+		catch (ExecutionException e) {
+			return unwrap(e);
+		}
+	}
+
+	private static Throwable unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException)
+				&& error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error;
+	}
+
+	private static String bearerToken(HttpServletRequest request) {
+		String header = request.getHeader("Authorization");
+		if (header != null && header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+			String token = header.substring(7).trim();
+			return token.isEmpty() ? null : token;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,21 @@
+package testcase.gateway;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+/**
+ * Token services that can also load an authentication without holding the calling thread while the token is
+ * introspected, see {@link AsyncBearerTokenFilter}.
+ */
+public interface AsyncResourceServerTokenServices extends ResourceServerTokenServices {
+
+	/**
+	 * @param accessToken the token value
+	 * @return the authentication of the token, completed exceptionally with an
+	 * {@link org.springframework.security.oauth2.common.exceptions.InvalidTokenException} if it is not valid, or with
+	 * the transport error if the authorization server could not be reached
+	 */
+	CompletableFuture<OAuth2Authentication> loadAuthenticationAsync(String accessToken);
+}
@@ -0,0 +1,223 @@
+package testcase.gateway;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * Collects concurrent introspection requests and sends them to the authorization server's batch check_token
+ * endpoint as one call. A batch is sent as soon as it holds <code>maxBatchSize</code> requests or
+ * <code>maxWait</code> millis after its first token arrived, whichever comes first; each caller then gets the
+ * response for its own token. Callers asking for the same token within a window share one slot of the batch.
+ * <p>
+ * A single dispatcher thread forms the batches and a small pool sends them, so a new batch can be collected while
+ * the previous one is in flight. When all senders are busy the dispatcher sends the batch itself, which naturally
+ * slows down batch collection instead of queueing without bound.
+ */
+public class BatchingIntrospector implements DisposableBean {
+
+	private static final String TOKEN_NAME = "token";
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final RestOperations restTemplate;
+
+	private final String batchEndpointUrl;
+
+	private final int maxBatchSize;
+
+	private final long maxWaitNanos;
+
+	private final BlockingQueue<Pending> queue;
+
+	private final ThreadPoolExecutor senders;
+
+	private final Thread dispatcher;
+
+	private long responseTimeout = 10000;
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param restTemplate client for the batch endpoint
+	 * @param batchEndpointUrl url of the batch check_token endpoint
+	 * @param maxBatchSize maximum number of requests per batch
+	 * @param maxWait maximum time in millis a request waits for its batch to fill up
+	 * @param maxConcurrentBatches maximum number of batches in flight
+	 */
+	public BatchingIntrospector(RestOperations restTemplate, String batchEndpointUrl, int maxBatchSize, long maxWait,
+			int maxConcurrentBatches) {
+		this.restTemplate = restTemplate;
+		this.batchEndpointUrl = batchEndpointUrl;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		this.queue = new LinkedBlockingQueue<Pending>(maxBatchSize * maxConcurrentBatches * 4);
+		CustomizableThreadFactory senderThreads = new CustomizableThreadFactory("check-token-batch-");
+		senderThreads.setDaemon(true);
+		this.senders = new ThreadPoolExecutor(0, maxConcurrentBatches, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), senderThreads, new ThreadPoolExecutor.CallerRunsPolicy());
+		this.dispatcher = senderThreads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		});
+		this.dispatcher.setName("check-token-batch-dispatcher");
+		this.dispatcher.start();
+	}
+
+	/**
+	 * @param responseTimeout maximum time in millis a caller waits for the result of its batch (default 10000)
+	 */
+	public void setResponseTimeout(long responseTimeout) {
+		this.responseTimeout = responseTimeout;
+	}
+
+	/**
+	 * Introspect a token as part of the next batch.
+	 *
+	 * @param accessToken the token to check
+	 * @return the check_token response for the token, or null if the batch queue is full and the caller should
+	 * check the token on its own
+	 */
+	public Map<String, Object> introspect(String accessToken) {
+		Pending pending = new Pending(accessToken);
+		if (!running || !queue.offer(pending)) {
+			return null;
+		}
+		try {
+			return pending.result.get(responseTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceAccessException("Interrupted while waiting for check_token batch");
+		}
+		catch (TimeoutException e) {
+			throw new ResourceAccessException("Timed out waiting for check_token batch");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ResourceAccessException("check_token batch failed: " + e.getCause());
+		}
+	}
+
+	private void dispatch() {
+		while (running) {
+			try {
+				final List<Pending> batch = new ArrayList<Pending>(maxBatchSize);
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxWaitNanos;
+				while (batch.size() < maxBatchSize) {
+					Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						send(batch);
+					}
+				});
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void send(List<Pending> batch) {
+		Map<String, List<Pending>> byToken = new LinkedHashMap<String, List<Pending>>();
+		for (Pending pending : batch) {
+			List<Pending> waiting = byToken.get(pending.accessToken);
+			if (waiting == null) {
+				waiting = new ArrayList<Pending>(1);
+				byToken.put(pending.accessToken, waiting);
+			}
+			waiting.add(pending);
+		}
+		try {
+			List<Map<String, Object>> results = postForList(byToken.keySet());
+			if (results == null || results.size() != byToken.size()) {
+				throw new ResourceAccessException("check_token batch returned " + (results == null ? 0 : results.size())
+						+ " results for " + byToken.size() + " tokens");
+			}
+			int i = 0;
+			for (List<Pending> waiting : byToken.values()) {
+				Map<String, Object> result = results.get(i++);
+				for (Pending pending : waiting) {
+					pending.result.complete(result);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			logger.debug("check_token batch of " + byToken.size() + " tokens failed", e);
+			for (Pending pending : batch) {
+				pending.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private List<Map<String, Object>> postForList(Iterable<String> tokens) {
+		MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+		for (String token : tokens) {
+			formData.add(TOKEN_NAME, token);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+		@SuppressWarnings("rawtypes")
+		List list = restTemplate.exchange(batchEndpointUrl, HttpMethod.POST,
+				new HttpEntity<MultiValueMap<String, String>>(formData, headers), List.class).getBody();
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> result = list;
+		return result;
+	}
+
+	@Override
+	public void destroy() {
+		running = false;
+		dispatcher.interrupt();
+		senders.shutdown();
+		Pending pending;
+		while ((pending = queue.poll()) != null) {
+			pending.result.completeExceptionally(new ResourceAccessException("check_token batching stopped"));
+		}
+	}
+
+	private static final class Pending {
+
+		final String accessToken;
+
+		final CompletableFuture<Map<String, Object>> result = new CompletableFuture<Map<String, Object>>();
+
+		Pending(String accessToken) {
+			this.accessToken = accessToken;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package testcase.gateway;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Relays the token of requests authenticated by {@link AsyncBearerTokenFilter} to the proxied service. The gateway
+ * lists Authorization in the Zuul sensitive headers, so the header the client sent is dropped with the others and
+ * added back here for the authenticated requests only. Session (SSO) requests are left to the Spring Cloud token
+ * relay.
+ */
+public class BearerTokenRelayFilter extends ZuulFilter {
+
+	@Override
+	public String filterType() {
+		return "pre";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 10;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().getRequest().getAttribute(AsyncBearerTokenFilter.TOKEN_ATTRIBUTE)
+				!= null;
+	}
+
+	@Override
+	public Object run() {
+		RequestContext context = RequestContext.getCurrentContext();
+		context.addZuulRequestHeader("authorization",
+				"Bearer " + context.getRequest().getAttribute(AsyncBearerTokenFilter.TOKEN_ATTRIBUTE));
+		return null;
+	}
+}
@@ -0,0 +1,67 @@
+package testcase.gateway;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.oauth2.provider.error.OAuth2AuthenticationEntryPoint;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.security.web.authentication.preauth.AbstractPreAuthenticatedProcessingFilter;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+/**
+ * Security of the requests sent with an <code>Authorization: Bearer</code> token, ahead of the SSO configuration:
+ * stateless (no session, no login redirect), authenticated by {@link AsyncBearerTokenFilter} and relayed with their
+ * token by {@link BearerTokenRelayFilter}. check_token is called through a non-blocking client, so requests waiting
+ * for it do not hold container threads.
+ */
+@Configuration
+@Order(90)
+@ConditionalOnProperty(prefix = "gateway.introspection.async", name = "enabled")
+public class BearerTokenSecurityConfiguration extends WebSecurityConfigurerAdapter {
+
+	@Value(value = "${gateway.introspection.async.timeout:10000}")
+	private long timeout;
+
+	@Bean
+	public PooledAsyncClientHttpRequestFactory checkTokenAsyncRequestFactory(
+			@Value("${gateway.introspection.http.maxTotal:200}") int maxTotal,
+			@Value("${gateway.introspection.http.maxPerRoute:100}") int maxPerRoute,
+			@Value("${gateway.introspection.http.connectTimeout:1000}") int connectTimeout,
+			@Value("${gateway.introspection.http.readTimeout:5000}") int readTimeout) {
+		return new PooledAsyncClientHttpRequestFactory(maxTotal, maxPerRoute, connectTimeout, readTimeout);
+	}
+
+	@Bean
+	public BearerTokenRelayFilter bearerTokenRelayFilter() {
+		return new BearerTokenRelayFilter();
+	}
+
+	@Override
+	public void configure(HttpSecurity http) throws Exception {
+		OAuth2AuthenticationEntryPoint entryPoint = new OAuth2AuthenticationEntryPoint();
+		AsyncBearerTokenFilter filter = new AsyncBearerTokenFilter(
+				getApplicationContext().getBean(ResourceServerTokenServices.class));
+		filter.setAuthenticationEntryPoint(entryPoint);
+		filter.setTimeout(timeout);
+		http.requestMatcher(new RequestMatcher() {
+				@Override
+				public boolean matches(HttpServletRequest request) {
+					String header = request.getHeader("Authorization");
+					return header != null && header.regionMatches(true, 0, "Bearer ", 0, 7);
+				}
+			})
+			.authorizeRequests()
+				.anyRequest().authenticated()
+			.and().sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+			.and().exceptionHandling().authenticationEntryPoint(entryPoint)
+			.and().addFilterBefore(filter, AbstractPreAuthenticatedProcessingFilter.class)
+			.csrf().disable();
+	}
+}
@@ -0,0 +1,37 @@
+package testcase.gateway;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed size byte buffers reused across requests for copying bodies between streams. At most maxPooled buffers are
+ * kept; when they are all in use a new one is allocated and dropped after use.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+
+	private final BlockingQueue<byte[]> buffers;
+
+	/**
+	 * @param bufferSize size of the buffers in bytes
+	 * @param maxPooled maximum number of idle buffers kept
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<byte[]>(maxPooled);
+	}
+
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[bufferSize];
+	}
+
+	public void release(byte[] buffer) {
+		buffers.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
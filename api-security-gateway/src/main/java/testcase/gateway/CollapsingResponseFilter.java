@@ -0,0 +1,38 @@
+package testcase.gateway;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Shares the response of a leader request with the identical requests waiting for it, see {@link RequestCollapser}.
+ * Runs before the Zuul response filter.
+ */
+public class CollapsingResponseFilter extends ZuulFilter {
+
+	private final RequestCollapser requestCollapser;
+
+	public CollapsingResponseFilter(RequestCollapser requestCollapser) {
+		this.requestCollapser = requestCollapser;
+	}
+
+	@Override
+	public String filterType() {
+		return "post";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 900;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().containsKey(RequestCollapser.LEADER_KEY);
+	}
+
+	@Override
+	public Object run() {
+		requestCollapser.complete(RequestContext.getCurrentContext());
+		return null;
+	}
+}
@@ -0,0 +1,39 @@
+package testcase.gateway;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Answers requests with the response of an identical request in flight, see {@link RequestCollapser}. Runs before
+ * the Zuul routing filters, which skip the requests answered here.
+ */
+public class CollapsingRouteFilter extends ZuulFilter {
+
+	private final RequestCollapser requestCollapser;
+
+	public CollapsingRouteFilter(RequestCollapser requestCollapser) {
+		this.requestCollapser = requestCollapser;
+	}
+
+	@Override
+	public String filterType() {
+		return "route";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 5;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		RequestContext context = RequestContext.getCurrentContext();
+		return context.sendZuulResponse() && requestCollapser.isCollapsible(context);
+	}
+
+	@Override
+	public Object run() {
+		requestCollapser.collapse(RequestContext.getCurrentContext());
+		return null;
+	}
+}
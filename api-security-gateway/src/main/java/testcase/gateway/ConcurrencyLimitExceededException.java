@@ -0,0 +1,15 @@
+package testcase.gateway;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * A call to the authorization server was not made because too many are already in flight, see
+ * {@link AdaptiveConcurrencyLimiter}.
+ */
+@SuppressWarnings("serial")
+public class ConcurrencyLimitExceededException extends RestClientException {
+
+	public ConcurrencyLimitExceededException(String msg) {
+		super(msg);
+	}
+}
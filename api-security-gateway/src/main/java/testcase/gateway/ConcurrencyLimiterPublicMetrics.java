@@ -0,0 +1,36 @@
+package testcase.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Publishes the state of an {@link AdaptiveConcurrencyLimiter} on the actuator <code>/metrics</code> endpoint:
+ * current limit, calls in flight and calls rejected since startup.
+ */
+public class ConcurrencyLimiterPublicMetrics implements PublicMetrics {
+
+	private final String prefix;
+
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	/**
+	 * @param prefix metric name prefix, e.g. <code>gateway.limit.checktoken</code>
+	 * @param limiter the limiter to report on
+	 */
+	public ConcurrencyLimiterPublicMetrics(String prefix, AdaptiveConcurrencyLimiter limiter) {
+		this.prefix = prefix;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>(3);
+		metrics.add(new Metric<Integer>(prefix + ".limit", limiter.getLimit()));
+		metrics.add(new Metric<Integer>(prefix + ".inFlight", limiter.getInFlight()));
+		metrics.add(new Metric<Long>(prefix + ".rejected", limiter.getRejectedCount()));
+		return metrics;
+	}
+}
@@ -0,0 +1,40 @@
+package testcase.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Publishes the utilization of a {@link PooledClientHttpRequestFactory} connection pool on the actuator
+ * <code>/metrics</code> endpoint, so the pool can be sized from real numbers: leased and available connections,
+ * threads waiting for a connection and the configured maximum.
+ */
+public class ConnectionPoolPublicMetrics implements PublicMetrics {
+
+	private final String prefix;
+
+	private final PooledClientHttpRequestFactory requestFactory;
+
+	/**
+	 * @param prefix metric name prefix, e.g. <code>httpclient.checktoken</code>
+	 * @param requestFactory the pooled factory to report on
+	 */
+	public ConnectionPoolPublicMetrics(String prefix, PooledClientHttpRequestFactory requestFactory) {
+		this.prefix = prefix;
+		this.requestFactory = requestFactory;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		PoolStats stats = requestFactory.getPoolStats();
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>(4);
+		metrics.add(new Metric<Integer>(prefix + ".leased", stats.getLeased()));
+		metrics.add(new Metric<Integer>(prefix + ".available", stats.getAvailable()));
+		metrics.add(new Metric<Integer>(prefix + ".pending", stats.getPending()));
+		metrics.add(new Metric<Integer>(prefix + ".max", stats.getMax()));
+		return metrics;
+	}
+}
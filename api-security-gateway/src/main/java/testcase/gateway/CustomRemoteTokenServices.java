@@ -2,6 +2,8 @@ package testcase.gateway;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -9,21 +11,26 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
 import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.DefaultResponseErrorHandler;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
-public class CustomRemoteTokenServices implements ResourceServerTokenServices {
+public class CustomRemoteTokenServices implements AsyncResourceServerTokenServices {
 
 	protected final Log logger = LogFactory.getLog(getClass());
 	
@@ -31,12 +38,45 @@ public class CustomRemoteTokenServices implements ResourceServerTokenServices {
 
 	private RestOperations restTemplate;
 
+	private AsyncRestTemplate asyncRestTemplate;
+
 	private String checkTokenEndpointUrl;
 
 	private AccessTokenConverter tokenConverter = new DefaultAccessTokenConverter();
 
+	private IntrospectionCache introspectionCache;
+
+	private BatchingIntrospector batchingIntrospector;
+
+	private TokenMetrics tokenMetrics;
+
+	private TokenLifecycleTracer tokenLifecycleTracer;
+
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+	private final IntrospectionCache.Loader remoteLoader = new IntrospectionCache.Loader() {
+		@Override
+		public IntrospectionResult load(String accessToken) {
+			return introspect(accessToken);
+		}
+	};
+
+	private final IntrospectionCache.AsyncLoader asyncRemoteLoader = new IntrospectionCache.AsyncLoader() {
+		@Override
+		public CompletableFuture<IntrospectionResult> load(String accessToken) {
+			return introspectAsync(accessToken);
+		}
+	};
+
 	public CustomRemoteTokenServices() {
-		restTemplate = new RestTemplate();
+		this(new SimpleClientHttpRequestFactory());
+	}
+
+	/**
+	 * @param requestFactory the transport for check_token calls, typically a {@link PooledClientHttpRequestFactory}
+	 */
+	public CustomRemoteTokenServices(ClientHttpRequestFactory requestFactory) {
+		restTemplate = new RestTemplate(requestFactory);
 		((RestTemplate) restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
 			@Override
 			// Ignore 400
@@ -48,6 +88,23 @@ public class CustomRemoteTokenServices implements ResourceServerTokenServices {
 		});
 	}
 
+	/**
+	 * @param asyncRequestFactory non-blocking transport for {@link #loadAuthenticationAsync(String)}, typically a
+	 * {@link PooledAsyncClientHttpRequestFactory} (default none: asynchronous loads introspect on the calling thread)
+	 */
+	public void setAsyncRequestFactory(AsyncClientHttpRequestFactory asyncRequestFactory) {
+		asyncRestTemplate = new AsyncRestTemplate(asyncRequestFactory);
+		asyncRestTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+			@Override
+			// Ignore 400, as for the blocking calls
+			public void handleError(ClientHttpResponse response) throws IOException {
+				if (response.getRawStatusCode() != 400) {
+					super.handleError(response);
+				}
+			}
+		});
+	}
+
 	public void setRestTemplate(RestOperations restTemplate) {
 		this.restTemplate = restTemplate;
 	}
@@ -60,23 +117,244 @@ public class CustomRemoteTokenServices implements ResourceServerTokenServices {
 		this.tokenConverter = accessTokenConverter;
 	}
 
+	/**
+	 * @param introspectionCache cache for check_token results (default none: every call goes to the server)
+	 */
+	public void setIntrospectionCache(IntrospectionCache introspectionCache) {
+		this.introspectionCache = introspectionCache;
+	}
+
+	/**
+	 * @param batchingIntrospector when set, check_token calls are grouped with concurrent ones and sent through the
+	 * batch endpoint (default none: one call per token)
+	 */
+	public void setBatchingIntrospector(BatchingIntrospector batchingIntrospector) {
+		this.batchingIntrospector = batchingIntrospector;
+	}
+
+	/**
+	 * @param tokenMetrics records check_token latency and failures (default none)
+	 */
+	public void setTokenMetrics(TokenMetrics tokenMetrics) {
+		this.tokenMetrics = tokenMetrics;
+	}
+
+	/**
+	 * @param tokenLifecycleTracer traces check_token results (default none)
+	 */
+	public void setTokenLifecycleTracer(TokenLifecycleTracer tokenLifecycleTracer) {
+		this.tokenLifecycleTracer = tokenLifecycleTracer;
+	}
+
+	/**
+	 * @param concurrencyLimiter bounds the concurrent check_token calls, failing the others at once (default none)
+	 */
+	public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
 	@Override
 	public OAuth2Authentication loadAuthentication(String accessToken)
 			throws AuthenticationException, InvalidTokenException {
 
+		IntrospectionResult result = introspectionCache != null
+				? introspectionCache.get(accessToken, remoteLoader)
+				: introspect(accessToken);
+		if (!result.isValid()) {
+			throw new InvalidTokenException(accessToken);
+		}
+		return authentication(result);
+	}
+
+	/**
+	 * Same as {@link #loadAuthentication(String)}, completing from the HTTP client's I/O thread once check_token
+	 * answered (or at once for a cached token). Batching does not apply: the asynchronous calls already cost no thread
+	 * while in flight.
+	 */
+	@Override
+	public CompletableFuture<OAuth2Authentication> loadAuthenticationAsync(final String accessToken) {
+		CompletableFuture<IntrospectionResult> result;
+		if (asyncRestTemplate == null) {
+			result = new CompletableFuture<IntrospectionResult>();
+			try {
+				result.complete(introspectionCache != null ? introspectionCache.get(accessToken, remoteLoader)
+						: introspect(accessToken));
+			}
+			catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+		else {
+			result = introspectionCache != null ? introspectionCache.getAsync(accessToken, asyncRemoteLoader)
+					: introspectAsync(accessToken);
+		}
+		return result.thenApply(new Function<IntrospectionResult, OAuth2Authentication>() {
+			@Override
+			public OAuth2Authentication apply(IntrospectionResult result) {
+				if (!result.isValid()) {
+					throw new InvalidTokenException(accessToken);
+				}
+				return authentication(result);
+			}
+		});
+	}
+
+	/**
+	 * Call the check_token endpoint for the given token
+	 */
+	protected IntrospectionResult introspect(String accessToken) {
+		long start = tokenMetrics != null ? tokenMetrics.start() : 0;
+		long traceStart = tokenLifecycleTracer != null ? tokenLifecycleTracer.start() : 0;
+		Map<String, Object> map = null;
+		try {
+			if (batchingIntrospector != null) {
+				map = batchingIntrospector.introspect(accessToken);
+			}
+			if (map == null) {
+				map = checkToken(accessToken);
+			}
+		}
+		catch (RuntimeException e) {
+			if (tokenMetrics != null) {
+				tokenMetrics.checkTokenFailed(start, e);
+			}
+			trace(accessToken, null, traceStart);
+			throw e;
+		}
+		if (tokenMetrics != null) {
+			tokenMetrics.checkToken(start);
+		}
+		IntrospectionResult result = toResult(map);
+		trace(accessToken, result, traceStart);
+		return result;
+	}
+
+	/**
+	 * Call the check_token endpoint for the given token without blocking
+	 */
+	protected CompletableFuture<IntrospectionResult> introspectAsync(final String accessToken) {
+		final long start = tokenMetrics != null ? tokenMetrics.start() : 0;
+		final long traceStart = tokenLifecycleTracer != null ? tokenLifecycleTracer.start() : 0;
+		final CompletableFuture<IntrospectionResult> result = new CompletableFuture<IntrospectionResult>();
 		MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
 		formData.add(TOKEN_NAME, accessToken);
 		HttpHeaders headers = new HttpHeaders();
-		// headers.set("Authorization", getAuthorizationHeader(clientId,
-		// clientSecret));
 		headers.set("Authorization", "Bearer " + accessToken);
-		Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+		final long permit;
+		try {
+			permit = concurrencyLimiter != null ? concurrencyLimiter.acquire() : 0;
+		}
+		catch (ConcurrencyLimitExceededException e) {
+			if (tokenMetrics != null) {
+				tokenMetrics.checkTokenFailed(start, e);
+			}
+			trace(accessToken, null, traceStart);
+			result.completeExceptionally(e);
+			return result;
+		}
+		@SuppressWarnings("rawtypes")
+		ListenableFutureCallback<ResponseEntity<Map>> callback = new ListenableFutureCallback<ResponseEntity<Map>>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public void onSuccess(ResponseEntity<Map> response) {
+				if (concurrencyLimiter != null) {
+					concurrencyLimiter.release(permit, null);
+				}
+				if (tokenMetrics != null) {
+					tokenMetrics.checkToken(start);
+				}
+				try {
+					IntrospectionResult introspectionResult = toResult(response.getBody());
+					trace(accessToken, introspectionResult, traceStart);
+					result.complete(introspectionResult);
+				}
+				catch (RuntimeException e) {
+					trace(accessToken, null, traceStart);
+					result.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				if (concurrencyLimiter != null) {
+					concurrencyLimiter.release(permit, e);
+				}
+				if (tokenMetrics != null && e instanceof RuntimeException) {
+					tokenMetrics.checkTokenFailed(start, (RuntimeException) e);
+				}
+				trace(accessToken, null, traceStart);
+				result.completeExceptionally(e);
+			}
+		};
+		try {
+			asyncRestTemplate.exchange(checkTokenEndpointUrl, HttpMethod.POST,
+					new HttpEntity<MultiValueMap<String, String>>(formData, headers), Map.class).addCallback(callback);
+		}
+		catch (RuntimeException e) {
+			callback.onFailure(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @param result the check_token result, null if the call failed
+	 */
+	private void trace(String accessToken, IntrospectionResult result, long start) {
+		if (tokenLifecycleTracer != null) {
+			tokenLifecycleTracer.introspected(accessToken,
+					result == null ? "failed" : result.isValid() ? "valid" : "invalid", start);
+		}
+	}
 
+	/**
+	 * Results may be cached and shared between requests, so every caller gets its own authentication: callers set
+	 * their details (and authenticated flag) on it. Its request and user authentication are shared.
+	 */
+	private OAuth2Authentication authentication(IntrospectionResult result) {
+		OAuth2Authentication authentication = result.getAuthentication();
+		return new OAuth2Authentication(authentication.getOAuth2Request(), authentication.getUserAuthentication());
+	}
+
+	private IntrospectionResult toResult(Map<String, Object> map) {
 		if (map.containsKey("error")) {
 			logger.debug("check_token returned error: " + map.get("error"));
-			throw new InvalidTokenException(accessToken);
+			if (tokenMetrics != null) {
+				tokenMetrics.checkTokenRejected(map.get("error"));
+			}
+			return IntrospectionResult.invalid();
+		}
+		return IntrospectionResult.valid(tokenConverter.extractAuthentication(map), expiresAt(map));
+	}
+
+	private Map<String, Object> checkToken(String accessToken) {
+		MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+		formData.add(TOKEN_NAME, accessToken);
+		HttpHeaders headers = new HttpHeaders();
+		// headers.set("Authorization", getAuthorizationHeader(clientId,
+		// clientSecret));
+		headers.set("Authorization", "Bearer " + accessToken);
+		if (concurrencyLimiter == null) {
+			return postForMap(checkTokenEndpointUrl, formData, headers);
+		}
+		long permit = concurrencyLimiter.acquire();
+		try {
+			Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+			concurrencyLimiter.release(permit, null);
+			return map;
+		}
+		catch (RuntimeException e) {
+			concurrencyLimiter.release(permit, e);
+			throw e;
+		}
+	}
+
+	private long expiresAt(Map<String, Object> map) {
+		Object exp = map.get(AccessTokenConverter.EXP);
+		if (exp instanceof Number) {
+			return ((Number) exp).longValue() * 1000L;
 		}
-		return tokenConverter.extractAuthentication(map);
+		return 0;
 	}
 
 	@Override
@@ -0,0 +1,16 @@
+package testcase.gateway;
+
+import org.springframework.boot.SpringApplication;
+
+import testcase.startup.StartupListener;
+
+/**
+ * Startup timing report, lazy initialization and appcds training exit of the gateway, configured with the
+ * gateway.startup.* properties (see {@link StartupListener}).
+ */
+public class GatewayStartupListener extends StartupListener {
+
+	public GatewayStartupListener(SpringApplication application, String[] args) {
+		super(application, Application.class, "gateway.startup");
+	}
+}
@@ -0,0 +1,126 @@
+package testcase.gateway;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * {@link SharedTokenStore} in the memory of a single gateway instance: shares tokens between the threads (and
+ * sessions) of that instance only. Useful with a single instance, in tests and as the reference behavior of the
+ * database backed {@link JdbcSharedTokenStore}. Tokens are dropped a while after they expire.
+ */
+public class InMemorySharedTokenStore implements SharedTokenStore {
+
+	private static final class Lease {
+
+		private final String owner;
+
+		private final long expiresAt;
+
+		private Lease(String owner, long expiresAt) {
+			this.owner = owner;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final ConcurrentMap<String, OAuth2AccessToken> tokens = new ConcurrentHashMap<String, OAuth2AccessToken>();
+
+	private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+	private final ConcurrentMap<String, Long> leaseFailures = new ConcurrentHashMap<String, Long>();
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	private long retention = 3600000;
+
+	/**
+	 * @param retention millis an expired token is kept (its refresh token may still be used), default one hour
+	 */
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+
+	@Override
+	public OAuth2AccessToken getAccessToken(String key) {
+		return tokens.get(key);
+	}
+
+	@Override
+	public void storeAccessToken(String key, OAuth2AccessToken accessToken) {
+		sweep(System.currentTimeMillis());
+		tokens.put(key, accessToken);
+	}
+
+	@Override
+	public void removeAccessToken(String key) {
+		tokens.remove(key);
+	}
+
+	@Override
+	public boolean acquireLease(String key, String owner, long duration) {
+		long now = System.currentTimeMillis();
+		Lease lease = new Lease(owner, now + duration);
+		while (true) {
+			Lease current = leases.putIfAbsent(key, lease);
+			if (current == null) {
+				return true;
+			}
+			if (!current.owner.equals(owner) && current.expiresAt > now) {
+				return false;
+			}
+			if (leases.replace(key, current, lease)) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public void releaseLease(String key, String owner) {
+		Lease current = leases.get(key);
+		if (current != null && current.owner.equals(owner)) {
+			leases.remove(key, current);
+		}
+	}
+
+	@Override
+	public void failLease(String key, String owner) {
+		Lease current = leases.get(key);
+		if (current != null && current.owner.equals(owner)) {
+			long now = System.currentTimeMillis();
+			sweep(now);
+			leaseFailures.put(key, now);
+			leases.remove(key, current);
+		}
+	}
+
+	@Override
+	public long getLeaseFailure(String key) {
+		Long failedAt = leaseFailures.get(key);
+		return failedAt != null ? failedAt : 0;
+	}
+
+	/**
+	 * Drop the tokens expired for longer than the retention, and the lease failures older than a minute (no one waits
+	 * for a lease that long), at most once a minute.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < 60000) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Map.Entry<String, OAuth2AccessToken>> it = tokens.entrySet().iterator(); it.hasNext();) {
+			OAuth2AccessToken token = it.next().getValue();
+			if (token.getExpiration() != null && now - token.getExpiration().getTime() > retention) {
+				it.remove();
+			}
+		}
+		for (Iterator<Long> it = leaseFailures.values().iterator(); it.hasNext();) {
+			if (now - it.next() > 60000) {
+				it.remove();
+			}
+		}
+	}
+}
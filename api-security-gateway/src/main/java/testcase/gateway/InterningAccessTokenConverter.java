@@ -0,0 +1,216 @@
+package testcase.gateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.UserAuthenticationConverter;
+
+/**
+ * Access token converter that builds authentications from check_token responses (or JWT claims) out of shared,
+ * immutable parts. The same few clients, scope sets, authority lists and users appear in almost every response, so
+ * instead of allocating new authority lists, scope sets, parameter maps and OAuth2Requests per call, each distinct
+ * value is built once and kept in a canonical table; the only per call allocation is the OAuth2Authentication
+ * itself, which carries request specific details and must not be shared.
+ * <p>
+ * Lookups use the values of the parsed response directly as keys, so a hit only allocates a small lookup key. The
+ * table holds at most <code>maxEntries</code> values; past that, new values are simply built without being
+ * interned. The resulting authentications are equal to those of {@link DefaultAccessTokenConverter} (grant type not
+ * included); note that the user authentication is shared as well, so its credentials are always "N/A" or null.
+ */
+public class InterningAccessTokenConverter implements AccessTokenConverter {
+
+	private final AccessTokenConverter delegate = new DefaultAccessTokenConverter();
+
+	private final ConcurrentMap<Object, Object> canonical = new ConcurrentHashMap<Object, Object>();
+
+	private final int maxEntries;
+
+	public InterningAccessTokenConverter() {
+		this(10000);
+	}
+
+	/**
+	 * @param maxEntries maximum number of canonical values kept
+	 */
+	public InterningAccessTokenConverter(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public Map<String, ?> convertAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		return delegate.convertAccessToken(token, authentication);
+	}
+
+	@Override
+	public OAuth2AccessToken extractAccessToken(String value, Map<String, ?> map) {
+		return delegate.extractAccessToken(value, map);
+	}
+
+	@Override
+	public OAuth2Authentication extractAuthentication(Map<String, ?> map) {
+		String clientId = intern((String) map.get(CLIENT_ID));
+		Set<String> scope = stringSet(map.get(SCOPE));
+		Set<String> resourceIds = stringSet(map.get(AUD));
+		List<GrantedAuthority> authorities = authorities(map.get(AUTHORITIES));
+		Authentication user = null;
+		if (map.containsKey(UserAuthenticationConverter.USERNAME)) {
+			user = user(map.get(UserAuthenticationConverter.USERNAME), authorities);
+		}
+		OAuth2Request request = request(clientId, scope, resourceIds, user == null ? authorities : null);
+		return new OAuth2Authentication(request, user);
+	}
+
+	/**
+	 * @return the number of canonical values currently kept
+	 */
+	public int size() {
+		return canonical.size();
+	}
+
+	private String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		String existing = (String) canonical.get(value);
+		return existing != null ? existing : store(value, value);
+	}
+
+	private Set<String> stringSet(Object value) {
+		if (value == null) {
+			return Collections.<String> emptySet();
+		}
+		@SuppressWarnings("unchecked")
+		Set<String> existing = (Set<String>) canonical.get(new Key("set", value));
+		if (existing != null) {
+			return existing;
+		}
+		Set<String> set = new LinkedHashSet<String>();
+		if (value instanceof String) {
+			for (String item : OAuth2Utils.parseParameterList((String) value)) {
+				set.add(intern(item));
+			}
+		}
+		else {
+			for (Object item : (Collection<?>) value) {
+				set.add(intern(String.valueOf(item)));
+			}
+		}
+		return store(new Key("set", copyOf(value)), Collections.unmodifiableSet(set));
+	}
+
+	private List<GrantedAuthority> authorities(Object value) {
+		if (value == null) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		List<GrantedAuthority> existing = (List<GrantedAuthority>) canonical.get(new Key("authorities", value));
+		if (existing != null) {
+			return existing;
+		}
+		Collection<String> roles = value instanceof String
+				? Arrays.asList(((String) value).split(","))
+				: toStrings((Collection<?>) value);
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(roles.size());
+		for (String role : roles) {
+			authorities.add(authority(role.trim()));
+		}
+		return store(new Key("authorities", copyOf(value)), Collections.unmodifiableList(authorities));
+	}
+
+	private GrantedAuthority authority(String role) {
+		Key key = new Key("authority", role);
+		GrantedAuthority existing = (GrantedAuthority) canonical.get(key);
+		return existing != null ? existing : store(key, new SimpleGrantedAuthority(intern(role)));
+	}
+
+	private Authentication user(Object principal, List<GrantedAuthority> authorities) {
+		Key key = new Key("user", principal, authorities);
+		Authentication existing = (Authentication) canonical.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		Object name = principal instanceof String ? intern((String) principal) : principal;
+		return store(key, new UsernamePasswordAuthenticationToken(name, "N/A", authorities));
+	}
+
+	private OAuth2Request request(String clientId, Set<String> scope, Set<String> resourceIds,
+			List<GrantedAuthority> authorities) {
+		Key key = new Key("request", clientId, scope, resourceIds, authorities);
+		OAuth2Request existing = (OAuth2Request) canonical.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put(CLIENT_ID, clientId);
+		return store(key, new OAuth2Request(parameters, clientId, authorities, true, scope, resourceIds, null, null,
+				null));
+	}
+
+	private <T> T store(Object key, T value) {
+		if (canonical.size() >= maxEntries) {
+			return value;
+		}
+		@SuppressWarnings("unchecked")
+		T existing = (T) canonical.putIfAbsent(key, value);
+		return existing != null ? existing : value;
+	}
+
+	/**
+	 * Keys outlive the response they were read from, so keep them independent of its (mutable) collections.
+	 */
+	private static Object copyOf(Object value) {
+		return value instanceof Collection ? new ArrayList<Object>((Collection<?>) value) : value;
+	}
+
+	private static Collection<String> toStrings(Collection<?> values) {
+		List<String> strings = new ArrayList<String>(values.size());
+		for (Object value : values) {
+			strings.add(String.valueOf(value));
+		}
+		return strings;
+	}
+
+	/**
+	 * Key of a canonical value: the kind of value plus the parsed response parts it is built from
+	 */
+	private static final class Key {
+
+		private final Object[] parts;
+
+		private final int hash;
+
+		Key(Object... parts) {
+			this.parts = parts;
+			this.hash = Arrays.hashCode(parts);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && hash == ((Key) other).hash && Arrays.equals(parts, ((Key) other).parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
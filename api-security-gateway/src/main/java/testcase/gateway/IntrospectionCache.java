@@ -0,0 +1,517 @@
+package testcase.gateway;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import testcase.token.TokenHash;
+
+/**
+ * Bounded cache of check_token results, keyed by the SHA-256 of the token value so no token is kept in memory.
+ * <ul>
+ * <li>Valid results live for the configured time to live, but never beyond the token <code>exp</code> claim.</li>
+ * <li>Rejected tokens are cached for a short negative time to live, so a client replaying a bad token does not turn
+ * into a check_token call per request.</li>
+ * <li>The cache is split into segments, each an access ordered map guarded by its own lock. When a segment is full
+ * its least recently used entry is only evicted in favour of a new one if the new token has been seen more often
+ * (TinyLFU admission over a small count-min sketch), so one-off tokens cannot flush the hot ones.</li>
+ * <li>Optionally (stale-while-revalidate) an entry past its time to live keeps being served for a grace period,
+ * still bounded by the token expiry, while a single background call refreshes it.</li>
+ * <li>Entries can be invalidated by token hash or user (revocations pushed by the authorization server, see
+ * {@link RevocationSubscriber}). An invalidated token or user is remembered for a minute (a tombstone), and a result
+ * for it whose load started before the invalidation is returned but not cached, since it may predate the
+ * revocation. Loads of other tokens are cached as usual.</li>
+ * </ul>
+ */
+public class IntrospectionCache {
+
+	/**
+	 * Strategy performing the actual introspection on a cache miss.
+	 */
+	public interface Loader {
+		IntrospectionResult load(String accessToken);
+	}
+
+	/**
+	 * Strategy performing the actual introspection on a cache miss without blocking the caller.
+	 */
+	public interface AsyncLoader {
+		CompletableFuture<IntrospectionResult> load(String accessToken);
+	}
+
+	private static final int SEGMENTS = 16;
+
+	/** Millis an invalidation is remembered, longer than any check_token call */
+	private static final long TOMBSTONE_TIME_TO_LIVE = 60000;
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private final FrequencySketch sketch;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private final ConcurrentMap<String, Long> invalidatedTokens = new ConcurrentHashMap<String, Long>();
+
+	private final ConcurrentMap<String, Long> invalidatedUsers = new ConcurrentHashMap<String, Long>();
+
+	private volatile long invalidatedAllAt;
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	private long timeToLive = 60000;
+
+	private long negativeTimeToLive = 2000;
+
+	private long staleTimeToLive = 0;
+
+	private Executor revalidationExecutor;
+
+	/**
+	 * @param maximumSize maximum number of cached results
+	 */
+	public IntrospectionCache(int maximumSize) {
+		if (maximumSize < SEGMENTS) {
+			throw new IllegalArgumentException("Maximum size must be at least " + SEGMENTS);
+		}
+		int segmentSize = (maximumSize + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+		sketch = new FrequencySketch(maximumSize);
+	}
+
+	/**
+	 * @param timeToLive how long (millis) a valid result is trusted, capped by the token expiry (default 60000)
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @param negativeTimeToLive how long (millis) a rejected token is remembered (default 2000, 0 disables)
+	 */
+	public void setNegativeTimeToLive(long negativeTimeToLive) {
+		this.negativeTimeToLive = negativeTimeToLive;
+	}
+
+	/**
+	 * Enable stale-while-revalidate.
+	 *
+	 * @param staleTimeToLive how long (millis) past its time to live a valid result may still be served while it is
+	 * revalidated in the background (never beyond the token expiry)
+	 * @param revalidationExecutor executor running the background revalidations
+	 */
+	public void setStaleWhileRevalidate(long staleTimeToLive, Executor revalidationExecutor) {
+		this.staleTimeToLive = staleTimeToLive;
+		this.revalidationExecutor = revalidationExecutor;
+	}
+
+	/**
+	 * Return the cached result for the token, loading (and caching) it on a miss. Loader failures are propagated and
+	 * never cached.
+	 *
+	 * @param accessToken the token to introspect
+	 * @param loader performs the introspection on a miss
+	 * @return the introspection result
+	 */
+	public IntrospectionResult get(String accessToken, Loader loader) {
+		String key = TokenHash.of(accessToken);
+		int hash = spread(key.hashCode());
+		sketch.increment(hash);
+		Segment segment = segmentFor(hash);
+		long now = System.currentTimeMillis();
+		Entry entry = segment.get(key);
+		if (entry != null) {
+			if (now < entry.freshUntil) {
+				hits.increment();
+				return entry.result;
+			}
+			if (now < entry.staleUntil) {
+				hits.increment();
+				revalidate(key, accessToken, entry, loader, now);
+				return entry.result;
+			}
+			segment.remove(key, entry);
+		}
+		misses.increment();
+		IntrospectionResult result = loader.load(accessToken);
+		put(key, hash, result, now, now);
+		return result;
+	}
+
+	/**
+	 * Same as {@link #get(String, Loader)} with a non-blocking loader: a hit returns a completed future, a miss the
+	 * loader's future, whose result is cached when it completes. Revalidations of stale entries go through the loader
+	 * too, so no revalidation executor is needed.
+	 *
+	 * @param accessToken the token to introspect
+	 * @param loader performs the introspection on a miss
+	 * @return the introspection result
+	 */
+	public CompletableFuture<IntrospectionResult> getAsync(String accessToken, AsyncLoader loader) {
+		final String key = TokenHash.of(accessToken);
+		final int hash = spread(key.hashCode());
+		sketch.increment(hash);
+		Segment segment = segmentFor(hash);
+		final long now = System.currentTimeMillis();
+		Entry entry = segment.get(key);
+		if (entry != null) {
+			if (now < entry.freshUntil) {
+				hits.increment();
+				return CompletableFuture.completedFuture(entry.result);
+			}
+			if (now < entry.staleUntil) {
+				hits.increment();
+				revalidate(key, accessToken, entry, loader, now);
+				return CompletableFuture.completedFuture(entry.result);
+			}
+			segment.remove(key, entry);
+		}
+		misses.increment();
+		return loader.load(accessToken).thenApply(new Function<IntrospectionResult, IntrospectionResult>() {
+			@Override
+			public IntrospectionResult apply(IntrospectionResult result) {
+				put(key, hash, result, System.currentTimeMillis(), now);
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Drop the result cached for a token, if any.
+	 *
+	 * @param tokenHash the {@link TokenHash} of the token
+	 */
+	public void invalidate(String tokenHash) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		invalidatedTokens.put(tokenHash, now);
+		segmentFor(spread(tokenHash.hashCode())).remove(tokenHash);
+	}
+
+	/**
+	 * Drop the results cached for the tokens of a user.
+	 *
+	 * @param userName the name of the user the tokens were issued to
+	 */
+	public void invalidateUser(String userName) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		invalidatedUsers.put(userName, now);
+		for (Segment segment : segments) {
+			segment.removeUser(userName);
+		}
+	}
+
+	/**
+	 * Drop every cached result.
+	 */
+	public void invalidateAll() {
+		invalidatedAllAt = System.currentTimeMillis();
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * @return the number of lookups served from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that had to call the loader
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for new ones
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the current number of cached results
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private void revalidate(final String key, final String accessToken, final Entry entry, final Loader loader,
+			final long loadStart) {
+		if (revalidationExecutor == null || !entry.revalidating.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			revalidationExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						put(key, spread(key.hashCode()), loader.load(accessToken), System.currentTimeMillis(),
+								loadStart);
+					}
+					catch (RuntimeException e) {
+						logger.debug("Background revalidation of cached token failed", e);
+						entry.revalidating.set(false);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			// Executor saturated: keep serving the stale entry, a later request will try again
+			entry.revalidating.set(false);
+		}
+	}
+
+	private void revalidate(final String key, String accessToken, final Entry entry, AsyncLoader loader,
+			final long loadStart) {
+		if (!entry.revalidating.compareAndSet(false, true)) {
+			return;
+		}
+		loader.load(accessToken).whenComplete(new BiConsumer<IntrospectionResult, Throwable>() {
+			@Override
+			public void accept(IntrospectionResult result, Throwable error) {
+				if (error == null) {
+					put(key, spread(key.hashCode()), result, System.currentTimeMillis(), loadStart);
+				}
+				else {
+					logger.debug("Background revalidation of cached token failed", error);
+					entry.revalidating.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param loadStart when the load of the result started, to tell whether it may predate an invalidation
+	 */
+	private void put(String key, int hash, IntrospectionResult result, long now, long loadStart) {
+		long freshUntil;
+		long staleUntil;
+		if (result.isValid()) {
+			long expiresAt = result.getExpiresAt() > 0 ? result.getExpiresAt() : Long.MAX_VALUE;
+			freshUntil = Math.min(now + timeToLive, expiresAt);
+			staleUntil = Math.min(freshUntil + staleTimeToLive, expiresAt);
+		}
+		else {
+			freshUntil = now + negativeTimeToLive;
+			staleUntil = freshUntil;
+		}
+		if (freshUntil <= now) {
+			return;
+		}
+		segmentFor(hash).put(key, hash, new Entry(result, freshUntil, staleUntil), now, loadStart);
+	}
+
+	/**
+	 * @return true if the token, its user or the whole cache was invalidated after the load started
+	 */
+	private boolean invalidatedSince(String key, IntrospectionResult result, long loadStart) {
+		if (invalidatedAllAt >= loadStart || invalidatedSince(invalidatedTokens.get(key), loadStart)) {
+			return true;
+		}
+		return result.isValid() && !result.getAuthentication().isClientOnly()
+				&& invalidatedSince(invalidatedUsers.get(result.getAuthentication().getName()), loadStart);
+	}
+
+	private static boolean invalidatedSince(Long invalidatedAt, long loadStart) {
+		return invalidatedAt != null && invalidatedAt >= loadStart;
+	}
+
+	/**
+	 * Drop the tombstones older than their time to live, at most once a minute.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < 60000) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Long> it = invalidatedTokens.values().iterator(); it.hasNext();) {
+			if (now - it.next() > TOMBSTONE_TIME_TO_LIVE) {
+				it.remove();
+			}
+		}
+		for (Iterator<Long> it = invalidatedUsers.values().iterator(); it.hasNext();) {
+			if (now - it.next() > TOMBSTONE_TIME_TO_LIVE) {
+				it.remove();
+			}
+		}
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		return h ^ (h >>> 16);
+	}
+
+	private static final class Entry {
+
+		final IntrospectionResult result;
+
+		final long freshUntil;
+
+		final long staleUntil;
+
+		final AtomicBoolean revalidating = new AtomicBoolean();
+
+		Entry(IntrospectionResult result, long freshUntil, long staleUntil) {
+			this.result = result;
+			this.freshUntil = freshUntil;
+			this.staleUntil = staleUntil;
+		}
+	}
+
+	private final class Segment {
+
+		private final int capacity;
+
+		private final LinkedHashMap<String, Entry> entries;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		}
+
+		synchronized Entry get(String key) {
+			return entries.get(key);
+		}
+
+		synchronized void remove(String key, Entry entry) {
+			entries.remove(key, entry);
+		}
+
+		synchronized void remove(String key) {
+			entries.remove(key);
+		}
+
+		synchronized void removeUser(String userName) {
+			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				IntrospectionResult result = it.next().result;
+				if (result.isValid() && !result.getAuthentication().isClientOnly()
+						&& userName.equals(result.getAuthentication().getName())) {
+					it.remove();
+				}
+			}
+		}
+
+		synchronized void clear() {
+			entries.clear();
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized void put(String key, int hash, Entry entry, long now, long loadStart) {
+			if (invalidatedSince(key, entry.result, loadStart)) {
+				// Invalidated while loading: the result may predate a revocation
+				return;
+			}
+			if (entries.containsKey(key) || entries.size() < capacity) {
+				entries.put(key, entry);
+				return;
+			}
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+			Map.Entry<String, Entry> victim = eldest.next();
+			if (victim.getValue().staleUntil > now
+					&& sketch.frequency(hash) <= sketch.frequency(spread(victim.getKey().hashCode()))) {
+				// The newcomer is not hotter than what it would replace: do not admit it
+				return;
+			}
+			eldest.remove();
+			evictions.increment();
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit saturating counters estimating how often each key has been requested recently. All
+	 * counters are halved every <code>10 * maximumSize</code> increments so that old popularity fades out. Updates
+	 * are deliberately unsynchronized: a lost increment only makes the estimate slightly less precise.
+	 */
+	private static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0xb5ad4ece, 0x7a1e3dc5, 0x3c6ef372 };
+
+		private final int[] table;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private final AtomicInteger additions = new AtomicInteger();
+
+		FrequencySketch(int maximumSize) {
+			int length = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+			this.table = new int[length];
+			this.mask = length - 1;
+			this.sampleSize = 10 * maximumSize;
+		}
+
+		void increment(int hash) {
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = indexOf(hash, i);
+				if (table[index] < 15) {
+					table[index]++;
+				}
+			}
+			if (additions.incrementAndGet() >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(int hash) {
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, table[indexOf(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private synchronized void reset() {
+			if (additions.get() < sampleSize) {
+				return;
+			}
+			for (int i = 0; i < table.length; i++) {
+				table[i] >>>= 1;
+			}
+			additions.set(0);
+		}
+
+		private int indexOf(int hash, int i) {
+			int h = (hash + SEEDS[i]) * 0x9e3779b9;
+			h ^= h >>> 15;
+			return h & mask;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package testcase.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Publishes the effectiveness of an {@link IntrospectionCache} on the actuator <code>/metrics</code> endpoint:
+ * size, hits, misses, evictions and the hit ratio since startup.
+ */
+public class IntrospectionCachePublicMetrics implements PublicMetrics {
+
+	private final String prefix;
+
+	private final IntrospectionCache cache;
+
+	/**
+	 * @param prefix metric name prefix, e.g. <code>gateway.introspection.cache</code>
+	 * @param cache the cache to report on
+	 */
+	public IntrospectionCachePublicMetrics(String prefix, IntrospectionCache cache) {
+		this.prefix = prefix;
+		this.cache = cache;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long hits = cache.getHitCount();
+		long misses = cache.getMissCount();
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>(5);
+		metrics.add(new Metric<Integer>(prefix + ".size", cache.size()));
+		metrics.add(new Metric<Long>(prefix + ".hits", hits));
+		metrics.add(new Metric<Long>(prefix + ".misses", misses));
+		metrics.add(new Metric<Long>(prefix + ".evictions", cache.getEvictionCount()));
+		metrics.add(new Metric<Double>(prefix + ".hitRatio", hits + misses > 0 ? (double) hits / (hits + misses) : 0));
+		return metrics;
+	}
+}
@@ -0,0 +1,45 @@
+package testcase.gateway;
+
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * Outcome of a check_token call: either the authentication the token stands for (with the token expiry taken from
+ * its <code>exp</code> claim) or the fact that the authorization server rejected it.
+ */
+public final class IntrospectionResult {
+
+	private static final IntrospectionResult INVALID = new IntrospectionResult(null, 0);
+
+	private final OAuth2Authentication authentication;
+
+	private final long expiresAt;
+
+	private IntrospectionResult(OAuth2Authentication authentication, long expiresAt) {
+		this.authentication = authentication;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * @param authentication the authentication extracted from the check_token response
+	 * @param expiresAt token expiry in epoch millis, or 0 if the response carried no <code>exp</code> claim
+	 */
+	public static IntrospectionResult valid(OAuth2Authentication authentication, long expiresAt) {
+		return new IntrospectionResult(authentication, expiresAt);
+	}
+
+	public static IntrospectionResult invalid() {
+		return INVALID;
+	}
+
+	public boolean isValid() {
+		return authentication != null;
+	}
+
+	public OAuth2Authentication getAuthentication() {
+		return authentication;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+}
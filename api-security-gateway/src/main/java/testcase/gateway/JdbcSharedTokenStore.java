@@ -0,0 +1,154 @@
+package testcase.gateway;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+
+/**
+ * {@link SharedTokenStore} in a database table, shared by every gateway instance using the same database (embedded
+ * H2 by default, which only shares within one instance: point spring.datasource.url at a shared database, e.g. an
+ * H2 server, to share across instances). One row per session holds the serialized token and the refresh lease; the
+ * lease is taken with a conditional update, so the database decides which instance refreshes.
+ */
+public class JdbcSharedTokenStore implements SharedTokenStore {
+
+	private static final String CREATE_TABLE = "create table if not exists gateway_session_token ("
+			+ "session_key varchar(64) primary key, token blob, expires_at bigint, lease_owner varchar(64), "
+			+ "lease_until bigint, lease_failed_at bigint)";
+
+	private static final String SELECT_TOKEN = "select token from gateway_session_token where session_key = ?";
+
+	private static final String UPDATE_TOKEN =
+			"update gateway_session_token set token = ?, expires_at = ? where session_key = ?";
+
+	private static final String INSERT_TOKEN =
+			"insert into gateway_session_token (session_key, token, expires_at) values (?, ?, ?)";
+
+	private static final String DELETE_TOKEN = "delete from gateway_session_token where session_key = ?";
+
+	private static final String DELETE_EXPIRED_TOKENS = "delete from gateway_session_token where expires_at < ?";
+
+	private static final String ACQUIRE_LEASE = "update gateway_session_token set lease_owner = ?, lease_until = ? "
+			+ "where session_key = ? and (lease_owner is null or lease_owner = ? or lease_until < ?)";
+
+	private static final String INSERT_LEASE = "insert into gateway_session_token (session_key, expires_at, "
+			+ "lease_owner, lease_until) values (?, ?, ?, ?)";
+
+	private static final String RELEASE_LEASE = "update gateway_session_token set lease_owner = null, "
+			+ "lease_until = null where session_key = ? and lease_owner = ?";
+
+	private static final String FAIL_LEASE = "update gateway_session_token set lease_owner = null, "
+			+ "lease_until = null, lease_failed_at = ? where session_key = ? and lease_owner = ?";
+
+	private static final String SELECT_LEASE_FAILURE =
+			"select lease_failed_at from gateway_session_token where session_key = ?";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private long retention = 3600000;
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	public JdbcSharedTokenStore(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+	}
+
+	/**
+	 * @param retention millis an expired token is kept (its refresh token may still be used), default one hour
+	 */
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * Create the table if it does not exist.
+	 */
+	public void initialize() {
+		jdbcTemplate.execute(CREATE_TABLE);
+	}
+
+	@Override
+	public OAuth2AccessToken getAccessToken(String key) {
+		List<OAuth2AccessToken> tokens = jdbcTemplate.query(SELECT_TOKEN, new RowMapper<OAuth2AccessToken>() {
+			@Override
+			public OAuth2AccessToken mapRow(ResultSet rs, int rowNum) throws SQLException {
+				byte[] token = rs.getBytes(1);
+				return token != null ? SerializationUtils.<OAuth2AccessToken> deserialize(token) : null;
+			}
+		}, key);
+		return tokens.isEmpty() ? null : tokens.get(0);
+	}
+
+	@Override
+	public void storeAccessToken(String key, OAuth2AccessToken accessToken) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		byte[] token = SerializationUtils.serialize(accessToken);
+		long expiresAt = accessToken.getExpiration() != null ? accessToken.getExpiration().getTime() : Long.MAX_VALUE;
+		if (jdbcTemplate.update(UPDATE_TOKEN, token, expiresAt, key) > 0) {
+			return;
+		}
+		try {
+			jdbcTemplate.update(INSERT_TOKEN, key, token, expiresAt);
+		}
+		catch (DuplicateKeyException e) {
+			// Inserted by another instance in the meantime
+			jdbcTemplate.update(UPDATE_TOKEN, token, expiresAt, key);
+		}
+	}
+
+	@Override
+	public void removeAccessToken(String key) {
+		jdbcTemplate.update(DELETE_TOKEN, key);
+	}
+
+	@Override
+	public boolean acquireLease(String key, String owner, long duration) {
+		long now = System.currentTimeMillis();
+		if (jdbcTemplate.update(ACQUIRE_LEASE, owner, now + duration, key, owner, now) > 0) {
+			return true;
+		}
+		try {
+			// No row yet for the session
+			return jdbcTemplate.update(INSERT_LEASE, key, now + duration, owner, now + duration) > 0;
+		}
+		catch (DuplicateKeyException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void releaseLease(String key, String owner) {
+		jdbcTemplate.update(RELEASE_LEASE, key, owner);
+	}
+
+	@Override
+	public void failLease(String key, String owner) {
+		jdbcTemplate.update(FAIL_LEASE, System.currentTimeMillis(), key, owner);
+	}
+
+	@Override
+	public long getLeaseFailure(String key) {
+		List<Long> failures = jdbcTemplate.queryForList(SELECT_LEASE_FAILURE, Long.class, key);
+		return failures.isEmpty() || failures.get(0) == null ? 0 : failures.get(0);
+	}
+
+	/**
+	 * Delete the tokens expired for longer than the retention, at most once a minute.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < 60000) {
+			return;
+		}
+		lastSweep = now;
+		jdbcTemplate.update(DELETE_EXPIRED_TOKENS, now - retention);
+	}
+}
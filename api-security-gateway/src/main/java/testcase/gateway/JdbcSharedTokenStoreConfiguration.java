@@ -0,0 +1,27 @@
+package testcase.gateway;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Shared token store in a database (gateway.token.shared.store=jdbc), see {@link JdbcSharedTokenStore}. The
+ * DataSource auto configuration, excluded from the application, is only imported here: with any other store no
+ * DataSource is created and no embedded database started.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "gateway.token.shared", name = "store", havingValue = "jdbc")
+@Import(DataSourceAutoConfiguration.class)
+public class JdbcSharedTokenStoreConfiguration {
+
+	@Bean
+	public SharedTokenStore jdbcSharedTokenStore(DataSource dataSource) {
+		JdbcSharedTokenStore store = new JdbcSharedTokenStore(dataSource);
+		store.initialize();
+		return store;
+	}
+}
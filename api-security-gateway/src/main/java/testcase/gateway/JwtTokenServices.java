@@ -0,0 +1,135 @@
+package testcase.gateway;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * Validates JWT access tokens signed by the authorization server locally, without calling check_token: the
+ * signature is checked against the server's public key and the expiry against the <code>exp</code> claim, and the
+ * claims are converted to an authentication exactly as a check_token response would be.
+ * <p>
+ * The verification key is fetched from the server's token key endpoint on first use and kept. A token whose
+ * signature does not match triggers one refetch (the server may have rotated its key), at most once per
+ * <code>keyRefreshInterval</code>, so forged tokens cannot be used to hammer the key endpoint.
+ */
+public class JwtTokenServices implements ResourceServerTokenServices {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final RestOperations restTemplate;
+
+	private final String tokenKeyEndpointUrl;
+
+	private final JsonParser jsonParser = JsonParserFactory.create();
+
+	private AccessTokenConverter tokenConverter = new DefaultAccessTokenConverter();
+
+	private long keyRefreshInterval = 60000;
+
+	private volatile SignatureVerifier verifier;
+
+	private volatile long lastKeyFetch;
+
+	/**
+	 * @param restTemplate client for the token key endpoint
+	 * @param tokenKeyEndpointUrl url of the authorization server token key endpoint (/oauth/token_key)
+	 */
+	public JwtTokenServices(RestOperations restTemplate, String tokenKeyEndpointUrl) {
+		this.restTemplate = restTemplate;
+		this.tokenKeyEndpointUrl = tokenKeyEndpointUrl;
+	}
+
+	public void setAccessTokenConverter(AccessTokenConverter accessTokenConverter) {
+		this.tokenConverter = accessTokenConverter;
+	}
+
+	/**
+	 * @param keyRefreshInterval minimum time in millis between two fetches of the verification key (default 60000)
+	 */
+	public void setKeyRefreshInterval(long keyRefreshInterval) {
+		this.keyRefreshInterval = keyRefreshInterval;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		Map<String, Object> claims = decode(accessToken);
+		Object exp = claims.get(AccessTokenConverter.EXP);
+		if (exp instanceof Number && ((Number) exp).longValue() * 1000L <= System.currentTimeMillis()) {
+			throw new InvalidTokenException("Token has expired");
+		}
+		return tokenConverter.extractAuthentication(claims);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		throw new UnsupportedOperationException("Not supported: read access token");
+	}
+
+	private Map<String, Object> decode(String accessToken) {
+		Jwt jwt;
+		try {
+			SignatureVerifier current = verifier();
+			try {
+				jwt = JwtHelper.decodeAndVerify(accessToken, current);
+			}
+			catch (InvalidSignatureException e) {
+				SignatureVerifier refreshed = refreshVerifier(current);
+				if (refreshed == current) {
+					throw e;
+				}
+				jwt = JwtHelper.decodeAndVerify(accessToken, refreshed);
+			}
+		}
+		catch (InvalidSignatureException e) {
+			throw new InvalidTokenException("Invalid JWT signature");
+		}
+		catch (IllegalArgumentException e) {
+			throw new InvalidTokenException("Cannot decode JWT access token");
+		}
+		try {
+			return jsonParser.parseMap(jwt.getClaims());
+		}
+		catch (IllegalArgumentException e) {
+			throw new InvalidTokenException("Cannot read JWT claims");
+		}
+	}
+
+	private SignatureVerifier verifier() {
+		SignatureVerifier current = verifier;
+		return current != null ? current : refreshVerifier(null);
+	}
+
+	private synchronized SignatureVerifier refreshVerifier(SignatureVerifier stale) {
+		if (verifier != stale || (stale != null && System.currentTimeMillis() - lastKeyFetch < keyRefreshInterval)) {
+			return verifier;
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, String> key = restTemplate.getForObject(tokenKeyEndpointUrl, Map.class);
+		if (key == null || key.get("value") == null) {
+			throw new IllegalStateException("No verification key returned by " + tokenKeyEndpointUrl);
+		}
+		logger.debug("Fetched JWT verification key (" + key.get("alg") + ") from " + tokenKeyEndpointUrl);
+		verifier = new RsaVerifier(key.get("value"));
+		lastKeyFetch = System.currentTimeMillis();
+		return verifier;
+	}
+}
@@ -0,0 +1,40 @@
+package testcase.gateway;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Answers 503 (with a Retry-After) for the requests that failed because a call to the authorization server was
+ * rejected by an {@link AdaptiveConcurrencyLimiter}, instead of the 401 or 500 the failing filter would otherwise
+ * produce (the token relay reports any failure to obtain a token as unauthorized).
+ */
+public class LoadSheddingErrorFilter extends ZuulFilter {
+
+	@Override
+	public String filterType() {
+		return "error";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 0;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().getRequest()
+				.getAttribute(AdaptiveConcurrencyLimiter.REJECTED_ATTRIBUTE) != null;
+	}
+
+	@Override
+	public Object run() {
+		RequestContext context = RequestContext.getCurrentContext();
+		context.set("error.status_code", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		context.set("error.message", "Authorization server overloaded, too many concurrent "
+				+ context.getRequest().getAttribute(AdaptiveConcurrencyLimiter.REJECTED_ATTRIBUTE) + " calls");
+		context.getResponse().setHeader("Retry-After", "1");
+		return null;
+	}
+}
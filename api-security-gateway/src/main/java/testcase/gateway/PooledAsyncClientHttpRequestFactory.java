@@ -0,0 +1,36 @@
+package testcase.gateway;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+
+/**
+ * Non-blocking counterpart of {@link PooledClientHttpRequestFactory}, backed by Apache HttpAsyncClient: a few I/O
+ * dispatcher threads multiplex all the in-flight check_token calls over a bounded pool of keep-alive connections, so
+ * a call waiting for the authorization server costs a socket, not a thread. The same connect, pool lease and read
+ * timeouts apply.
+ * <p>
+ * The client is started with the factory and closed when it is destroyed.
+ */
+public class PooledAsyncClientHttpRequestFactory extends HttpComponentsAsyncClientHttpRequestFactory {
+
+	/**
+	 * @param maxTotal maximum number of pooled connections
+	 * @param maxPerRoute maximum number of pooled connections to a single host
+	 * @param connectTimeout connect timeout, and maximum wait for a pooled connection, in millis
+	 * @param readTimeout socket read timeout in millis
+	 */
+	public PooledAsyncClientHttpRequestFactory(int maxTotal, int maxPerRoute, int connectTimeout, int readTimeout) {
+		super(HttpAsyncClients.custom()
+				.setMaxConnTotal(maxTotal)
+				.setMaxConnPerRoute(maxPerRoute)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(connectTimeout)
+						.setConnectionRequestTimeout(connectTimeout)
+						.setSocketTimeout(readTimeout)
+						.build())
+				.build());
+	}
+}
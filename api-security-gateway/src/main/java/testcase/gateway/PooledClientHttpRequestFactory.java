@@ -0,0 +1,63 @@
+package testcase.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * Request factory backed by a pooled, keep-alive Apache HttpClient, for the gateway's calls to the authorization
+ * server. Connections are reused across requests, bounded per route and in total, validated after inactivity and
+ * closed once idle for too long. Every call has explicit connect, pool lease and read timeouts, so a slow
+ * authorization server cannot hold request threads forever.
+ * <p>
+ * The underlying client is closed (stopping the idle connection evictor) when the factory is destroyed.
+ */
+public class PooledClientHttpRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	/**
+	 * @param maxTotal maximum number of pooled connections
+	 * @param maxPerRoute maximum number of pooled connections to a single host
+	 * @param connectTimeout connect timeout, and maximum wait for a pooled connection, in millis
+	 * @param readTimeout socket read timeout in millis
+	 * @param maxIdleTime time in millis after which an idle pooled connection is closed
+	 */
+	public PooledClientHttpRequestFactory(int maxTotal, int maxPerRoute, int connectTimeout, int readTimeout,
+			long maxIdleTime) {
+		this(createConnectionManager(maxTotal, maxPerRoute), maxIdleTime);
+		setConnectTimeout(connectTimeout);
+		setConnectionRequestTimeout(connectTimeout);
+		setReadTimeout(readTimeout);
+	}
+
+	private PooledClientHttpRequestFactory(PoolingHttpClientConnectionManager connectionManager, long maxIdleTime) {
+		super(HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.evictExpiredConnections()
+				.evictIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS)
+				.build());
+		this.connectionManager = connectionManager;
+	}
+
+	private static PoolingHttpClientConnectionManager createConnectionManager(int maxTotal, int maxPerRoute) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		// Check connections the server may have closed meanwhile before reusing them
+		connectionManager.setValidateAfterInactivity(2000);
+		return connectionManager;
+	}
+
+	/**
+	 * @return current usage of the connection pool across all routes
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+}
@@ -0,0 +1,37 @@
+package testcase.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Per session, principal or client id rate limits on the Zuul routes listed in gateway.rateLimit.routes, each
+ * configured under gateway.rateLimit.&lt;route id&gt; (key, rate, burst, maxKeys), see {@link RateLimitFilter}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "gateway.rateLimit", name = "enabled")
+public class RateLimitConfiguration {
+
+	@Bean
+	public RateLimitFilter rateLimitFilter(ZuulProperties zuulProperties, CounterService counterService,
+			Environment environment, @Value("${gateway.rateLimit.routes:}") String[] routeIds) {
+		Map<String, RateLimitFilter.Limit> limits = new LinkedHashMap<String, RateLimitFilter.Limit>();
+		for (String routeId : routeIds) {
+			String prefix = "gateway.rateLimit." + routeId + ".";
+			RateLimitFilter.KeyType keyType = RateLimitFilter.KeyType
+					.valueOf(environment.getProperty(prefix + "key", "session").trim().toUpperCase());
+			limits.put(routeId, new RateLimitFilter.Limit(keyType,
+					environment.getProperty(prefix + "rate", Double.class, 10.0),
+					environment.getProperty(prefix + "burst", Integer.class, 20),
+					environment.getProperty(prefix + "maxKeys", Integer.class, 100000)));
+		}
+		return new RateLimitFilter(zuulProperties, limits, counterService);
+	}
+}
@@ -0,0 +1,150 @@
+package testcase.gateway;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties.ZuulRoute;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+/**
+ * Rate limits the requests of each session, principal or OAuth2 client id on the Zuul routes that have a
+ * {@link Limit}. Requests over the limit get a 429 with a Retry-After (seconds) at once, counted as
+ * counter.gateway.rateLimit.&lt;route&gt;.rejected in /metrics.
+ * <p>
+ * Runs before the security filters, so that rejected requests cost no check_token call, token grant or refresh: the
+ * route is found from the Zuul route paths and the principal and client id from the security context kept in the
+ * session. Requests without a session are limited by their remote address, whatever bearer token they send: the
+ * token is not checked yet, so keying by token would give a client a new bucket for each token it makes up. The
+ * number of keys with a bucket is capped on each route, new keys over it are limited by remote address, see
+ * {@link RateLimiter}.
+ */
+public class RateLimitFilter extends OncePerRequestFilter implements Ordered {
+
+	/**
+	 * What the requests of a route are limited by.
+	 */
+	public enum KeyType {
+		/** The HTTP session */
+		SESSION,
+		/** The name of the authenticated user, over all their sessions */
+		PRINCIPAL,
+		/** The OAuth2 client id of the authentication, over all its users */
+		CLIENT
+	}
+
+	/**
+	 * The limit on a route.
+	 */
+	public static final class Limit {
+
+		private final KeyType keyType;
+
+		private final RateLimiter limiter;
+
+		/**
+		 * @param keyType what requests are limited by
+		 * @param rate requests per second allowed to each key
+		 * @param burst requests a key may send at once after being idle
+		 * @param maxKeys the most keys with a bucket, new keys over it are limited by remote address
+		 */
+		public Limit(KeyType keyType, double rate, int burst, int maxKeys) {
+			this.keyType = keyType;
+			this.limiter = new RateLimiter(rate, burst, maxKeys);
+		}
+	}
+
+	private final ZuulProperties zuulProperties;
+
+	private final Map<String, Limit> limits;
+
+	private final CounterService counterService;
+
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+	/**
+	 * @param limits limits by Zuul route id
+	 */
+	public RateLimitFilter(ZuulProperties zuulProperties, Map<String, Limit> limits, CounterService counterService) {
+		this.zuulProperties = zuulProperties;
+		this.limits = new LinkedHashMap<String, Limit>(limits);
+		this.counterService = counterService;
+	}
+
+	@Override
+	public int getOrder() {
+		// After the streaming request filter, well before the security filters
+		return Ordered.HIGHEST_PRECEDENCE + 1;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		String routeId = routeId(request);
+		Limit limit = routeId != null ? limits.get(routeId) : null;
+		if (limit != null) {
+			long wait = limit.limiter.tryAcquire(key(request, limit.keyType), request.getRemoteAddr());
+			if (wait > 0) {
+				counterService.increment("gateway.rateLimit." + routeId + ".rejected");
+				response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+				response.setHeader("Retry-After", String.valueOf(
+						TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1)));
+				return;
+			}
+		}
+		filterChain.doFilter(request, response);
+	}
+
+	/**
+	 * @return the id of the Zuul route the request goes to (the first one matching its path, as Zuul picks it), or
+	 * null
+	 */
+	private String routeId(HttpServletRequest request) {
+		String path = urlPathHelper.getPathWithinApplication(request);
+		String prefix = zuulProperties.getPrefix() != null ? zuulProperties.getPrefix() : "";
+		for (Map.Entry<String, ZuulRoute> route : zuulProperties.getRoutes().entrySet()) {
+			if (route.getValue().getPath() != null && pathMatcher.match(prefix + route.getValue().getPath(), path)) {
+				return route.getKey();
+			}
+		}
+		return null;
+	}
+
+	private String key(HttpServletRequest request, KeyType keyType) {
+		HttpSession session = request.getSession(false);
+		if (session != null) {
+			Object context = session
+					.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+			Authentication authentication = context instanceof SecurityContext
+					? ((SecurityContext) context).getAuthentication() : null;
+			if (keyType == KeyType.PRINCIPAL && authentication != null) {
+				return "principal:" + authentication.getName();
+			}
+			if (keyType == KeyType.CLIENT && authentication instanceof OAuth2Authentication) {
+				return "client:" + ((OAuth2Authentication) authentication).getOAuth2Request().getClientId();
+			}
+			return "session:" + session.getId();
+		}
+		return "address:" + request.getRemoteAddr();
+	}
+}
@@ -0,0 +1,128 @@
+package testcase.gateway;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limits on the requests of each key (a session, principal or client id), without locks: the bucket of
+ * a key is a single {@link AtomicLong} holding the time its next token is available (its theoretical arrival time,
+ * GCRA), taken with a compare and set. A request is allowed when it comes no earlier than burst - 1 token intervals
+ * before that time, so a key may send burst requests at once and rate requests per second after that.
+ * <p>
+ * Buckets are kept in a {@link ConcurrentHashMap}, whose reads do not lock and whose writes only contend on the bin
+ * of the key. Full buckets (idle keys) are swept out at most once a minute: a full bucket and no bucket allow the
+ * same requests. Their number is capped, so that requests with ever new keys cannot fill the heap: once maxKeys keys
+ * have a bucket, full buckets are swept out at most once a second, and new keys share a fixed set of overflow buckets
+ * by the hash of a fallback key (the remote address), until there is room.
+ */
+public class RateLimiter {
+
+	private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+	private static final long FULL_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int OVERFLOW_BUCKETS = 1024;
+
+	private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final long interval;
+
+	private final long tolerance;
+
+	private final int maxKeys;
+
+	private final AtomicLong[] overflow = new AtomicLong[OVERFLOW_BUCKETS];
+
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param rate requests per second allowed to each key
+	 * @param burst requests a key may send at once after being idle
+	 * @param maxKeys the most keys with a bucket
+	 */
+	public RateLimiter(double rate, int burst, int maxKeys) {
+		if (rate <= 0 || burst < 1 || maxKeys < 1) {
+			throw new IllegalArgumentException("Rate must be > 0, burst and maxKeys >= 1, not " + rate + ", " + burst
+					+ " and " + maxKeys);
+		}
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.tolerance = interval * (burst - 1);
+		this.maxKeys = maxKeys;
+		long now = System.nanoTime();
+		for (int i = 0; i < overflow.length; i++) {
+			overflow[i] = new AtomicLong(now);
+		}
+	}
+
+	/**
+	 * Take a token from the bucket of the key.
+	 *
+	 * @return 0 if the request is allowed, else how long in nanos until the next request of the key is
+	 */
+	public long tryAcquire(String key) {
+		return tryAcquire(key, key);
+	}
+
+	/**
+	 * Take a token from the bucket of the key, or from the overflow bucket of the fallback key if the key has no
+	 * bucket and there are maxKeys buckets already.
+	 *
+	 * @return 0 if the request is allowed, else how long in nanos until the next request of the key is
+	 */
+	public long tryAcquire(String key, String fallbackKey) {
+		long now = System.nanoTime();
+		sweep(now, SWEEP_INTERVAL);
+		AtomicLong bucket = buckets.get(key);
+		if (bucket == null) {
+			if (buckets.size() >= maxKeys) {
+				sweep(now, FULL_SWEEP_INTERVAL);
+				if (buckets.size() >= maxKeys) {
+					int hash = fallbackKey.hashCode();
+					return take(overflow[(hash ^ (hash >>> 16)) & (OVERFLOW_BUCKETS - 1)], now);
+				}
+			}
+			AtomicLong created = new AtomicLong(now);
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return take(bucket, now);
+	}
+
+	private long take(AtomicLong bucket, long now) {
+		while (true) {
+			long arrival = bucket.get();
+			long next = arrival - now > 0 ? arrival : now;
+			long wait = next - tolerance - now;
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(arrival, next + interval)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys with a bucket
+	 */
+	public int getKeys() {
+		return buckets.size();
+	}
+
+	private void sweep(long now, long sweepInterval) {
+		long last = lastSweep.get();
+		if (now - last < sweepInterval || !lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+		for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+			if (entry.getValue().get() - now <= 0) {
+				buckets.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package testcase.gateway;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * Decides when an access token is renewed ahead of its expiry: once a configurable fraction of its lifetime has
+ * elapsed (with random jitter, so that sessions logged in at the same moment do not all renew at the same moment).
+ * <p>
+ * The renewal is started by the next request of the session past the renewal time and runs on the refresh ahead
+ * executor of the OAuth2RestTemplate, which stores the new token in the session context as soon as the grant returns
+ * (the refresh grant revokes the current token on the authorization server). Sessions that are no longer used are
+ * therefore never renewed. Requests do not wait for the renewal while their token is valid, and keep using it if the
+ * renewal fails.
+ */
+public class RefreshAheadPolicy {
+
+	private final ConcurrentMap<String, Long> renewalTimes = new ConcurrentHashMap<String, Long>();
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	private double refreshRatio = 0.8;
+
+	private double jitterRatio = 0.1;
+
+	private int maxTracked = 10000;
+
+	/**
+	 * @param refreshRatio fraction of the remaining token lifetime after which the token is renewed (default 0.8)
+	 */
+	public void setRefreshRatio(double refreshRatio) {
+		if (refreshRatio <= 0 || refreshRatio >= 1) {
+			throw new IllegalArgumentException("Refresh ratio must be between 0 and 1: " + refreshRatio);
+		}
+		this.refreshRatio = refreshRatio;
+	}
+
+	/**
+	 * @param jitterRatio fraction of the token lifetime used as random +/- spread around the renewal time (default 0.1)
+	 */
+	public void setJitterRatio(double jitterRatio) {
+		this.jitterRatio = jitterRatio;
+	}
+
+	/**
+	 * @param maxTracked maximum number of tokens waiting for their renewal time. Tokens beyond it are simply refreshed
+	 * on demand when they expire (default 10000)
+	 */
+	public void setMaxTracked(int maxTracked) {
+		this.maxTracked = maxTracked;
+	}
+
+	/**
+	 * Set the renewal time of an access token that has just been stored in a context.
+	 *
+	 * @param accessToken the token to renew ahead of its expiry
+	 * @return true if the token will be renewed ahead
+	 */
+	public boolean track(OAuth2AccessToken accessToken) {
+		if (accessToken.getExpiration() == null || accessToken.getRefreshToken() == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		long remaining = accessToken.getExpiration().getTime() - now;
+		if (remaining <= 0) {
+			return false;
+		}
+		sweep(now);
+		if (renewalTimes.size() >= maxTracked) {
+			return false;
+		}
+		long delay = (long) (remaining * refreshRatio);
+		long jitter = (long) (remaining * jitterRatio);
+		if (jitter > 0) {
+			delay += ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+		}
+		delay = Math.max(0, Math.min(delay, remaining - 1));
+		renewalTimes.put(accessToken.getValue(), now + delay);
+		return true;
+	}
+
+	/**
+	 * @param accessToken the token held by the context of a request
+	 * @return true if the token is still valid and due for renewal
+	 */
+	public boolean isDue(OAuth2AccessToken accessToken) {
+		if (renewalTimes.isEmpty()) {
+			return false;
+		}
+		Long renewalTime = renewalTimes.get(accessToken.getValue());
+		return renewalTime != null && renewalTime <= System.currentTimeMillis() && !accessToken.isExpired();
+	}
+
+	/**
+	 * Stop tracking a token, once it has been replaced (or its renewal failed, it is then refreshed on expiry).
+	 */
+	public void forget(OAuth2AccessToken accessToken) {
+		renewalTimes.remove(accessToken.getValue());
+	}
+
+	/**
+	 * @return the number of tokens waiting for their renewal time
+	 */
+	public int getTracked() {
+		return renewalTimes.size();
+	}
+
+	/**
+	 * Drop the tokens whose renewal time passed more than a minute ago without a request of their session (idle
+	 * sessions are refreshed on expiry if they come back), at most once a minute.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < 60000) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Map.Entry<String, Long>> it = renewalTimes.entrySet().iterator(); it.hasNext();) {
+			if (now - it.next().getValue() > 60000) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package testcase.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.util.ReflectionUtils;
+
+import com.netflix.util.Pair;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Collapses identical concurrent GET and HEAD requests on the configured Zuul routes into one upstream call. The
+ * first request (the leader) is routed as usual; identical requests arriving while it is in flight wait for its
+ * response, which is buffered once routed and handed to each of them instead of being fetched again (see
+ * {@link CollapsingRouteFilter} and {@link CollapsingResponseFilter}).
+ * <p>
+ * Requests are identical when they have the same route, method, path and query, the same token relayed upstream and
+ * the same values of the configured request headers. Requests without a relayed token are never collapsed. A waiting
+ * request is routed on its own when the leader failed, its response body is over the size limit, or it did not
+ * complete within the wait time. Collapsed and fallen back requests are counted as counter.gateway.collapsing.* in
+ * /metrics.
+ */
+public class RequestCollapser {
+
+	/** Request context key of the flight of a leader request */
+	public static final String LEADER_KEY = RequestCollapser.class.getName() + ".LEADER";
+
+	/**
+	 * Response of a leader request, as the Zuul routing filters leave it in the request context.
+	 */
+	private static final class SharedResponse {
+
+		private final int status;
+
+		private final List<Pair<String, String>> headers;
+
+		private final Long contentLength;
+
+		private final boolean gzipped;
+
+		private final byte[] body;
+
+		private SharedResponse(RequestContext context, byte[] body) {
+			this.status = context.getResponseStatusCode();
+			this.headers = new ArrayList<Pair<String, String>>(context.getZuulResponseHeaders());
+			this.contentLength = context.getOriginContentLength();
+			this.gzipped = context.getResponseGZipped();
+			this.body = body;
+		}
+	}
+
+	/**
+	 * An upstream call in progress, its response available once {@link #done} is counted down (null when it cannot
+	 * be shared).
+	 */
+	private static final class Flight {
+
+		private final String key;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private final long started = System.currentTimeMillis();
+
+		private volatile SharedResponse response;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private final Set<String> routeIds;
+
+	private final List<String> headers;
+
+	private final int maxBodySize;
+
+	private final long maxWait;
+
+	private final CounterService counterService;
+
+	/**
+	 * @param routeIds ids of the Zuul routes whose requests are collapsed
+	 * @param headers names of the request headers the response depends on (the request path, query and token always
+	 * do)
+	 * @param maxBodySize largest response body in bytes shared with the waiting requests
+	 * @param maxWait how long in millis a request waits for the identical request in flight
+	 */
+	public RequestCollapser(Collection<String> routeIds, Collection<String> headers, int maxBodySize, long maxWait,
+			CounterService counterService) {
+		this.routeIds = new HashSet<String>(routeIds);
+		this.headers = new ArrayList<String>(headers);
+		this.maxBodySize = maxBodySize;
+		this.maxWait = maxWait;
+		this.counterService = counterService;
+	}
+
+	/**
+	 * @return whether the request of the context may be collapsed with identical ones
+	 */
+	public boolean isCollapsible(RequestContext context) {
+		String method = context.getRequest().getMethod();
+		return ("GET".equals(method) || "HEAD".equals(method)) && routeIds.contains(context.get("proxy"))
+				&& context.getZuulRequestHeaders().get("authorization") != null;
+	}
+
+	/**
+	 * Join the identical request in flight, or become the leader of a new flight.
+	 *
+	 * @return true if the response of an identical request was set in the context, false if the request is to be
+	 * routed (as a leader or on its own)
+	 */
+	public boolean collapse(RequestContext context) {
+		String key = key(context);
+		long now = System.currentTimeMillis();
+		Flight flight = new Flight(key);
+		Flight existing = flights.putIfAbsent(key, flight);
+		while (existing != null && now - existing.started > maxWait) {
+			// Its leader never completed it
+			flights.remove(key, existing);
+			existing = flights.putIfAbsent(key, flight);
+		}
+		if (existing == null) {
+			context.set(LEADER_KEY, flight);
+			return false;
+		}
+		SharedResponse response = await(existing);
+		if (response == null) {
+			counterService.increment("gateway.collapsing.fallback");
+			return false;
+		}
+		context.setResponseStatusCode(response.status);
+		for (Pair<String, String> header : response.headers) {
+			context.addZuulResponseHeader(header.first(), header.second());
+		}
+		context.setOriginContentLength(response.contentLength);
+		context.setResponseGZipped(response.gzipped);
+		context.setResponseDataStream(new ByteArrayInputStream(response.body));
+		context.setSendZuulResponse(false);
+		counterService.increment("gateway.collapsing.collapsed");
+		return true;
+	}
+
+	/**
+	 * Hand the response of a leader request to the requests waiting for it. The response body is buffered, and put
+	 * back in the context for the leader's own response.
+	 */
+	public void complete(RequestContext context) {
+		Flight flight = (Flight) context.get(LEADER_KEY);
+		context.remove(LEADER_KEY);
+		try {
+			InputStream stream = context.getResponseDataStream();
+			if (stream == null || context.getThrowable() != null) {
+				// Failed, or not routed by Zuul: the waiting requests try on their own
+				return;
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+				if (body.size() > maxBodySize) {
+					context.setResponseDataStream(new SequenceInputStream(
+							new ByteArrayInputStream(body.toByteArray()), stream));
+					return;
+				}
+			}
+			byte[] bytes = body.toByteArray();
+			context.setResponseDataStream(new ByteArrayInputStream(bytes));
+			flight.response = new SharedResponse(context, bytes);
+		}
+		catch (IOException e) {
+			ReflectionUtils.rethrowRuntimeException(e);
+		}
+		finally {
+			flights.remove(flight.key, flight);
+			flight.done.countDown();
+		}
+	}
+
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	private SharedResponse await(Flight flight) {
+		try {
+			long remaining = maxWait - (System.currentTimeMillis() - flight.started);
+			return flight.done.await(remaining, TimeUnit.MILLISECONDS) ? flight.response : null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private String key(RequestContext context) {
+		HttpServletRequest request = context.getRequest();
+		StringBuilder key = new StringBuilder(256).append(context.get("proxy")).append(' ')
+				.append(request.getMethod()).append(' ').append(request.getRequestURI());
+		if (request.getQueryString() != null) {
+			key.append('?').append(request.getQueryString());
+		}
+		key.append(' ').append(context.getZuulRequestHeaders().get("authorization"));
+		for (String header : headers) {
+			key.append(' ');
+			Enumeration<String> values = request.getHeaders(header);
+			while (values != null && values.hasMoreElements()) {
+				key.append(values.nextElement()).append(',');
+			}
+		}
+		return key.toString();
+	}
+}
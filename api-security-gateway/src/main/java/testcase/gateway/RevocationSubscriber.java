@@ -0,0 +1,184 @@
+package testcase.gateway;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * Follows the revocation feed of the authorization server (long polling <code>/oauth/revocations</code>) and drops
+ * the matching {@link IntrospectionCache} entries: revoked or replaced tokens by token hash, and every token of a
+ * user who logged out. This is what makes long cache times to live safe: a revoked token stops being accepted as soon
+ * as the event arrives, not when its cached result expires.
+ * <p>
+ * Each poll resumes from the offset of the last event applied. When events may have been missed (the server
+ * restarted, or no longer retains the offset after a long disconnection) the whole cache is dropped. While the feed
+ * cannot be reached for longer than <code>maxDisconnectedTime</code>, the cache is also dropped on every failed
+ * attempt, so results are not trusted beyond that while revocations cannot be heard of.
+ */
+public class RevocationSubscriber implements InitializingBean, DisposableBean {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final RestOperations restTemplate;
+
+	private final String revocationsUrl;
+
+	private final IntrospectionCache introspectionCache;
+
+	private TokenMetrics tokenMetrics;
+
+	private long pollTimeout = 25000;
+
+	private long retryInterval = 1000;
+
+	private long maxDisconnectedTime = 30000;
+
+	private Thread poller;
+
+	private volatile boolean running;
+
+	private String epoch;
+
+	private long offset = -1;
+
+	/**
+	 * @param restTemplate client for the feed, with a read timeout above the poll timeout, authenticating as a
+	 * registered client of the authorization server
+	 * @param revocationsUrl url of the revocation feed of the authorization server
+	 * @param introspectionCache the cache to drop revoked tokens from
+	 */
+	public RevocationSubscriber(RestOperations restTemplate, String revocationsUrl,
+			IntrospectionCache introspectionCache) {
+		this.restTemplate = restTemplate;
+		this.revocationsUrl = revocationsUrl;
+		this.introspectionCache = introspectionCache;
+	}
+
+	/**
+	 * @param tokenMetrics records received events and failed polls (default none)
+	 */
+	public void setTokenMetrics(TokenMetrics tokenMetrics) {
+		this.tokenMetrics = tokenMetrics;
+	}
+
+	/**
+	 * @param pollTimeout how long in millis the server holds a poll when there is no new event (default 25000)
+	 */
+	public void setPollTimeout(long pollTimeout) {
+		this.pollTimeout = pollTimeout;
+	}
+
+	/**
+	 * @param retryInterval wait in millis before polling again after a failure, doubled on every consecutive failure
+	 * up to 30 times this value (default 1000)
+	 */
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * @param maxDisconnectedTime how long in millis cached results are trusted while the feed cannot be reached
+	 * (default 30000)
+	 */
+	public void setMaxDisconnectedTime(long maxDisconnectedTime) {
+		this.maxDisconnectedTime = maxDisconnectedTime;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		running = true;
+		poller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, "revocation-subscriber");
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	@Override
+	public void destroy() {
+		running = false;
+		poller.interrupt();
+	}
+
+	private void poll() {
+		long lastContact = System.currentTimeMillis();
+		int failures = 0;
+		while (running) {
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> batch = restTemplate.getForObject(
+						revocationsUrl + "?after={after}&epoch={epoch}&wait={wait}", Map.class, offset,
+						epoch != null ? epoch : "", pollTimeout);
+				apply(batch);
+				lastContact = System.currentTimeMillis();
+				failures = 0;
+			}
+			catch (RuntimeException e) {
+				if (!running) {
+					return;
+				}
+				failures++;
+				logger.debug("Could not poll the revocation feed: " + e);
+				if (tokenMetrics != null) {
+					tokenMetrics.revocationFeedFailed(e);
+				}
+				if (System.currentTimeMillis() - lastContact > maxDisconnectedTime) {
+					logger.warn("Revocation feed unreachable for " + (System.currentTimeMillis() - lastContact)
+							+ " ms, dropping cached introspection results");
+					introspectionCache.invalidateAll();
+				}
+				try {
+					Thread.sleep(retryInterval << Math.min(failures - 1, 5));
+				}
+				catch (InterruptedException interrupted) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply a batch of events and move the offset past it.
+	 */
+	private void apply(Map<String, Object> batch) {
+		String batchEpoch = (String) batch.get("epoch");
+		if (epoch == null) {
+			// First contact: results cached before it may predate revocations nobody told us about
+			introspectionCache.invalidateAll();
+		}
+		else if (!epoch.equals(batchEpoch) || Boolean.TRUE.equals(batch.get("reset"))) {
+			logger.info("Revocation events may have been missed, dropping cached introspection results");
+			introspectionCache.invalidateAll();
+			if (tokenMetrics != null) {
+				tokenMetrics.revocationReceived("reset");
+			}
+		}
+		epoch = batchEpoch;
+		@SuppressWarnings("unchecked")
+		List<Map<String, Object>> events = (List<Map<String, Object>>) batch.get("events");
+		if (events != null) {
+			for (Map<String, Object> event : events) {
+				Object type = event.get("type");
+				String subject = (String) event.get("subject");
+				if ("token".equals(type)) {
+					introspectionCache.invalidate(subject);
+				}
+				else if ("user".equals(type)) {
+					introspectionCache.invalidateUser(subject);
+				}
+				if (tokenMetrics != null) {
+					tokenMetrics.revocationReceived(type);
+				}
+			}
+		}
+		offset = ((Number) batch.get("offset")).longValue();
+	}
+}
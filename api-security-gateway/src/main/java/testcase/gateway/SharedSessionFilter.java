@@ -0,0 +1,190 @@
+package testcase.gateway;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Gives every logged in session a key in the {@link SharedTokenStore}, sent to the browser in a cookie, so that the
+ * session can move to another gateway instance without logging in again: an instance receiving the cookie without a
+ * local session restores the authentication from the shared token (refreshing it first if it expired) instead of
+ * redirecting to the login. The key of the current request is exposed with {@link #currentKey()} for the
+ * OAuth2RestTemplate, which keeps the shared token up to date and coordinates refreshes through it.
+ * <p>
+ * Must run after the security context is loaded from the session and before the authentication filters. Also a
+ * {@link LogoutHandler}: a logout removes the shared token and expires the cookie, so no instance restores the
+ * session afterwards.
+ */
+public class SharedSessionFilter extends OncePerRequestFilter implements LogoutHandler {
+
+	/** Name of the request and session attributes holding the shared session key */
+	public static final String KEY_ATTRIBUTE = SharedSessionFilter.class.getName() + ".KEY";
+
+	private final SharedTokenStore sharedTokenStore;
+
+	private final OAuth2RestTemplate restTemplate;
+
+	private final ResourceServerTokenServices tokenServices;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private String cookieName = "GATEWAY_SESSION";
+
+	private boolean secureCookie = true;
+
+	public SharedSessionFilter(SharedTokenStore sharedTokenStore, OAuth2RestTemplate restTemplate,
+			ResourceServerTokenServices tokenServices) {
+		this.sharedTokenStore = sharedTokenStore;
+		this.restTemplate = restTemplate;
+		this.tokenServices = tokenServices;
+	}
+
+	/**
+	 * @param cookieName name of the cookie carrying the shared session key (default GATEWAY_SESSION)
+	 */
+	public void setCookieName(String cookieName) {
+		this.cookieName = cookieName;
+	}
+
+	/**
+	 * @param secureCookie whether the cookie is only sent over https (default true, as the gateway usually sits behind
+	 * a load balancer terminating TLS). When false the cookie is still secure on https requests.
+	 */
+	public void setSecureCookie(boolean secureCookie) {
+		this.secureCookie = secureCookie;
+	}
+
+	/**
+	 * @return the shared session key of the current request, or null (not logged in, no shared store, not in a
+	 * request thread)
+	 */
+	public static String currentKey() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		return attributes != null ? (String) attributes.getAttribute(KEY_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST)
+				: null;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		HttpSession session = request.getSession(false);
+		String key = session != null ? (String) session.getAttribute(KEY_ATTRIBUTE) : null;
+		if (key == null) {
+			Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+			String cookieKey = cookieKey(request);
+			if (authentication == null && cookieKey != null && restore(request, cookieKey)) {
+				key = cookieKey;
+			}
+			else if (authentication instanceof OAuth2Authentication) {
+				// Logged in on this instance: a new key, never one left over in the browser by an earlier login
+				key = newKey();
+				OAuth2AccessToken accessToken = restTemplate.getOAuth2ClientContext().getAccessToken();
+				if (accessToken != null) {
+					sharedTokenStore.storeAccessToken(key, accessToken);
+				}
+				response.addCookie(cookie(request, key));
+			}
+			if (key != null) {
+				request.getSession().setAttribute(KEY_ATTRIBUTE, key);
+			}
+		}
+		if (key != null) {
+			request.setAttribute(KEY_ATTRIBUTE, key);
+		}
+		filterChain.doFilter(request, response);
+	}
+
+	@Override
+	public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+		HttpSession session = request.getSession(false);
+		String key = session != null ? (String) session.getAttribute(KEY_ATTRIBUTE) : null;
+		if (key == null) {
+			key = cookieKey(request);
+		}
+		if (key != null) {
+			sharedTokenStore.removeAccessToken(key);
+		}
+		Cookie cookie = cookie(request, "");
+		cookie.setMaxAge(0);
+		response.addCookie(cookie);
+	}
+
+	/**
+	 * Authenticate the request with the shared token of the session, the way the SSO filter does after a login.
+	 *
+	 * @return false if there is no usable token for the key (the request then goes through the usual login)
+	 */
+	private boolean restore(HttpServletRequest request, String key) {
+		OAuth2AccessToken accessToken = sharedTokenStore.getAccessToken(key);
+		if (accessToken == null) {
+			return false;
+		}
+		request.setAttribute(KEY_ATTRIBUTE, key);
+		try {
+			restTemplate.getOAuth2ClientContext().setAccessToken(accessToken);
+			// Refreshes the token (through the shared lease) if it expired
+			accessToken = restTemplate.getAccessToken();
+			OAuth2Authentication authentication = tokenServices.loadAuthentication(accessToken.getValue());
+			request.setAttribute(OAuth2AuthenticationDetails.ACCESS_TOKEN_VALUE, accessToken.getValue());
+			request.setAttribute(OAuth2AuthenticationDetails.ACCESS_TOKEN_TYPE, accessToken.getTokenType());
+			authentication.setDetails(new OAuth2AuthenticationDetails(request));
+			SecurityContextHolder.getContext().setAuthentication(authentication);
+			logger.debug("Restored session " + key + " from the shared token store");
+			return true;
+		}
+		catch (RuntimeException e) {
+			logger.debug("Could not restore session " + key + " from the shared token store: " + e);
+			restTemplate.getOAuth2ClientContext().setAccessToken(null);
+			request.removeAttribute(KEY_ATTRIBUTE);
+			return false;
+		}
+	}
+
+	private Cookie cookie(HttpServletRequest request, String key) {
+		Cookie cookie = new Cookie(cookieName, key);
+		cookie.setPath("/");
+		cookie.setHttpOnly(true);
+		cookie.setSecure(secureCookie || request.isSecure());
+		return cookie;
+	}
+
+	private String cookieKey(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (cookieName.equals(cookie.getName())) {
+					return cookie.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	private String newKey() {
+		byte[] bytes = new byte[24];
+		random.nextBytes(bytes);
+		StringBuilder key = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+}
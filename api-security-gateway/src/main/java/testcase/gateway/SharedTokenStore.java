@@ -0,0 +1,49 @@
+package testcase.gateway;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * Access tokens of the user sessions, shared by all the gateway instances behind a load balancer, so that a session
+ * can be served by any of them with the same token (see {@link SharedSessionFilter}) and only one of them refreshes
+ * it when it expires: the refresh is guarded by a lease on the session key, and the other instances wait for the
+ * refreshed token to show up in the store.
+ * <p>
+ * Leases expire on their own, so an instance dying in the middle of a refresh only delays the others. An instance
+ * whose refresh failed releases its lease as failed, so the others stop waiting.
+ */
+public interface SharedTokenStore {
+
+	/**
+	 * @param key the shared session key
+	 * @return the latest token stored for the session, or null
+	 */
+	OAuth2AccessToken getAccessToken(String key);
+
+	void storeAccessToken(String key, OAuth2AccessToken accessToken);
+
+	void removeAccessToken(String key);
+
+	/**
+	 * Try to become the one refreshing the token of a session.
+	 *
+	 * @param owner identifies the caller (the gateway instance)
+	 * @param duration millis after which the lease expires if not released
+	 * @return true if the caller holds the lease (it was free, expired or already held by the same owner)
+	 */
+	boolean acquireLease(String key, String owner, long duration);
+
+	/**
+	 * Release a lease held by the owner (a lease held by another owner is left alone).
+	 */
+	void releaseLease(String key, String owner);
+
+	/**
+	 * Release a lease held by the owner after its refresh failed, recording the failure for the instances waiting.
+	 */
+	void failLease(String key, String owner);
+
+	/**
+	 * @return millis at which the last failed lease of the session was released, or 0
+	 */
+	long getLeaseFailure(String key);
+}
@@ -0,0 +1,112 @@
+package testcase.gateway;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.Ordered;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Keeps the body of the requests to streaming routes from being read in the gateway before
+ * {@link StreamingRoutingFilter} proxies it. The request seen by the rest of the gateway has the query string
+ * parameters only and no content type, so form parameter parsing (hidden method filter, Zuul debug parameter),
+ * multipart resolution and the Zuul form body wrapper all leave the body alone instead of reading it into memory. The
+ * body and the Content-Type header are still there for the proxied call.
+ * <p>
+ * Must run before anything reading request parameters.
+ */
+public class StreamingRequestFilter extends OncePerRequestFilter implements Ordered {
+
+	/**
+	 * Request hiding its body from the servlet API calls that would parse it.
+	 */
+	private static final class BodyOpaqueRequest extends HttpServletRequestWrapper {
+
+		private final Map<String, String[]> parameters;
+
+		private BodyOpaqueRequest(HttpServletRequest request) throws UnsupportedEncodingException {
+			super(request);
+			this.parameters = queryParameters(request.getQueryString());
+		}
+
+		@Override
+		public String getContentType() {
+			return null;
+		}
+
+		@Override
+		public String getParameter(String name) {
+			String[] values = parameters.get(name);
+			return values != null ? values[0] : null;
+		}
+
+		@Override
+		public String[] getParameterValues(String name) {
+			return parameters.get(name);
+		}
+
+		@Override
+		public Enumeration<String> getParameterNames() {
+			return Collections.enumeration(parameters.keySet());
+		}
+
+		@Override
+		public Map<String, String[]> getParameterMap() {
+			return parameters;
+		}
+	}
+
+	private final StreamingRoutes streamingRoutes;
+
+	public StreamingRequestFilter(StreamingRoutes streamingRoutes) {
+		this.streamingRoutes = streamingRoutes;
+	}
+
+	@Override
+	public int getOrder() {
+		return Ordered.HIGHEST_PRECEDENCE;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		if (streamingRoutes.matches(request)) {
+			request = new BodyOpaqueRequest(request);
+		}
+		filterChain.doFilter(request, response);
+	}
+
+	private static Map<String, String[]> queryParameters(String queryString) throws UnsupportedEncodingException {
+		Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+		String[] pairs = queryString != null ? StringUtils.tokenizeToStringArray(queryString, "&") : new String[0];
+		for (String pair : pairs) {
+			int index = pair.indexOf('=');
+			String name = URLDecoder.decode(index >= 0 ? pair.substring(0, index) : pair, "UTF-8");
+			List<String> list = values.get(name);
+			if (list == null) {
+				list = new ArrayList<String>(1);
+				values.put(name, list);
+			}
+			list.add(index >= 0 ? URLDecoder.decode(pair.substring(index + 1), "UTF-8") : "");
+		}
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+			parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+		}
+		return Collections.unmodifiableMap(parameters);
+	}
+}
@@ -0,0 +1,46 @@
+package testcase.gateway;
+
+import java.util.Arrays;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.netflix.zuul.filters.ProxyRequestHelper;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Streaming proxy mode for the Zuul routes listed in gateway.streaming.routes: their bodies are not read in the gateway
+ * ({@link StreamingRequestFilter}) but copied through pooled buffers between the client and upstream connections
+ * ({@link StreamingRoutingFilter}).
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "gateway.streaming", name = "enabled")
+public class StreamingRouteConfiguration {
+
+	@Bean
+	public StreamingRoutes streamingRoutes(ZuulProperties zuulProperties,
+			@Value("${gateway.streaming.routes:}") String[] routeIds) {
+		return new StreamingRoutes(zuulProperties, Arrays.asList(routeIds));
+	}
+
+	@Bean
+	public StreamingRequestFilter streamingRequestFilter(StreamingRoutes streamingRoutes) {
+		return new StreamingRequestFilter(streamingRoutes);
+	}
+
+	@Bean
+	public StreamingRoutingFilter streamingRoutingFilter(ProxyRequestHelper proxyRequestHelper,
+			StreamingRoutes streamingRoutes,
+			@Value("${gateway.streaming.bufferSize:8192}") int bufferSize,
+			@Value("${gateway.streaming.maxPooledBuffers:256}") int maxPooledBuffers,
+			@Value("${gateway.streaming.http.maxTotal:200}") int maxTotal,
+			@Value("${gateway.streaming.http.maxPerRoute:100}") int maxPerRoute,
+			@Value("${gateway.streaming.http.connectTimeout:2000}") int connectTimeout,
+			@Value("${gateway.streaming.http.readTimeout:60000}") int readTimeout,
+			@Value("${gateway.streaming.http.maxIdleTime:30000}") long maxIdleTime) {
+		return new StreamingRoutingFilter(proxyRequestHelper, streamingRoutes,
+				new BufferPool(bufferSize, maxPooledBuffers), StreamingRoutingFilter.createHttpClient(maxTotal,
+						maxPerRoute, connectTimeout, readTimeout, maxIdleTime));
+	}
+}
@@ -0,0 +1,54 @@
+package testcase.gateway;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties.ZuulRoute;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.util.UrlPathHelper;
+
+/**
+ * The Zuul routes (by id) proxied in streaming mode, see {@link StreamingRoutingFilter}. Requests are matched against
+ * the paths of these routes before Zuul picks their route, so that {@link StreamingRequestFilter} can keep the
+ * body from being read in the gateway.
+ */
+public class StreamingRoutes {
+
+	private final ZuulProperties zuulProperties;
+
+	private final Set<String> routeIds;
+
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+	public StreamingRoutes(ZuulProperties zuulProperties, Collection<String> routeIds) {
+		this.zuulProperties = zuulProperties;
+		this.routeIds = new HashSet<String>(routeIds);
+	}
+
+	public boolean contains(String routeId) {
+		return routeId != null && routeIds.contains(routeId);
+	}
+
+	/**
+	 * @return whether the path of the request is one of a streaming route
+	 */
+	public boolean matches(HttpServletRequest request) {
+		String path = urlPathHelper.getPathWithinApplication(request);
+		String prefix = zuulProperties.getPrefix() != null ? zuulProperties.getPrefix() : "";
+		for (Map.Entry<String, ZuulRoute> route : zuulProperties.getRoutes().entrySet()) {
+			if (routeIds.contains(route.getKey()) && route.getValue().getPath() != null
+					&& pathMatcher.match(prefix + route.getValue().getPath(), path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,263 @@
+package testcase.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.netflix.zuul.filters.ProxyRequestHelper;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Proxies the requests of the {@link StreamingRoutes} (url routes) by copying the request body to the upstream
+ * connection and the response body to the client as they come, through pooled fixed size buffers. Unlike the Zuul
+ * routing and response filters nothing is read into memory: no form re-encoding (see
+ * {@link StreamingRequestFilter}), no gzip handling (the bytes and Content-Encoding go through as they are) and no
+ * request body tracing. Headers are filtered as for the other routes.
+ * <p>
+ * Runs just before the Zuul host routing filter, which then skips the request.
+ */
+public class StreamingRoutingFilter extends ZuulFilter implements DisposableBean {
+
+	/**
+	 * Request body read from the client as the upstream connection takes it.
+	 */
+	private final class StreamingEntity extends AbstractHttpEntity {
+
+		private final InputStream content;
+
+		private final long length;
+
+		private StreamingEntity(InputStream content, long length) {
+			this.content = content;
+			this.length = length;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() {
+			return content;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			copy(content, out);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+	}
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final ProxyRequestHelper helper;
+
+	private final StreamingRoutes streamingRoutes;
+
+	private final BufferPool bufferPool;
+
+	private final CloseableHttpClient httpClient;
+
+	/**
+	 * @param httpClient client for the upstream calls, not following redirects nor decoding content (see
+	 * {@link #createHttpClient(int, int, int, int, long)})
+	 */
+	public StreamingRoutingFilter(ProxyRequestHelper helper, StreamingRoutes streamingRoutes, BufferPool bufferPool,
+			CloseableHttpClient httpClient) {
+		this.helper = helper;
+		this.streamingRoutes = streamingRoutes;
+		this.bufferPool = bufferPool;
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * @param maxTotal maximum number of pooled connections
+	 * @param maxPerRoute maximum number of pooled connections to a single host
+	 * @param connectTimeout connect timeout, and maximum wait for a pooled connection, in millis
+	 * @param readTimeout socket read timeout in millis
+	 * @param maxIdleTime time in millis after which an idle pooled connection is closed
+	 * @return a pooled client passing requests and responses through unchanged
+	 */
+	public static CloseableHttpClient createHttpClient(int maxTotal, int maxPerRoute, int connectTimeout,
+			int readTimeout, long maxIdleTime) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(2000);
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.disableRedirectHandling()
+				.disableCookieManagement()
+				.disableContentCompression()
+				.disableAutomaticRetries()
+				.evictExpiredConnections()
+				.evictIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	@Override
+	public String filterType() {
+		return "route";
+	}
+
+	@Override
+	public int filterOrder() {
+		return 99;
+	}
+
+	@Override
+	public boolean shouldFilter() {
+		RequestContext context = RequestContext.getCurrentContext();
+		return context.getRouteHost() != null && context.sendZuulResponse()
+				&& streamingRoutes.contains((String) context.get("proxy"));
+	}
+
+	@Override
+	public Object run() {
+		RequestContext context = RequestContext.getCurrentContext();
+		HttpServletRequest request = context.getRequest();
+		HttpServletResponse response = context.getResponse();
+		context.setSendZuulResponse(false);
+		try {
+			CloseableHttpResponse upstreamResponse = httpClient.execute(httpHost(context.getRouteHost()),
+					upstreamRequest(context, request));
+			try {
+				copyResponse(context, upstreamResponse, response);
+			}
+			finally {
+				upstreamResponse.close();
+			}
+		}
+		catch (IOException e) {
+			if (response.isCommitted()) {
+				logger.debug("Streaming of " + request.getRequestURI() + " interrupted: " + e);
+			}
+			else {
+				context.set("error.status_code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				context.set("error.exception", e);
+			}
+		}
+		return null;
+	}
+
+	private HttpRequest upstreamRequest(RequestContext context, HttpServletRequest request) throws IOException {
+		URL host = context.getRouteHost();
+		String uri = StringUtils.cleanPath((host.getPath() + helper.buildZuulRequestURI(request))
+				.replaceAll("/{2,}", "/")) + helper.getQueryString(helper.buildZuulRequestQueryParams(request));
+		MultiValueMap<String, String> headers = helper.buildZuulRequestHeaders(request);
+		// The helper asks for gzip to decode it later, the client's own Accept-Encoding applies to the raw bytes
+		headers.remove(HttpHeaders.ACCEPT_ENCODING);
+		copyHeader(request, HttpHeaders.ACCEPT_ENCODING, headers);
+		copyHeader(request, HttpHeaders.CONTENT_ENCODING, headers);
+		HttpRequest upstreamRequest;
+		long length = request.getContentLength();
+		if (length != 0 && (length > 0 || request.getHeader(HttpHeaders.TRANSFER_ENCODING) != null)) {
+			BasicHttpEntityEnclosingRequest withBody = new BasicHttpEntityEnclosingRequest(request.getMethod(), uri);
+			withBody.setEntity(new StreamingEntity(request.getInputStream(), length));
+			upstreamRequest = withBody;
+		}
+		else {
+			upstreamRequest = new BasicHttpRequest(request.getMethod(), uri);
+		}
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			for (String value : header.getValue()) {
+				upstreamRequest.addHeader(header.getKey(), value);
+			}
+		}
+		return upstreamRequest;
+	}
+
+	private void copyResponse(RequestContext context, CloseableHttpResponse upstreamResponse,
+			HttpServletResponse response) throws IOException {
+		response.setStatus(upstreamResponse.getStatusLine().getStatusCode());
+		for (Header header : upstreamResponse.getAllHeaders()) {
+			if (helper.isIncludedHeader(header.getName())
+					|| HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getName())
+					|| HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(header.getName())) {
+				response.addHeader(header.getName(), header.getValue());
+			}
+		}
+		for (Pair<String, String> header : context.getZuulResponseHeaders()) {
+			response.addHeader(header.first(), header.second());
+		}
+		HttpEntity entity = upstreamResponse.getEntity();
+		if (entity != null) {
+			copy(entity.getContent(), response.getOutputStream());
+		}
+	}
+
+	private void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = bufferPool.acquire();
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+		finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	private static void copyHeader(HttpServletRequest request, String name, MultiValueMap<String, String> headers) {
+		String value = request.getHeader(name);
+		if (value != null) {
+			headers.set(name, value);
+		}
+	}
+
+	private static HttpHost httpHost(URL host) {
+		return new HttpHost(host.getHost(), host.getPort(), host.getProtocol());
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		httpClient.close();
+	}
+}
@@ -0,0 +1,111 @@
+package testcase.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import testcase.token.TokenHash;
+
+/**
+ * Structured trace of the token lifecycle in the gateway: expired tokens found on a request, refreshes (start, end
+ * or failure with their duration), retries with a rejected token and check_token results. One key=value record per
+ * event on the gateway.token.trace logger, tokens by their {@link TokenHash}.
+ * <p>
+ * Meant to stay on under load: the events of a sample of the tokens are recorded (by token value, so that every
+ * event of a sampled token is), the others cost a hash code lookup. Records go through the async, garbage-free
+ * log4j2 logger set up in log4j2.xml, so a sampled event costs the request thread the token hashes and an enqueue.
+ */
+public class TokenLifecycleTracer {
+
+	private static final Logger logger = LogManager.getLogger("gateway.token.trace");
+
+	private static final int SAMPLE_SCALE = 10000;
+
+	private final int sampleThreshold;
+
+	/**
+	 * @param sampleRate fraction (0 to 1) of the tokens whose events are recorded
+	 */
+	public TokenLifecycleTracer(double sampleRate) {
+		this.sampleThreshold = (int) Math.round(Math.max(0, Math.min(1, sampleRate)) * SAMPLE_SCALE);
+	}
+
+	/**
+	 * @return the start time of an operation to pass to the recording methods
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * A request found its access token expired.
+	 */
+	public void expired(OAuth2AccessToken accessToken) {
+		if (isSampled(accessToken.getValue())) {
+			logger.info("event=expired token={} expiration={}", TokenHash.of(accessToken.getValue()),
+					Unbox.box(accessToken.getExpiration() != null ? accessToken.getExpiration().getTime() : 0));
+		}
+	}
+
+	/**
+	 * A refresh grant of the token is about to be sent to the authorization server.
+	 */
+	public void refreshStarted(OAuth2AccessToken expiredToken) {
+		if (isSampled(expiredToken.getValue())) {
+			logger.info("event=refresh.started token={}", TokenHash.of(expiredToken.getValue()));
+		}
+	}
+
+	/**
+	 * The refresh of the token returned a new token.
+	 */
+	public void refreshFinished(OAuth2AccessToken expiredToken, OAuth2AccessToken accessToken, long start) {
+		if (isSampled(expiredToken.getValue())) {
+			logger.info("event=refresh.finished token={} newToken={} millis={}", TokenHash.of(expiredToken.getValue()),
+					TokenHash.of(accessToken.getValue()), Unbox.box(elapsed(start)));
+		}
+	}
+
+	/**
+	 * The refresh of the token failed.
+	 */
+	public void refreshFailed(OAuth2AccessToken expiredToken, RuntimeException e, long start) {
+		if (isSampled(expiredToken.getValue())) {
+			logger.info("event=refresh.failed token={} error={} millis={}", TokenHash.of(expiredToken.getValue()),
+					e.getClass().getSimpleName(), Unbox.box(elapsed(start)));
+		}
+	}
+
+	/**
+	 * A call was rejected because of its token and is retried with another one.
+	 */
+	public void retried(OAuth2AccessToken rejectedToken) {
+		if (isSampled(rejectedToken.getValue())) {
+			logger.info("event=retry token={}", TokenHash.of(rejectedToken.getValue()));
+		}
+	}
+
+	/**
+	 * check_token answered (or failed) for the token.
+	 *
+	 * @param result valid, invalid or failed
+	 */
+	public void introspected(String accessToken, String result, long start) {
+		if (isSampled(accessToken)) {
+			logger.info("event=introspection token={} result={} millis={}", TokenHash.of(accessToken), result,
+					Unbox.box(elapsed(start)));
+		}
+	}
+
+	private boolean isSampled(String tokenValue) {
+		return sampleThreshold > 0 && logger.isInfoEnabled()
+				&& (tokenValue.hashCode() & Integer.MAX_VALUE) % SAMPLE_SCALE < sampleThreshold;
+	}
+
+	private static long elapsed(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,156 @@
+package testcase.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Records what happens on the token hot paths of the gateway: check_token calls, token refreshes (in the request
+ * path and ahead of expiry), concurrent refresh collisions, retries with a rejected token and pushed revocations.
+ * Everything ends up in the actuator <code>/metrics</code> endpoint under <code>gateway.*</code>.
+ * <p>
+ * Durations are recorded in nanoseconds in the <code>timer.*</code> Dropwizard timers (rate and latency
+ * distribution), directly rather than through the GaugeService, which would truncate them to whole milliseconds.
+ * Counters are an atomic add. A timer update also goes through the reservoir of its histogram, exponentially
+ * decaying by default, which takes a read lock: cheap, but not lock free.
+ */
+public class TokenMetrics {
+
+	private final CounterService counterService;
+
+	private final Timer checkTokenTimer;
+
+	private final Timer obtainTimer;
+
+	private final Timer refreshTimer;
+
+	private final Timer refreshAheadTimer;
+
+	public TokenMetrics(CounterService counterService, MetricRegistry metricRegistry) {
+		this.counterService = counterService;
+		this.checkTokenTimer = metricRegistry.timer("timer.gateway.checktoken");
+		this.obtainTimer = metricRegistry.timer("timer.gateway.token.obtain");
+		this.refreshTimer = metricRegistry.timer("timer.gateway.token.refresh");
+		this.refreshAheadTimer = metricRegistry.timer("timer.gateway.token.refreshAhead");
+	}
+
+	/**
+	 * @return the start time of an operation to pass to the recording methods
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * A check_token call (single or batched) returned a response.
+	 */
+	public void checkToken(long start) {
+		record(checkTokenTimer, start);
+	}
+
+	/**
+	 * check_token answered that the token is not valid.
+	 *
+	 * @param error the OAuth2 error code of the response
+	 */
+	public void checkTokenRejected(Object error) {
+		counterService.increment("gateway.checktoken.rejected." + name(error));
+	}
+
+	/**
+	 * A check_token call failed (connection failure, timeout, error status).
+	 */
+	public void checkTokenFailed(long start, RuntimeException e) {
+		record(checkTokenTimer, start);
+		counterService.increment("gateway.checktoken.failed." + cause(e));
+	}
+
+	/**
+	 * A token was obtained from the authorization server on a request thread.
+	 *
+	 * @param refresh whether it replaced an existing token (refresh grant) rather than being a first token
+	 */
+	public void tokenObtained(long start, boolean refresh) {
+		record(refresh ? refreshTimer : obtainTimer, start);
+	}
+
+	/**
+	 * Obtaining or refreshing a token on a request thread failed.
+	 */
+	public void tokenFailed(RuntimeException e) {
+		counterService.increment("gateway.token.failed." + cause(e));
+	}
+
+	/**
+	 * A request found the refresh of its expired token already in progress (or just done) and reused its result.
+	 */
+	public void refreshCollision() {
+		counterService.increment("gateway.token.refresh.collision");
+	}
+
+	/**
+	 * A request renewed its token ahead of expiry, while it was still valid.
+	 */
+	public void refreshedAhead(long start) {
+		record(refreshAheadTimer, start);
+	}
+
+	/**
+	 * A request picked up the token of its session obtained by another gateway instance (shared token store).
+	 */
+	public void sharedTokenUsed() {
+		counterService.increment("gateway.token.shared.used");
+	}
+
+	/**
+	 * A revocation pushed by the authorization server was applied to the introspection cache.
+	 *
+	 * @param type the event type (token, user or reset)
+	 */
+	public void revocationReceived(Object type) {
+		counterService.increment("gateway.revocation.received." + name(type));
+	}
+
+	/**
+	 * Polling the revocation feed of the authorization server failed.
+	 */
+	public void revocationFeedFailed(RuntimeException e) {
+		counterService.increment("gateway.revocation.failed." + cause(e));
+	}
+
+	/**
+	 * A downstream call was rejected with the current token and retried with a new one.
+	 */
+	public void badTokenRetry() {
+		counterService.increment("gateway.token.retry");
+	}
+
+	private static void record(Timer timer, long start) {
+		timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	private static String cause(RuntimeException e) {
+		if (e instanceof HttpStatusCodeException) {
+			return String.valueOf(((HttpStatusCodeException) e).getRawStatusCode());
+		}
+		return e.getClass().getSimpleName();
+	}
+
+	/**
+	 * Metric name segment from a server provided value: lower case letters, digits and underscores only, bounded
+	 * length, so a misbehaving server cannot create arbitrary metric names.
+	 */
+	private static String name(Object value) {
+		String name = String.valueOf(value).toLowerCase();
+		StringBuilder builder = new StringBuilder(Math.min(name.length(), 32));
+		for (int i = 0; i < name.length() && builder.length() < 32; i++) {
+			char c = name.charAt(i);
+			builder.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ? c : '_');
+		}
+		return builder.toString();
+	}
+}
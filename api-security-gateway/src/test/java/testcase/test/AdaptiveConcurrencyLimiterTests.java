@@ -0,0 +1,47 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.web.client.ResourceAccessException;
+
+import testcase.gateway.AdaptiveConcurrencyLimiter;
+import testcase.gateway.ConcurrencyLimitExceededException;
+
+public class AdaptiveConcurrencyLimiterTests {
+
+	@Test
+	public void callsOverTheLimitAreRejected() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("check_token", 2, 1, 10);
+
+		long first = limiter.acquire();
+		limiter.acquire();
+		try {
+			limiter.acquire();
+			fail("Expected the third call to be rejected");
+		}
+		catch (ConcurrencyLimitExceededException e) {
+			assertEquals(1, limiter.getRejectedCount());
+		}
+		limiter.release(first, null);
+		limiter.acquire();
+
+		assertEquals(2, limiter.getInFlight());
+	}
+
+	@Test
+	public void timeoutsShrinkTheLimit() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("token", 10, 2, 10);
+
+		for (int i = 0; i < 20; i++) {
+			// Wrapped the way the token providers wrap transport errors
+			limiter.release(limiter.acquire(), new OAuth2AccessDeniedException("Error requesting access token.",
+					null, new ResourceAccessException("Read timed out")));
+		}
+
+		assertEquals(2, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+}
@@ -0,0 +1,180 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.web.client.ResourceAccessException;
+
+import testcase.gateway.AsyncBearerTokenFilter;
+import testcase.gateway.AsyncResourceServerTokenServices;
+
+public class AsyncBearerTokenFilterTests {
+
+	private final OAuth2Authentication authentication = authentication();
+
+	private CompletableFuture<OAuth2Authentication> introspection = new CompletableFuture<OAuth2Authentication>();
+
+	private final AsyncBearerTokenFilter filter = new AsyncBearerTokenFilter(new AsyncResourceServerTokenServices() {
+		@Override
+		public CompletableFuture<OAuth2Authentication> loadAuthenticationAsync(String accessToken) {
+			return introspection;
+		}
+
+		@Override
+		public OAuth2Authentication loadAuthentication(String accessToken) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public OAuth2AccessToken readAccessToken(String accessToken) {
+			throw new UnsupportedOperationException();
+		}
+	});
+
+	private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/me");
+
+	private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void cachedTokenIsAuthenticatedInline() throws Exception {
+		introspection.complete(authentication);
+
+		MockFilterChain chain = filter();
+		assertFalse(request.isAsyncStarted());
+		assertNotNull(chain.getRequest());
+		assertSame(authentication, SecurityContextHolder.getContext().getAuthentication());
+		assertEquals("token", request.getAttribute(AsyncBearerTokenFilter.TOKEN_ATTRIBUTE));
+	}
+
+	@Test
+	public void requestIsDispatchedAgainWithTheIntrospectionResult() throws Exception {
+		MockFilterChain chain = filter();
+		assertTrue(request.isAsyncStarted());
+		assertNull(chain.getRequest());
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		assertNull(asyncContext.getDispatchedPath());
+
+		introspection.complete(authentication);
+		assertEquals("/me", asyncContext.getDispatchedPath());
+		chain = dispatchAgain();
+		assertNotNull(chain.getRequest());
+		assertSame(authentication, SecurityContextHolder.getContext().getAuthentication());
+		assertEquals("token", request.getAttribute(AsyncBearerTokenFilter.TOKEN_ATTRIBUTE));
+	}
+
+	@Test
+	public void invalidTokenGetsA401() throws Exception {
+		filter();
+		introspection.completeExceptionally(new InvalidTokenException("token"));
+
+		MockFilterChain chain = dispatchAgain();
+		assertNull(chain.getRequest());
+		assertEquals(401, response.getStatus());
+		assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	public void unreachableAuthorizationServerGetsA503() throws Exception {
+		introspection.completeExceptionally(new ResourceAccessException("Connection refused"));
+
+		MockFilterChain chain = filter();
+		assertNull(chain.getRequest());
+		assertEquals(503, response.getStatus());
+	}
+
+	@Test
+	public void timeoutGetsA503AndALateResultIsIgnored() throws Exception {
+		filter();
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		assertEquals(10000, asyncContext.getTimeout());
+
+		timeout(asyncContext);
+		assertEquals(503, response.getStatus());
+		assertFalse(request.isAsyncStarted());
+
+		introspection.complete(authentication);
+		assertNull(asyncContext.getDispatchedPath());
+	}
+
+	@Test
+	public void timeoutAfterTheResultIsIgnored() throws Exception {
+		filter();
+		MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		introspection.complete(authentication);
+
+		timeout(asyncContext);
+		assertEquals(200, response.getStatus());
+		assertNotNull(dispatchAgain().getRequest());
+	}
+
+	@Test
+	public void requestsWithoutABearerTokenAreLeftAlone() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/me");
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, response, chain);
+		assertNotNull(chain.getRequest());
+		assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	private MockFilterChain filter() throws Exception {
+		request.addHeader("Authorization", "Bearer token");
+		request.setAsyncSupported(true);
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, response, chain);
+		return chain;
+	}
+
+	/**
+	 * Dispatch the request again, as the container does once the async context is dispatched.
+	 */
+	private MockFilterChain dispatchAgain() throws Exception {
+		request.setAsyncStarted(false);
+		request.setDispatcherType(DispatcherType.ASYNC);
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, response, chain);
+		return chain;
+	}
+
+	private void timeout(MockAsyncContext asyncContext) throws Exception {
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onTimeout(new AsyncEvent(asyncContext, request, response));
+		}
+	}
+
+	private static OAuth2Authentication authentication() {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken("user", "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+}
@@ -0,0 +1,205 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import testcase.gateway.BatchingIntrospector;
+import testcase.gateway.CustomRemoteTokenServices;
+
+public class BatchingIntrospectorTests {
+
+	private static final String BATCH_URL = "http://localhost:8088/oauth/check_token/batch";
+
+	private static final String CHECK_TOKEN_URL = "http://localhost:8088/oauth/check_token";
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final StubRestTemplate restTemplate = new StubRestTemplate();
+
+	private BatchingIntrospector introspector;
+
+	@After
+	public void tearDown() {
+		restTemplate.release.countDown();
+		if (introspector != null) {
+			introspector.destroy();
+		}
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void batchIsSentOnceFull() throws Exception {
+		introspector = new BatchingIntrospector(restTemplate, BATCH_URL, 3, 10000, 1);
+		List<Future<Map<String, Object>>> results = introspect("first", "second", "third");
+
+		for (int i = 0; i < results.size(); i++) {
+			// Well before maxWait
+			assertEquals(Arrays.asList("first", "second", "third").get(i),
+					results.get(i).get(1, TimeUnit.SECONDS).get("user_name"));
+		}
+		assertEquals(1, restTemplate.batches.size());
+		assertEquals(3, restTemplate.batches.get(0).size());
+	}
+
+	@Test
+	public void batchIsSentAfterMaxWait() throws Exception {
+		introspector = new BatchingIntrospector(restTemplate, BATCH_URL, 100, 50, 1);
+		long start = System.currentTimeMillis();
+		assertEquals("first", introspector.introspect("first").get("user_name"));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		assertEquals(Collections.singletonList(Collections.singletonList("first")), restTemplate.batches);
+	}
+
+	@Test
+	public void duplicateTokensShareASlot() throws Exception {
+		introspector = new BatchingIntrospector(restTemplate, BATCH_URL, 3, 10000, 1);
+		List<Future<Map<String, Object>>> results = introspect("first", "second", "first");
+
+		assertEquals("first", results.get(0).get(1, TimeUnit.SECONDS).get("user_name"));
+		assertEquals("second", results.get(1).get(1, TimeUnit.SECONDS).get("user_name"));
+		assertEquals("first", results.get(2).get(1, TimeUnit.SECONDS).get("user_name"));
+		assertEquals(1, restTemplate.batches.size());
+		assertEquals(new HashSet<String>(Arrays.asList("first", "second")),
+				new HashSet<String>(restTemplate.batches.get(0)));
+		assertEquals(2, restTemplate.batches.get(0).size());
+	}
+
+	@Test
+	public void aResultCountNotMatchingTheTokensFailsEveryCaller() throws Exception {
+		restTemplate.dropLastResult = true;
+		introspector = new BatchingIntrospector(restTemplate, BATCH_URL, 2, 10000, 1);
+		for (Future<Map<String, Object>> result : introspect("first", "second")) {
+			try {
+				result.get(1, TimeUnit.SECONDS);
+				fail("Expected ResourceAccessException");
+			}
+			catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ResourceAccessException);
+			}
+		}
+	}
+
+	@Test
+	public void tokensAreCheckedOneByOneWhenTheQueueIsFull() throws Exception {
+		restTemplate.blockBatches = true;
+		// A queue of 4 requests, one batch in flight on a sender and one on the dispatcher
+		introspector = new BatchingIntrospector(restTemplate, BATCH_URL, 1, 10000, 1);
+		List<Future<Map<String, Object>>> results = new ArrayList<Future<Map<String, Object>>>();
+		results.addAll(introspect("first"));
+		results.addAll(introspect("second"));
+		assertTrue(restTemplate.entered.await(1, TimeUnit.SECONDS));
+		results.addAll(introspect("third", "fourth", "fifth", "sixth"));
+		Thread.sleep(100);
+
+		assertNull(introspector.introspect("seventh"));
+		CustomRemoteTokenServices tokenServices = new CustomRemoteTokenServices();
+		tokenServices.setRestTemplate(restTemplate);
+		tokenServices.setCheckTokenEndpointUrl(CHECK_TOKEN_URL);
+		tokenServices.setBatchingIntrospector(introspector);
+		assertEquals("seventh", tokenServices.loadAuthentication("seventh").getName());
+		assertEquals(Collections.singletonList("seventh"), restTemplate.checks);
+
+		restTemplate.release.countDown();
+		for (Future<Map<String, Object>> result : results) {
+			assertTrue(result.get(1, TimeUnit.SECONDS).containsKey("user_name"));
+		}
+		assertEquals(6, restTemplate.batches.size());
+	}
+
+	private List<Future<Map<String, Object>>> introspect(String... tokens) {
+		List<Future<Map<String, Object>>> results = new ArrayList<Future<Map<String, Object>>>();
+		for (final String token : tokens) {
+			results.add(executor.submit(new Callable<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> call() {
+					return introspector.introspect(token);
+				}
+			}));
+		}
+		return results;
+	}
+
+	/**
+	 * Answers check_token (one token) and batch check_token (every token) calls with a response naming the token as
+	 * its user, recording the tokens of each call.
+	 */
+	private static class StubRestTemplate extends RestTemplate {
+
+		private final List<List<String>> batches = new CopyOnWriteArrayList<List<String>>();
+
+		private final List<String> checks = new CopyOnWriteArrayList<String>();
+
+		private final CountDownLatch entered = new CountDownLatch(2);
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private volatile boolean blockBatches;
+
+		private volatile boolean dropLastResult;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
+				Class<T> responseType, Object... uriVariables) {
+			List<String> tokens = ((MultiValueMap<String, String>) requestEntity.getBody()).get("token");
+			if (CHECK_TOKEN_URL.equals(url)) {
+				checks.add(tokens.get(0));
+				return new ResponseEntity<T>((T) result(tokens.get(0)), HttpStatus.OK);
+			}
+			batches.add(tokens);
+			if (blockBatches) {
+				entered.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+			for (String token : tokens) {
+				results.add(result(token));
+			}
+			if (dropLastResult) {
+				results.remove(results.size() - 1);
+			}
+			return new ResponseEntity<T>((T) results, HttpStatus.OK);
+		}
+
+		private static Map<String, Object> result(String token) {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("user_name", token);
+			result.put("client_id", "poc-spa-client");
+			result.put("scope", Collections.singletonList("api_access"));
+			return result;
+		}
+	}
+}
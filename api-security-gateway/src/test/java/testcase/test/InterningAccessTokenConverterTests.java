@@ -0,0 +1,50 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+
+import testcase.gateway.InterningAccessTokenConverter;
+
+public class InterningAccessTokenConverterTests {
+
+	private final InterningAccessTokenConverter converter = new InterningAccessTokenConverter();
+
+	@Test
+	public void authenticationIsEqualToDefaultConversion() {
+		OAuth2Authentication expected = new DefaultAccessTokenConverter().extractAuthentication(checkTokenResponse());
+		OAuth2Authentication actual = converter.extractAuthentication(checkTokenResponse());
+
+		assertEquals(expected.getOAuth2Request(), actual.getOAuth2Request());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getAuthorities(), actual.getAuthorities());
+	}
+
+	@Test
+	public void partsAreSharedBetweenResponses() {
+		OAuth2Authentication first = converter.extractAuthentication(checkTokenResponse());
+		OAuth2Authentication second = converter.extractAuthentication(checkTokenResponse());
+
+		assertNotSame(first, second);
+		assertSame(first.getOAuth2Request(), second.getOAuth2Request());
+		assertSame(first.getUserAuthentication(), second.getUserAuthentication());
+	}
+
+	private static Map<String, Object> checkTokenResponse() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("user_name", "user");
+		map.put("client_id", "poc-spa-client");
+		map.put("scope", Arrays.asList("api_access", "mail"));
+		map.put("authorities", Arrays.asList("ROLE_USER"));
+		map.put("exp", 4102444800L);
+		return map;
+	}
+}
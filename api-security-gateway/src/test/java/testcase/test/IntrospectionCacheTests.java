@@ -0,0 +1,190 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import testcase.gateway.IntrospectionCache;
+import testcase.gateway.IntrospectionResult;
+import testcase.token.TokenHash;
+
+public class IntrospectionCacheTests {
+
+	private final OAuth2Authentication authentication = new OAuth2Authentication(new OAuth2Request(
+			Collections.<String, String> emptyMap(), "poc-spa-client", null, true, null, null, null, null, null), null);
+
+	@Test
+	public void validResultIsServedFromCache() {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		CountingLoader loader = new CountingLoader(
+				IntrospectionResult.valid(authentication, System.currentTimeMillis() + 60000));
+
+		cache.get("token", loader);
+		IntrospectionResult result = cache.get("token", loader);
+
+		assertSame(authentication, result.getAuthentication());
+		assertEquals(1, loader.calls.get());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void resultIsNotCachedBeyondTokenExpiry() {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		CountingLoader loader = new CountingLoader(
+				IntrospectionResult.valid(authentication, System.currentTimeMillis() - 1));
+
+		cache.get("token", loader);
+		cache.get("token", loader);
+
+		assertEquals(2, loader.calls.get());
+	}
+
+	@Test
+	public void rejectedTokenIsCachedNegatively() {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		CountingLoader loader = new CountingLoader(IntrospectionResult.invalid());
+
+		cache.get("token", loader);
+		IntrospectionResult result = cache.get("token", loader);
+
+		assertFalse(result.isValid());
+		assertEquals(1, loader.calls.get());
+	}
+
+	@Test
+	public void sizeIsBounded() {
+		IntrospectionCache cache = new IntrospectionCache(16);
+		CountingLoader loader = new CountingLoader(
+				IntrospectionResult.valid(authentication, System.currentTimeMillis() + 60000));
+
+		for (int i = 0; i < 1000; i++) {
+			cache.get("token-" + i, loader);
+		}
+
+		assertEquals(1000, loader.calls.get());
+		assertTrue(cache.size() <= 16);
+	}
+
+	@Test
+	public void asyncLoadIsCachedWhenItCompletes() throws Exception {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		final CompletableFuture<IntrospectionResult> pending = new CompletableFuture<IntrospectionResult>();
+		final AtomicInteger calls = new AtomicInteger();
+		IntrospectionCache.AsyncLoader loader = new IntrospectionCache.AsyncLoader() {
+			@Override
+			public CompletableFuture<IntrospectionResult> load(String accessToken) {
+				calls.incrementAndGet();
+				return pending;
+			}
+		};
+
+		CompletableFuture<IntrospectionResult> first = cache.getAsync("token", loader);
+		assertFalse(first.isDone());
+		pending.complete(IntrospectionResult.valid(authentication, System.currentTimeMillis() + 60000));
+		CompletableFuture<IntrospectionResult> second = cache.getAsync("token", loader);
+
+		assertSame(authentication, first.get().getAuthentication());
+		assertTrue(second.isDone());
+		assertSame(authentication, second.get().getAuthentication());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void invalidatedTokenIsLoadedAgain() {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		CountingLoader loader = new CountingLoader(
+				IntrospectionResult.valid(authentication, System.currentTimeMillis() + 60000));
+
+		cache.get("token", loader);
+		cache.get("other", loader);
+		cache.invalidate(TokenHash.of("token"));
+		cache.get("token", loader);
+		cache.get("other", loader);
+
+		assertEquals(3, loader.calls.get());
+	}
+
+	@Test
+	public void resultLoadedDuringInvalidationIsNotCached() throws Exception {
+		final IntrospectionCache cache = new IntrospectionCache(100);
+		final CompletableFuture<IntrospectionResult> pending = new CompletableFuture<IntrospectionResult>();
+		IntrospectionCache.AsyncLoader loader = new IntrospectionCache.AsyncLoader() {
+			@Override
+			public CompletableFuture<IntrospectionResult> load(String accessToken) {
+				return pending;
+			}
+		};
+
+		CompletableFuture<IntrospectionResult> result = cache.getAsync("token", loader);
+		cache.invalidate(TokenHash.of("token"));
+		pending.complete(IntrospectionResult.valid(authentication, System.currentTimeMillis() + 60000));
+
+		assertTrue(result.get().isValid());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void onlyResultsOfInvalidatedTokensAndUsersAreNotCached() throws Exception {
+		IntrospectionCache cache = new IntrospectionCache(100);
+		final Map<String, CompletableFuture<IntrospectionResult>> pending =
+				new HashMap<String, CompletableFuture<IntrospectionResult>>();
+		IntrospectionCache.AsyncLoader loader = new IntrospectionCache.AsyncLoader() {
+			@Override
+			public CompletableFuture<IntrospectionResult> load(String accessToken) {
+				CompletableFuture<IntrospectionResult> result = new CompletableFuture<IntrospectionResult>();
+				pending.put(accessToken, result);
+				return result;
+			}
+		};
+
+		cache.getAsync("revoked", loader);
+		cache.getAsync("other", loader);
+		cache.getAsync("ofUser", loader);
+		cache.getAsync("ofOtherUser", loader);
+		cache.invalidate(TokenHash.of("revoked"));
+		cache.invalidateUser("user");
+		long expiresAt = System.currentTimeMillis() + 60000;
+		pending.get("revoked").complete(IntrospectionResult.valid(authentication, expiresAt));
+		pending.get("other").complete(IntrospectionResult.valid(authentication, expiresAt));
+		pending.get("ofUser").complete(IntrospectionResult.valid(userAuthentication("user"), expiresAt));
+		pending.get("ofOtherUser").complete(IntrospectionResult.valid(userAuthentication("other"), expiresAt));
+
+		// Only "other" and "ofOtherUser" are cached
+		assertEquals(2, cache.size());
+	}
+
+	private OAuth2Authentication userAuthentication(String userName) {
+		return new OAuth2Authentication(authentication.getOAuth2Request(), new UsernamePasswordAuthenticationToken(
+				userName, "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+
+	private static class CountingLoader implements IntrospectionCache.Loader {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private final IntrospectionResult result;
+
+		CountingLoader(IntrospectionResult result) {
+			this.result = result;
+		}
+
+		@Override
+		public IntrospectionResult load(String accessToken) {
+			calls.incrementAndGet();
+			return result;
+		}
+	}
+}
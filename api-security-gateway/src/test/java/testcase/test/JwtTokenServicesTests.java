@@ -0,0 +1,142 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.client.RestTemplate;
+
+import testcase.gateway.JwtTokenServices;
+
+public class JwtTokenServicesTests {
+
+	private static final KeyPair KEY = keyPair();
+
+	private static final KeyPair ROTATED_KEY = keyPair();
+
+	private final StubRestTemplate restTemplate = new StubRestTemplate();
+
+	private final JwtTokenServices tokenServices = new JwtTokenServices(restTemplate,
+			"http://localhost:8088/oauth/token_key");
+
+	@Test
+	public void validTokenIsAuthenticatedWithTheKeyFetchedOnce() {
+		String token = token(KEY, "user", inSeconds(60));
+
+		OAuth2Authentication authentication = tokenServices.loadAuthentication(token);
+		assertEquals("user", authentication.getName());
+		assertEquals("poc-spa-client", authentication.getOAuth2Request().getClientId());
+		assertEquals("api_access", authentication.getOAuth2Request().getScope().iterator().next());
+		tokenServices.loadAuthentication(token(KEY, "other", inSeconds(60)));
+		assertEquals(1, restTemplate.fetches.get());
+	}
+
+	@Test
+	public void tamperedClaimsAreRejected() {
+		String[] token = token(KEY, "user", inSeconds(60)).split("\\.");
+		String tampered = token[0] + "." + encode(claims("admin", inSeconds(60))) + "." + token[2];
+
+		assertInvalid(tampered);
+		assertEquals(1, restTemplate.fetches.get());
+	}
+
+	@Test
+	public void expiredTokenIsRejected() {
+		assertInvalid(token(KEY, "user", inSeconds(-1)));
+	}
+
+	@Test
+	public void unknownKeyTriggersAKeyRefetchAtMostOncePerInterval() throws Exception {
+		tokenServices.setKeyRefreshInterval(200);
+		tokenServices.loadAuthentication(token(KEY, "user", inSeconds(60)));
+		assertEquals(1, restTemplate.fetches.get());
+
+		// The server rotates its key: within the interval, tokens signed with the new one are rejected
+		restTemplate.key = ROTATED_KEY;
+		String rotated = token(ROTATED_KEY, "user", inSeconds(60));
+		assertInvalid(rotated);
+		assertEquals(1, restTemplate.fetches.get());
+
+		// After it, the first of them fetches the new key
+		Thread.sleep(250);
+		assertEquals("user", tokenServices.loadAuthentication(rotated).getName());
+		assertEquals(2, restTemplate.fetches.get());
+
+		// Forged tokens do not fetch it again
+		for (int i = 0; i < 10; i++) {
+			assertInvalid(token(keyPair(), "user", inSeconds(60)));
+		}
+		assertEquals(2, restTemplate.fetches.get());
+	}
+
+	private void assertInvalid(String token) {
+		try {
+			tokenServices.loadAuthentication(token);
+			fail("Expected InvalidTokenException");
+		}
+		catch (InvalidTokenException e) {
+		}
+	}
+
+	private static String token(KeyPair key, String userName, long exp) {
+		return JwtHelper.encode(claims(userName, exp), new RsaSigner((RSAPrivateKey) key.getPrivate())).getEncoded();
+	}
+
+	private static String claims(String userName, long exp) {
+		return "{\"user_name\":\"" + userName + "\",\"client_id\":\"poc-spa-client\",\"scope\":[\"api_access\"],"
+				+ "\"authorities\":[\"ROLE_USER\"],\"exp\":" + exp + "}";
+	}
+
+	private static long inSeconds(long seconds) {
+		return System.currentTimeMillis() / 1000 + seconds;
+	}
+
+	private static String encode(String claims) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static KeyPair keyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			return generator.generateKeyPair();
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Answers token_key with the public key of the current key pair, counting the fetches.
+	 */
+	private static class StubRestTemplate extends RestTemplate {
+
+		private final AtomicInteger fetches = new AtomicInteger();
+
+		private volatile KeyPair key = KEY;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T getForObject(String url, Class<T> responseType, Object... urlVariables) {
+			fetches.incrementAndGet();
+			Map<String, String> result = new LinkedHashMap<String, String>();
+			result.put("alg", "SHA256withRSA");
+			result.put("value", "-----BEGIN PUBLIC KEY-----\n"
+					+ Base64.getEncoder().encodeToString(key.getPublic().getEncoded()) + "\n-----END PUBLIC KEY-----");
+			return (T) result;
+		}
+	}
+}
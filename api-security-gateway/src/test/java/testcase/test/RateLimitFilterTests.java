@@ -0,0 +1,121 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties.ZuulRoute;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import testcase.gateway.RateLimitFilter;
+
+public class RateLimitFilterTests {
+
+	private final RateLimitFilter filter = filter(1000);
+
+	@Test
+	public void requestsOverTheBurstOfASessionAreRejectedWithARetryHint() throws Exception {
+		MockHttpSession session = new MockHttpSession();
+		assertNotNull(filter(session, "/me").getRequest());
+		assertNotNull(filter(session, "/me").getRequest());
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/me");
+		request.setSession(session);
+		filter.doFilter(request, response, chain);
+
+		assertNull(chain.getRequest());
+		assertEquals(429, response.getStatus());
+		assertEquals("100", response.getHeader("Retry-After"));
+		// Other sessions and routes are not affected
+		assertNotNull(filter(new MockHttpSession(), "/me").getRequest());
+		assertNotNull(filter(session, "/login").getRequest());
+	}
+
+	@Test
+	public void requestsWithoutASessionAreLimitedByAddressWhateverTheirToken() throws Exception {
+		assertNotNull(filter(filter, request("10.0.0.1", null, "first")).getRequest());
+		assertNotNull(filter(filter, request("10.0.0.1", null, "second")).getRequest());
+		assertNull(filter(filter, request("10.0.0.1", null, "third")).getRequest());
+		assertNull(filter(filter, request("10.0.0.1", null, null)).getRequest());
+		// Other addresses have their own bucket
+		assertNotNull(filter(filter, request("10.0.0.2", null, "first")).getRequest());
+	}
+
+	@Test
+	public void newKeysOverTheKeyCapAreLimitedByAddress() throws Exception {
+		RateLimitFilter filter = filter(2);
+		MockHttpSession first = new MockHttpSession();
+		assertNotNull(filter(filter, request("10.0.0.1", first, null)).getRequest());
+		assertNotNull(filter(filter, request("10.0.0.1", new MockHttpSession(), null)).getRequest());
+
+		// New sessions share the bucket of their address
+		assertNotNull(filter(filter, request("10.0.0.3", new MockHttpSession(), null)).getRequest());
+		assertNotNull(filter(filter, request("10.0.0.3", new MockHttpSession(), null)).getRequest());
+		assertNull(filter(filter, request("10.0.0.3", new MockHttpSession(), null)).getRequest());
+		assertNotNull(filter(filter, request("10.0.0.4", new MockHttpSession(), null)).getRequest());
+		// The keys with a bucket keep it
+		assertNotNull(filter(filter, request("10.0.0.3", first, null)).getRequest());
+	}
+
+	private MockFilterChain filter(MockHttpSession session, String path) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+		request.setSession(session);
+		return filter(filter, request);
+	}
+
+	private static MockFilterChain filter(RateLimitFilter filter, MockHttpServletRequest request) throws Exception {
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+		return chain;
+	}
+
+	private static MockHttpServletRequest request(String address, MockHttpSession session, String token) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/me");
+		request.setRemoteAddr(address);
+		request.setSession(session);
+		if (token != null) {
+			request.addHeader("Authorization", "Bearer " + token);
+		}
+		return request;
+	}
+
+	private static RateLimitFilter filter(int maxKeys) {
+		return new RateLimitFilter(zuulProperties(), Collections.singletonMap("me",
+				new RateLimitFilter.Limit(RateLimitFilter.KeyType.SESSION, 0.01, 2, maxKeys)), new CounterService() {
+					@Override
+					public void increment(String metricName) {
+					}
+
+					@Override
+					public void decrement(String metricName) {
+					}
+
+					@Override
+					public void reset(String metricName) {
+					}
+				});
+	}
+
+	private static ZuulProperties zuulProperties() {
+		ZuulRoute me = new ZuulRoute();
+		me.setId("me");
+		me.setPath("/me/**");
+		ZuulRoute login = new ZuulRoute();
+		login.setId("login");
+		login.setPath("/login/**");
+		ZuulProperties properties = new ZuulProperties();
+		properties.getRoutes().put("me", me);
+		properties.getRoutes().put("login", login);
+		return properties;
+	}
+}
@@ -0,0 +1,61 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+
+import testcase.gateway.RefreshAheadPolicy;
+
+public class RefreshAheadPolicyTests {
+
+	@Test
+	public void tokenIsDueAfterTheRatioOfItsLifetime() throws Exception {
+		RefreshAheadPolicy policy = new RefreshAheadPolicy();
+		policy.setRefreshRatio(0.5);
+		policy.setJitterRatio(0);
+
+		DefaultOAuth2AccessToken token = token("first", 400);
+		assertTrue(policy.track(token));
+		assertFalse(policy.isDue(token));
+
+		Thread.sleep(250);
+		assertTrue(policy.isDue(token));
+
+		// Once expired it is refreshed as any expired token
+		Thread.sleep(250);
+		assertFalse(policy.isDue(token));
+
+		policy.forget(token);
+		assertEquals(0, policy.getTracked());
+	}
+
+	@Test
+	public void untrackedTokensAreNeverDue() throws Exception {
+		RefreshAheadPolicy policy = new RefreshAheadPolicy();
+		policy.setMaxTracked(1);
+
+		DefaultOAuth2AccessToken withoutRefreshToken = new DefaultOAuth2AccessToken("first");
+		withoutRefreshToken.setExpiration(new Date(System.currentTimeMillis() + 10));
+		assertFalse(policy.track(withoutRefreshToken));
+
+		assertTrue(policy.track(token("second", 10)));
+		assertFalse(policy.track(token("third", 10)));
+		assertEquals(1, policy.getTracked());
+
+		Thread.sleep(20);
+		assertFalse(policy.isDue(token("third", 10)));
+	}
+
+	private DefaultOAuth2AccessToken token(String value, long lifetime) {
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+		token.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+		token.setRefreshToken(new DefaultOAuth2RefreshToken(value + "-refresh"));
+		return token;
+	}
+}
@@ -0,0 +1,96 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.StreamUtils;
+
+import com.netflix.zuul.context.RequestContext;
+
+import testcase.gateway.RequestCollapser;
+
+public class RequestCollapserTests {
+
+	private final RequestCollapser collapser = new RequestCollapser(Collections.singleton("me"),
+			Arrays.asList("accept"), 1024, 5000, new CounterService() {
+				@Override
+				public void increment(String metricName) {
+				}
+
+				@Override
+				public void decrement(String metricName) {
+				}
+
+				@Override
+				public void reset(String metricName) {
+				}
+			});
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void identicalRequestGetsTheResponseOfTheRequestInFlight() throws Exception {
+		RequestContext leader = context("GET", "token-1");
+		assertTrue(collapser.isCollapsible(leader));
+		assertFalse(collapser.collapse(leader));
+
+		final RequestContext follower = context("GET", "token-1");
+		Future<Boolean> collapsed = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return collapser.collapse(follower);
+			}
+		});
+		leader.setResponseStatusCode(200);
+		leader.addZuulResponseHeader("Content-Type", "application/json");
+		leader.setResponseDataStream(new ByteArrayInputStream("{\"name\":\"user\"}".getBytes("UTF-8")));
+		// Let the follower join the flight before it completes
+		Thread.sleep(200);
+		collapser.complete(leader);
+
+		assertTrue(collapsed.get(5, TimeUnit.SECONDS));
+		assertFalse(follower.sendZuulResponse());
+		assertEquals(200, follower.getResponseStatusCode());
+		assertEquals("{\"name\":\"user\"}", StreamUtils.copyToString(follower.getResponseDataStream(),
+				StandardCharsets.UTF_8));
+		assertEquals("{\"name\":\"user\"}", StreamUtils.copyToString(leader.getResponseDataStream(),
+				StandardCharsets.UTF_8));
+		assertEquals(0, collapser.getInFlight());
+	}
+
+	@Test
+	public void onlySafeRequestsWithATokenAreCollapsed() {
+		assertFalse(collapser.isCollapsible(context("POST", "token-1")));
+		assertFalse(collapser.isCollapsible(context("GET", null)));
+	}
+
+	private static RequestContext context(String method, String token) {
+		RequestContext context = new RequestContext();
+		context.setRequest(new MockHttpServletRequest(method, "/me"));
+		context.set("proxy", "me");
+		if (token != null) {
+			context.addZuulRequestHeader("authorization", "Bearer " + token);
+		}
+		return context;
+	}
+}
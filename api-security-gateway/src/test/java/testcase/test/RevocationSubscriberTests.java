@@ -0,0 +1,170 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import testcase.gateway.IntrospectionCache;
+import testcase.gateway.RevocationSubscriber;
+
+public class RevocationSubscriberTests {
+
+	private final StubRestTemplate restTemplate = new StubRestTemplate();
+
+	private final RecordingCache cache = new RecordingCache();
+
+	private final RevocationSubscriber subscriber = new RevocationSubscriber(restTemplate,
+			"http://localhost:8088/oauth/revocations", cache);
+
+	@After
+	public void tearDown() {
+		subscriber.destroy();
+	}
+
+	@Test
+	public void eventsDropTheirTokensAndUsersFromTheCache() throws Exception {
+		restTemplate.responses.add(batch("epoch", 2, false, event("token", "hash"), event("user", "user")));
+		subscriber.afterPropertiesSet();
+
+		// Results cached before the first contact are not trusted
+		assertEquals("all", cache.next());
+		assertEquals("token:hash", cache.next());
+		assertEquals("user:user", cache.next());
+		assertArrayEquals(new Object[] { -1L, "", 25000L }, restTemplate.next());
+		// The next poll resumes after the events applied
+		assertArrayEquals(new Object[] { 2L, "epoch", 25000L }, restTemplate.next());
+		assertNull(cache.calls.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void cacheIsDroppedWhenEventsMayHaveBeenMissed() throws Exception {
+		restTemplate.responses.add(batch("epoch", 2, false));
+		restTemplate.responses.add(batch("epoch", 9, true));
+		restTemplate.responses.add(batch("restarted", 0, false));
+		restTemplate.responses.add(batch("restarted", 1, false, event("token", "hash")));
+		subscriber.afterPropertiesSet();
+
+		assertEquals("all", cache.next());
+		// Reset by the server
+		assertEquals("all", cache.next());
+		// The server restarted
+		assertEquals("all", cache.next());
+		assertEquals("token:hash", cache.next());
+		restTemplate.next();
+		assertArrayEquals(new Object[] { 2L, "epoch", 25000L }, restTemplate.next());
+		assertArrayEquals(new Object[] { 9L, "epoch", 25000L }, restTemplate.next());
+		assertArrayEquals(new Object[] { 0L, "restarted", 25000L }, restTemplate.next());
+	}
+
+	@Test
+	public void cacheIsDroppedOnlyOnceDisconnectedForLong() throws Exception {
+		subscriber.setRetryInterval(10);
+		subscriber.setMaxDisconnectedTime(200);
+		restTemplate.responses.add(batch("epoch", 2, false));
+		for (int i = 0; i < 10; i++) {
+			restTemplate.responses.add(new ResourceAccessException("Connection refused"));
+		}
+		long start = System.currentTimeMillis();
+		subscriber.afterPropertiesSet();
+
+		assertEquals("all", cache.next());
+		// Failed polls are retried after 10, 20, 40, 80 and 160 ms: the cache is only dropped from the 6th on
+		assertEquals("all", cache.next());
+		long dropped = System.currentTimeMillis() - start;
+		assertTrue(String.valueOf(dropped), dropped >= 200);
+		assertEquals("all", cache.next());
+	}
+
+	private static Map<String, Object> batch(String epoch, long offset, boolean reset, Object... events) {
+		Map<String, Object> batch = new LinkedHashMap<String, Object>();
+		batch.put("epoch", epoch);
+		batch.put("offset", offset);
+		batch.put("reset", reset);
+		batch.put("events", Arrays.asList(events));
+		return batch;
+	}
+
+	private static Map<String, Object> event(String type, String subject) {
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("type", type);
+		event.put("subject", subject);
+		return event;
+	}
+
+	/**
+	 * Answers each poll with the next response queued (a batch, or an exception to throw), holding it until there is
+	 * one, and records the url variables of the polls.
+	 */
+	private static class StubRestTemplate extends RestTemplate {
+
+		private final BlockingQueue<Object> responses = new LinkedBlockingQueue<Object>();
+
+		private final BlockingQueue<Object[]> polls = new LinkedBlockingQueue<Object[]>();
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> T getForObject(String url, Class<T> responseType, Object... urlVariables) {
+			polls.add(urlVariables);
+			Object response;
+			try {
+				response = responses.take();
+			}
+			catch (InterruptedException e) {
+				throw new ResourceAccessException("Interrupted");
+			}
+			if (response instanceof RuntimeException) {
+				throw (RuntimeException) response;
+			}
+			return (T) response;
+		}
+
+		private Object[] next() throws InterruptedException {
+			Object[] poll = polls.poll(1, TimeUnit.SECONDS);
+			return poll != null ? poll : new Object[0];
+		}
+	}
+
+	/**
+	 * Records the invalidations: <code>all</code>, <code>token:</code> hash and <code>user:</code> name.
+	 */
+	private static class RecordingCache extends IntrospectionCache {
+
+		private final BlockingQueue<String> calls = new LinkedBlockingQueue<String>();
+
+		private RecordingCache() {
+			super(100);
+		}
+
+		@Override
+		public void invalidate(String tokenHash) {
+			calls.add("token:" + tokenHash);
+		}
+
+		@Override
+		public void invalidateUser(String userName) {
+			calls.add("user:" + userName);
+		}
+
+		@Override
+		public void invalidateAll() {
+			calls.add("all");
+		}
+
+		private String next() throws InterruptedException {
+			return calls.poll(1, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+
+import testcase.gateway.InMemorySharedTokenStore;
+import testcase.gateway.SharedSessionFilter;
+
+public class SharedSessionFilterTests {
+
+	private final InMemorySharedTokenStore store = new InMemorySharedTokenStore();
+
+	private final SharedSessionFilter filter = new SharedSessionFilter(store, null, null);
+
+	@Test
+	public void logoutRemovesTheSharedTokenAndExpiresTheCookie() throws Exception {
+		store.storeAccessToken("session", new DefaultOAuth2AccessToken("token"));
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/logout");
+		request.setCookies(new Cookie("GATEWAY_SESSION", "session"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.logout(request, response, null);
+
+		assertNull(store.getAccessToken("session"));
+		Cookie cookie = response.getCookie("GATEWAY_SESSION");
+		assertEquals(0, cookie.getMaxAge());
+		assertEquals("/", cookie.getPath());
+		assertTrue(cookie.getSecure());
+	}
+
+	@Test
+	public void logoutUsesTheKeyOfTheSession() throws Exception {
+		store.storeAccessToken("session", new DefaultOAuth2AccessToken("token"));
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/logout");
+		request.getSession().setAttribute(SharedSessionFilter.KEY_ATTRIBUTE, "session");
+
+		filter.logout(request, new MockHttpServletResponse(), null);
+
+		assertNull(store.getAccessToken("session"));
+	}
+
+	@Test
+	public void secureCookieCanBeTurnedOffForPlainHttp() throws Exception {
+		filter.setSecureCookie(false);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.logout(new MockHttpServletRequest("POST", "/logout"), response, null);
+		assertFalse(response.getCookie("GATEWAY_SESSION").getSecure());
+
+		MockHttpServletRequest https = new MockHttpServletRequest("POST", "/logout");
+		https.setSecure(true);
+		response = new MockHttpServletResponse();
+		filter.logout(https, response, null);
+		assertTrue(response.getCookie("GATEWAY_SESSION").getSecure());
+	}
+}
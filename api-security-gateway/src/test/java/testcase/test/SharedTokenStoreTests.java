@@ -0,0 +1,72 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+
+import testcase.gateway.InMemorySharedTokenStore;
+import testcase.gateway.JdbcSharedTokenStore;
+import testcase.gateway.SharedTokenStore;
+
+public class SharedTokenStoreTests {
+
+	@Test
+	public void inMemoryStore() throws Exception {
+		verify(new InMemorySharedTokenStore());
+	}
+
+	@Test
+	public void jdbcStore() throws Exception {
+		EmbeddedDatabase database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+				.generateUniqueName(true).build();
+		try {
+			JdbcSharedTokenStore store = new JdbcSharedTokenStore(database);
+			store.initialize();
+			verify(store);
+		}
+		finally {
+			database.shutdown();
+		}
+	}
+
+	private void verify(SharedTokenStore store) throws InterruptedException {
+		assertNull(store.getAccessToken("session"));
+
+		// The lease can be taken before any token is stored for the session
+		assertTrue(store.acquireLease("session", "node-1", 10000));
+		assertTrue(store.acquireLease("session", "node-1", 10000));
+		assertFalse(store.acquireLease("session", "node-2", 10000));
+
+		store.storeAccessToken("session", new DefaultOAuth2AccessToken("first"));
+		store.storeAccessToken("session", new DefaultOAuth2AccessToken("second"));
+		assertEquals("second", store.getAccessToken("session").getValue());
+
+		store.releaseLease("session", "node-2");
+		assertFalse(store.acquireLease("session", "node-2", 10000));
+		store.releaseLease("session", "node-1");
+		assertTrue(store.acquireLease("session", "node-2", 50));
+
+		// An expired lease is taken over
+		Thread.sleep(100);
+		assertTrue(store.acquireLease("session", "node-1", 10000));
+
+		// A failed lease is released and recorded for the instances waiting
+		assertEquals(0, store.getLeaseFailure("session"));
+		store.failLease("session", "node-2");
+		assertEquals(0, store.getLeaseFailure("session"));
+		long failedAfter = System.currentTimeMillis();
+		store.failLease("session", "node-1");
+		assertTrue(store.getLeaseFailure("session") >= failedAfter);
+		assertTrue(store.acquireLease("session", "node-2", 10000));
+
+		store.removeAccessToken("session");
+		assertNull(store.getAccessToken("session"));
+	}
+}
@@ -0,0 +1,35 @@
+package testcase.test;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import testcase.startup.StartupTimings;
+
+/**
+ * Starts the gateway in fast startup mode (random ports, the authorization server is not needed to start) and checks
+ * it is up within the startup budget: gateway.startup.budget millis, a system property (default 20000).
+ */
+public class StartupTimeTests {
+
+	@Test
+	public void fastStartupIsWithinBudget() {
+		long budget = Long.getLong("gateway.startup.budget", 20000);
+		long start = System.currentTimeMillis();
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(testcase.gateway.Application.class)
+				.run("--server.port=0", "--management.port=0", "--debug=false",
+						"--gateway.startup.lazyInit.enabled=true", "--gateway.introspection.revocation.enabled=false");
+		try {
+			long time = System.currentTimeMillis() - start;
+			StartupTimings timings = context.getBean(StartupTimings.class);
+			assertTrue("Started in " + time + " ms, over the " + budget + " ms budget\n" + timings.report(10),
+					time < budget);
+			assertTrue(context.getBeanFactory().getBeanDefinition("tokenMetrics").isLazyInit());
+		}
+		finally {
+			context.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties.ZuulRoute;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import testcase.gateway.StreamingRequestFilter;
+import testcase.gateway.StreamingRoutes;
+
+public class StreamingRequestFilterTests {
+
+	private final StreamingRequestFilter filter = new StreamingRequestFilter(
+			new StreamingRoutes(zuulProperties(), Collections.singleton("login")));
+
+	@Test
+	public void formBodyOfStreamingRouteIsNotParsed() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/login/token");
+		request.setContentType("application/x-www-form-urlencoded");
+		request.setQueryString("client=spa&scope=a+b");
+		request.setContent("grant_type=password".getBytes("UTF-8"));
+		request.addParameter("grant_type", "password");
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		HttpServletRequest filtered = (HttpServletRequest) chain.getRequest();
+		assertNull(filtered.getContentType());
+		assertNull(filtered.getParameter("grant_type"));
+		assertEquals("a b", filtered.getParameter("scope"));
+		assertEquals("application/x-www-form-urlencoded", filtered.getHeader("Content-Type"));
+		assertArrayEquals("grant_type=password".getBytes("UTF-8"),
+				StreamUtils.copyToByteArray(filtered.getInputStream()));
+	}
+
+	@Test
+	public void otherRoutesAreLeftAlone() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/me/details");
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		assertSame(request, chain.getRequest());
+	}
+
+	private static ZuulProperties zuulProperties() {
+		ZuulRoute login = new ZuulRoute();
+		login.setId("login");
+		login.setPath("/login/**");
+		ZuulRoute me = new ZuulRoute();
+		me.setId("me");
+		me.setPath("/me/**");
+		ZuulProperties properties = new ZuulProperties();
+		properties.getRoutes().put("login", login);
+		properties.getRoutes().put("me", me);
+		return properties;
+	}
+}
@@ -0,0 +1,257 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.netflix.zuul.filters.ProxyRequestHelper;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties;
+import org.springframework.cloud.netflix.zuul.filters.ZuulProperties.ZuulRoute;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import com.netflix.zuul.context.RequestContext;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import testcase.gateway.BufferPool;
+import testcase.gateway.StreamingRoutes;
+import testcase.gateway.StreamingRoutingFilter;
+
+/**
+ * Runs {@link StreamingRoutingFilter}, with buffers smaller than the bodies, against a local upstream server.
+ */
+public class StreamingRoutingFilterTests {
+
+	private static final byte[] BODY = "A body longer than the 16 bytes of a buffer".getBytes(StandardCharsets.UTF_8);
+
+	private final StreamingRoutingFilter filter = new StreamingRoutingFilter(new ProxyRequestHelper(),
+			new StreamingRoutes(zuulProperties(), Collections.singleton("login")), new BufferPool(16, 4),
+			StreamingRoutingFilter.createHttpClient(10, 10, 1000, 1000, 30000));
+
+	private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+	private HttpServer upstream;
+
+	private volatile HttpExchange exchange;
+
+	private volatile byte[] received;
+
+	@Before
+	public void setUp() throws IOException {
+		upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		upstream.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				received = StreamUtils.copyToByteArray(exchange.getRequestBody());
+				StreamingRoutingFilterTests.this.exchange = exchange;
+				Headers headers = exchange.getResponseHeaders();
+				headers.add("Content-Encoding", "gzip");
+				headers.add("X-Upstream", "yes");
+				headers.add("Connection", "keep-alive");
+				exchange.sendResponseHeaders(201, BODY.length);
+				exchange.getResponseBody().write(BODY);
+				exchange.close();
+			}
+		});
+		upstream.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		upstream.stop(0);
+		filter.destroy();
+		RequestContext.getCurrentContext().unset();
+	}
+
+	@Test
+	public void onlyStreamingRoutesAreFiltered() throws Exception {
+		route(new MockHttpServletRequest("GET", "/login/token"), "/token", upstreamUrl("/base"));
+		assertTrue(filter.shouldFilter());
+		RequestContext.getCurrentContext().set("proxy", "me");
+		assertFalse(filter.shouldFilter());
+	}
+
+	@Test
+	public void upstreamUriIsTheStrippedPathUnderTheRouteUrlWithTheQuery() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/token/a%20b");
+		request.setQueryString("client=spa&scope=a+b");
+		// As set by the Zuul pre decoration filter for a route stripping its prefix
+		route(request, "/token/a b", upstreamUrl("/base/"));
+
+		filter.run();
+
+		assertEquals("GET", exchange.getRequestMethod());
+		assertEquals("/base/token/a%20b", exchange.getRequestURI().getRawPath());
+		assertEquals(new HashSet<String>(Arrays.asList("client=spa", "scope=a b")),
+				new HashSet<String>(Arrays.asList(exchange.getRequestURI().getQuery().split("&"))));
+		assertEquals(0, received.length);
+	}
+
+	@Test
+	public void bodyOfUnknownLengthIsSentChunked() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/login/token") {
+			@Override
+			public int getContentLength() {
+				return -1;
+			}
+		};
+		request.addHeader("Transfer-Encoding", "chunked");
+		request.addHeader("Content-Type", "application/x-www-form-urlencoded");
+		request.setContent(BODY);
+		route(request, "/token", upstreamUrl(""));
+
+		filter.run();
+
+		assertEquals("POST", exchange.getRequestMethod());
+		assertEquals("chunked", exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+		assertNull(exchange.getRequestHeaders().getFirst("Content-Length"));
+		assertEquals("application/x-www-form-urlencoded", exchange.getRequestHeaders().getFirst("Content-Type"));
+		assertArrayEquals(BODY, received);
+	}
+
+	@Test
+	public void bodyOfKnownLengthIsSentAsIs() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/login/token");
+		request.addHeader("Content-Encoding", "gzip");
+		request.addHeader("Accept-Encoding", "identity");
+		request.setContent(BODY);
+		route(request, "/token", upstreamUrl(""));
+
+		filter.run();
+
+		assertEquals(String.valueOf(BODY.length), exchange.getRequestHeaders().getFirst("Content-Length"));
+		assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+		// The client's, not the gzip the Zuul helper asks for
+		assertEquals("identity", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+		assertArrayEquals(BODY, received);
+	}
+
+	@Test
+	public void responseIsCopiedWithItsLengthAndEncoding() throws Exception {
+		route(new MockHttpServletRequest("GET", "/login/token"), "/token", upstreamUrl(""));
+		RequestContext.getCurrentContext().addZuulResponseHeader("X-Gateway", "yes");
+
+		filter.run();
+
+		assertFalse(RequestContext.getCurrentContext().sendZuulResponse());
+		assertEquals(201, response.getStatus());
+		assertEquals(String.valueOf(BODY.length), response.getHeader("Content-Length"));
+		// Not decoded
+		assertEquals("gzip", response.getHeader("Content-Encoding"));
+		assertArrayEquals(BODY, response.getContentAsByteArray());
+		assertEquals("yes", response.getHeader("X-Upstream"));
+		assertEquals("yes", response.getHeader("X-Gateway"));
+		// Hop by hop
+		assertNull(response.getHeader("Connection"));
+		assertNull(response.getHeader("Transfer-Encoding"));
+		assertNull(RequestContext.getCurrentContext().get("error.status_code"));
+	}
+
+	@Test
+	public void failureBeforeTheResponseIsCommittedIsAnError() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		closed.close();
+		route(new MockHttpServletRequest("GET", "/login/token"), "/token",
+				new URL("http://localhost:" + closed.getLocalPort()));
+
+		filter.run();
+
+		assertEquals(500, RequestContext.getCurrentContext().get("error.status_code"));
+		assertTrue(RequestContext.getCurrentContext().get("error.exception") instanceof IOException);
+		assertFalse(response.isCommitted());
+	}
+
+	@Test
+	public void failureOnceTheResponseIsCommittedOnlyEndsIt() throws Exception {
+		// Announces 1000 bytes, sends BODY and closes the connection
+		final ServerSocket truncating = new ServerSocket(0, 1, null);
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = truncating.accept();
+					// Read the whole request so that closing the socket does not reset the connection
+					InputStream in = socket.getInputStream();
+					StringBuilder request = new StringBuilder();
+					int read;
+					while (request.indexOf("\r\n\r\n") < 0 && (read = in.read()) != -1) {
+						request.append((char) read);
+					}
+					OutputStream out = socket.getOutputStream();
+					out.write("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+					out.write(BODY);
+					out.flush();
+					socket.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		});
+		server.start();
+		response.setBufferSize(BODY.length / 2);
+		route(new MockHttpServletRequest("GET", "/login/token"), "/token",
+				new URL("http://localhost:" + truncating.getLocalPort()));
+
+		try {
+			filter.run();
+		}
+		finally {
+			server.join(1000);
+			truncating.close();
+		}
+
+		assertTrue(response.isCommitted());
+		assertEquals(200, response.getStatus());
+		assertArrayEquals(BODY, response.getContentAsByteArray());
+		assertNull(RequestContext.getCurrentContext().get("error.status_code"));
+	}
+
+	private void route(MockHttpServletRequest request, String requestUri, URL routeHost) {
+		RequestContext context = RequestContext.getCurrentContext();
+		context.setRequest(request);
+		context.setResponse(response);
+		context.setRouteHost(routeHost);
+		context.set("proxy", "login");
+		context.set("requestURI", requestUri);
+	}
+
+	private URL upstreamUrl(String path) throws IOException {
+		return new URL("http://localhost:" + upstream.getAddress().getPort() + path);
+	}
+
+	private static ZuulProperties zuulProperties() {
+		ZuulRoute login = new ZuulRoute();
+		login.setId("login");
+		login.setPath("/login/**");
+		login.setUrl("http://localhost:8088/uaa");
+		ZuulRoute me = new ZuulRoute();
+		me.setId("me");
+		me.setPath("/me/**");
+		me.setUrl("http://localhost:9000");
+		ZuulProperties properties = new ZuulProperties();
+		properties.getRoutes().put("login", login);
+		properties.getRoutes().put("me", me);
+		return properties;
+	}
+}
@@ -0,0 +1,90 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.dropwizard.DropwizardMetricServices;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.codahale.metrics.MetricRegistry;
+
+import testcase.gateway.TokenMetrics;
+
+public class TokenMetricsTests {
+
+	private final MetricRegistry metricRegistry = new MetricRegistry();
+
+	private final TokenMetrics tokenMetrics = new TokenMetrics(new DropwizardMetricServices(metricRegistry),
+			metricRegistry);
+
+	@Test
+	public void durationsAreRecordedInNanoseconds() {
+		// 1.5 ms ago, 1 ms once truncated to whole milliseconds
+		tokenMetrics.checkToken(System.nanoTime() - 1500000);
+
+		assertEquals(1, metricRegistry.timer("timer.gateway.checktoken").getCount());
+		long recorded = metricRegistry.timer("timer.gateway.checktoken").getSnapshot().getMax();
+		assertTrue(String.valueOf(recorded), recorded >= 1500000 && recorded < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void timersAreNamedAfterWhatTheyTime() {
+		long start = tokenMetrics.start();
+		tokenMetrics.checkTokenFailed(start, new ResourceAccessException("Read timed out"));
+		tokenMetrics.tokenObtained(start, false);
+		tokenMetrics.tokenObtained(start, true);
+		tokenMetrics.tokenObtained(start, true);
+		tokenMetrics.refreshedAhead(start);
+
+		assertEquals(
+				new HashSet<String>(Arrays.asList("timer.gateway.checktoken", "timer.gateway.token.obtain",
+						"timer.gateway.token.refresh", "timer.gateway.token.refreshAhead")),
+				metricRegistry.getTimers().keySet());
+		assertEquals(1, metricRegistry.timer("timer.gateway.checktoken").getCount());
+		assertEquals(1, metricRegistry.timer("timer.gateway.token.obtain").getCount());
+		assertEquals(2, metricRegistry.timer("timer.gateway.token.refresh").getCount());
+		assertEquals(1, metricRegistry.timer("timer.gateway.token.refreshAhead").getCount());
+	}
+
+	@Test
+	public void countersAreNamedAfterTheCauseOrTheServerValue() {
+		tokenMetrics.checkTokenFailed(tokenMetrics.start(), new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+		tokenMetrics.checkTokenFailed(tokenMetrics.start(), new ResourceAccessException("Read timed out"));
+		tokenMetrics.checkTokenRejected("invalid_token");
+		tokenMetrics.checkTokenRejected("Invalid Token!");
+		tokenMetrics.tokenFailed(new IllegalStateException());
+		tokenMetrics.refreshCollision();
+		tokenMetrics.refreshCollision();
+		tokenMetrics.sharedTokenUsed();
+		tokenMetrics.revocationReceived("token");
+		tokenMetrics.revocationReceived("a.very.long.event.type.sent.by.a.misbehaving.server");
+		tokenMetrics.revocationFeedFailed(new ResourceAccessException("Connection refused"));
+		tokenMetrics.badTokenRetry();
+
+		assertCount("counter.gateway.checktoken.failed.401", 1);
+		assertCount("counter.gateway.checktoken.failed.ResourceAccessException", 1);
+		assertCount("counter.gateway.checktoken.rejected.invalid_token", 1);
+		assertCount("counter.gateway.checktoken.rejected.invalid_token_", 1);
+		assertCount("counter.gateway.token.failed.IllegalStateException", 1);
+		assertCount("counter.gateway.token.refresh.collision", 2);
+		assertCount("counter.gateway.token.shared.used", 1);
+		assertCount("counter.gateway.revocation.received.token", 1);
+		assertCount("counter.gateway.revocation.received.a_very_long_event_type_sent_by_a", 1);
+		assertCount("counter.gateway.revocation.failed.ResourceAccessException", 1);
+		assertCount("counter.gateway.token.retry", 1);
+		assertEquals(11, metricRegistry.getCounters().size());
+	}
+
+	private void assertCount(String name, long count) {
+		assertTrue(name + " not in " + metricRegistry.getCounters().keySet(),
+				metricRegistry.getCounters().containsKey(name));
+		assertEquals(count, metricRegistry.getCounters().get(name).getCount());
+	}
+}
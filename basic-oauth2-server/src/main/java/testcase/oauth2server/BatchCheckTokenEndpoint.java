@@ -0,0 +1,56 @@
+package testcase.oauth2server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.endpoint.CheckTokenEndpoint;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * This endpoint introspects several tokens in one call so that a gateway can batch its check_token requests
+ */
+@RestController
+public class BatchCheckTokenEndpoint {
+
+	@Autowired
+	private CheckTokenEndpoint checkTokenEndpoint;
+
+	@Value("${oauth.checkTokenBatch.maxTokens:500}")
+	private int maxTokens;
+
+	/**
+	 * Introspect every token given as a "token" form parameter
+	 * @param tokens the token values
+	 * @return one check_token response per token, in the order of the request. Tokens that are not valid get the
+	 * same error body /oauth/check_token would return for them
+	 */
+	@RequestMapping(value = "/oauth/check_token/batch", method = RequestMethod.POST)
+	public ResponseEntity<List<Map<String, ?>>> checkTokens(@RequestParam("token") List<String> tokens) {
+		if (tokens.size() > maxTokens) {
+			return new ResponseEntity<List<Map<String, ?>>>(HttpStatus.PAYLOAD_TOO_LARGE);
+		}
+		List<Map<String, ?>> results = new ArrayList<Map<String, ?>>(tokens.size());
+		for (String value : tokens) {
+			try {
+				results.add(checkTokenEndpoint.checkToken(value));
+			}
+			catch (InvalidTokenException e) {
+				Map<String, String> error = new LinkedHashMap<String, String>();
+				error.put("error", e.getOAuth2ErrorCode());
+				error.put("error_description", e.getMessage());
+				results.add(error);
+			}
+		}
+		return new ResponseEntity<List<Map<String, ?>>>(results, HttpStatus.OK);
+	}
+}
@@ -0,0 +1,64 @@
+package testcase.oauth2server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.ClientRegistrationException;
+
+/**
+ * Read-through cache in front of a {@link ClientDetailsService}: client details are looked up several times per
+ * grant (client authentication, token request, token services), and they change rarely, so a database backed
+ * service would otherwise pay a query per lookup. Entries are reloaded once older than the time to live, so changes
+ * made in the database (or on another server) show up after at most that long. Unknown clients are not cached.
+ */
+public class CachingClientDetailsService implements ClientDetailsService {
+
+	private static final class Entry {
+
+		private final ClientDetails clientDetails;
+
+		private final long loaded;
+
+		private Entry(ClientDetails clientDetails, long loaded) {
+			this.clientDetails = clientDetails;
+			this.loaded = loaded;
+		}
+	}
+
+	private final ClientDetailsService delegate;
+
+	private final long timeToLive;
+
+	private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @param timeToLive how long in seconds client details are served from the cache
+	 */
+	public CachingClientDetailsService(ClientDetailsService delegate, long timeToLive) {
+		this.delegate = delegate;
+		this.timeToLive = TimeUnit.SECONDS.toNanos(timeToLive);
+	}
+
+	@Override
+	public ClientDetails loadClientByClientId(String clientId) throws ClientRegistrationException {
+		long now = System.nanoTime();
+		Entry entry = cache.get(clientId);
+		if (entry != null && now - entry.loaded < timeToLive) {
+			return entry.clientDetails;
+		}
+		// Concurrent misses may load the same client twice, which is cheaper than making them wait on each other
+		ClientDetails clientDetails = delegate.loadClientByClientId(clientId);
+		cache.put(clientId, new Entry(clientDetails, now));
+		return clientDetails;
+	}
+
+	/**
+	 * Drop a client from the cache, e.g. after updating it.
+	 */
+	public void evict(String clientId) {
+		cache.remove(clientId);
+	}
+}
@@ -0,0 +1,43 @@
+package testcase.oauth2server;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.provider.endpoint.CheckTokenEndpoint;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Serve /oauth/check_token responses from serialized bytes computed once per token (enabled with
+ * oauth.checkToken.cache.enabled=true), see {@link CheckTokenResponseCache}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "oauth.checkToken.cache", name = "enabled")
+public class CheckTokenCacheConfiguration {
+
+	@Value("${oauth.checkToken.cache.maxEntries:100000}")
+	private int maxEntries;
+
+	@Value("${oauth.checkToken.cache.timeToLive:60}")
+	private long timeToLive;
+
+	@Bean
+	public CheckTokenResponseCache checkTokenResponseCache() {
+		return new CheckTokenResponseCache(maxEntries, timeToLive);
+	}
+
+	@Bean
+	public FilterRegistrationBean checkTokenResponseFilter(CheckTokenEndpoint checkTokenEndpoint,
+			ObjectMapper objectMapper, CounterService counterService) {
+		FilterRegistrationBean registration = new FilterRegistrationBean(new CheckTokenResponseFilter(
+				checkTokenResponseCache(), checkTokenEndpoint, objectMapper, counterService));
+		registration.addUrlPatterns("/oauth/check_token");
+		// After Spring Security, which applies the check_token access rule
+		registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER + 1);
+		return registration;
+	}
+}
@@ -0,0 +1,144 @@
+package testcase.oauth2server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Serialized /oauth/check_token responses by access token value, so introspecting the same token again is a map
+ * lookup and a write of the bytes (see {@link CheckTokenResponseFilter}). The response only depends on the token and
+ * its authentication, and its <code>exp</code> is absolute, so the bytes stay correct until the token expires (when
+ * the entry is dropped) or is removed from the token store, which {@link #evicting(TokenStore)} reports here.
+ * <p>
+ * Removals made by another server sharing the token store are not seen, so entries also have a time to live. The
+ * cache is bounded: when full, responses are computed but not cached.
+ */
+public class CheckTokenResponseCache {
+
+	private static final class Entry {
+
+		private final byte[] body;
+
+		private final long expiresAt;
+
+		private Entry(byte[] body, long expiresAt) {
+			this.body = body;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final ConcurrentMap<String, String> accessTokensByRefreshToken = new ConcurrentHashMap<String, String>();
+
+	private final int maxEntries;
+
+	private final long timeToLive;
+
+	private volatile TokenStore tokenStore;
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * @param maxEntries maximum number of cached responses
+	 * @param timeToLive maximum time in seconds a response is cached, whatever the token expiry
+	 */
+	public CheckTokenResponseCache(int maxEntries, long timeToLive) {
+		this.maxEntries = maxEntries;
+		this.timeToLive = TimeUnit.SECONDS.toMillis(timeToLive);
+	}
+
+	/**
+	 * Decorate the token store used by the token services so that removed tokens are dropped from the cache.
+	 */
+	public TokenStore evicting(TokenStore tokenStore) {
+		this.tokenStore = tokenStore;
+		return new EvictingTokenStore(tokenStore, this);
+	}
+
+	/**
+	 * @return the cached response for the token, or null
+	 */
+	public byte[] get(String token) {
+		Entry entry = entries.get(token);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= entry.expiresAt) {
+			entries.remove(token, entry);
+			return null;
+		}
+		return entry.body;
+	}
+
+	/**
+	 * Cache the response for a token.
+	 *
+	 * @param response the check_token response the body was serialized from
+	 */
+	public void put(String token, Map<String, ?> response, byte[] body) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		if (entries.size() >= maxEntries) {
+			return;
+		}
+		long expiresAt = now + timeToLive;
+		Object exp = response.get("exp");
+		if (exp instanceof Number) {
+			expiresAt = Math.min(expiresAt, TimeUnit.SECONDS.toMillis(((Number) exp).longValue()));
+		}
+		entries.put(token, new Entry(body, expiresAt));
+		TokenStore tokenStore = this.tokenStore;
+		if (tokenStore == null) {
+			return;
+		}
+		// Read after caching: a token removed while its response was computed is not left in the cache
+		OAuth2AccessToken accessToken = tokenStore.readAccessToken(token);
+		if (accessToken == null) {
+			evict(token);
+		}
+		else if (accessToken.getRefreshToken() != null) {
+			accessTokensByRefreshToken.put(accessToken.getRefreshToken().getValue(), token);
+		}
+	}
+
+	public void evict(String token) {
+		entries.remove(token);
+	}
+
+	public void evictUsingRefreshToken(String refreshToken) {
+		String token = accessTokensByRefreshToken.remove(refreshToken);
+		if (token != null) {
+			evict(token);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drop expired entries (and the refresh token links to them), at most once per second.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < 1000) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (now >= it.next().expiresAt) {
+				it.remove();
+			}
+		}
+		for (Iterator<String> it = accessTokensByRefreshToken.values().iterator(); it.hasNext();) {
+			if (!entries.containsKey(it.next())) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package testcase.oauth2server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.http.MediaType;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.endpoint.CheckTokenEndpoint;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Answers /oauth/check_token from the {@link CheckTokenResponseCache}: a cached token gets its stored bytes, a
+ * token seen for the first time is introspected by the framework's {@link CheckTokenEndpoint}, serialized once and
+ * cached. Invalid tokens get the error the endpoint answers with (400 invalid_token) from here, rather than being
+ * introspected a second time by the endpoint. Runs after the security filters, so the check_token access rule still
+ * applies. Hits and misses are counted as counter.oauth.checkToken.cache.*.
+ */
+public class CheckTokenResponseFilter extends OncePerRequestFilter {
+
+	private final CheckTokenResponseCache cache;
+
+	private final CheckTokenEndpoint checkTokenEndpoint;
+
+	private final ObjectMapper objectMapper;
+
+	private final CounterService counterService;
+
+	public CheckTokenResponseFilter(CheckTokenResponseCache cache, CheckTokenEndpoint checkTokenEndpoint,
+			ObjectMapper objectMapper, CounterService counterService) {
+		this.cache = cache;
+		this.checkTokenEndpoint = checkTokenEndpoint;
+		this.objectMapper = objectMapper;
+		this.counterService = counterService;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		String token = request.getParameter("token");
+		if (token == null) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		byte[] body = cache.get(token);
+		if (body != null) {
+			counterService.increment("oauth.checkToken.cache.hit");
+		}
+		else {
+			counterService.increment("oauth.checkToken.cache.miss");
+			Map<String, ?> result;
+			try {
+				result = checkTokenEndpoint.checkToken(token);
+			}
+			catch (InvalidTokenException e) {
+				// As CheckTokenEndpoint.handleException: the client authenticated, so a 400 rather than a 401
+				response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+				response.setHeader("Cache-Control", "no-store");
+				response.setHeader("Pragma", "no-cache");
+				write(response, objectMapper.writeValueAsBytes(e));
+				return;
+			}
+			body = objectMapper.writeValueAsBytes(result);
+			cache.put(token, result, body);
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		write(response, body);
+	}
+
+	private void write(HttpServletResponse response, byte[] body) throws IOException {
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+}
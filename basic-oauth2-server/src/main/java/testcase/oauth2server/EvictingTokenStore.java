@@ -0,0 +1,31 @@
+package testcase.oauth2server;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Token store decorator dropping the cached check_token responses of the access tokens it removes (revoked, expired,
+ * replaced by a refresh grant), see {@link CheckTokenResponseCache#evicting(TokenStore)}.
+ */
+public class EvictingTokenStore extends ForwardingTokenStore {
+
+	private final CheckTokenResponseCache cache;
+
+	public EvictingTokenStore(TokenStore delegate, CheckTokenResponseCache cache) {
+		super(delegate);
+		this.cache = cache;
+	}
+
+	@Override
+	public void removeAccessToken(OAuth2AccessToken token) {
+		delegate.removeAccessToken(token);
+		cache.evict(token.getValue());
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+		delegate.removeAccessTokenUsingRefreshToken(refreshToken);
+		cache.evictUsingRefreshToken(refreshToken.getValue());
+	}
+}
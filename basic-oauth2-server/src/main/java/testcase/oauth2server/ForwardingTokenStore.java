@@ -0,0 +1,85 @@
+package testcase.oauth2server;
+
+import java.util.Collection;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Token store passing every call to another one, base of the decorators reacting to token removals.
+ */
+public abstract class ForwardingTokenStore implements TokenStore {
+
+	protected final TokenStore delegate;
+
+	protected ForwardingTokenStore(TokenStore delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void removeAccessToken(OAuth2AccessToken token) {
+		delegate.removeAccessToken(token);
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+		delegate.removeAccessTokenUsingRefreshToken(refreshToken);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(OAuth2AccessToken token) {
+		return delegate.readAuthentication(token);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(String token) {
+		return delegate.readAuthentication(token);
+	}
+
+	@Override
+	public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		delegate.storeAccessToken(token, authentication);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String tokenValue) {
+		return delegate.readAccessToken(tokenValue);
+	}
+
+	@Override
+	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		delegate.storeRefreshToken(refreshToken, authentication);
+	}
+
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String tokenValue) {
+		return delegate.readRefreshToken(tokenValue);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthenticationForRefreshToken(OAuth2RefreshToken token) {
+		return delegate.readAuthenticationForRefreshToken(token);
+	}
+
+	@Override
+	public void removeRefreshToken(OAuth2RefreshToken token) {
+		delegate.removeRefreshToken(token);
+	}
+
+	@Override
+	public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
+		return delegate.getAccessToken(authentication);
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientIdAndUserName(String clientId, String userName) {
+		return delegate.findTokensByClientIdAndUserName(clientId, userName);
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+		return delegate.findTokensByClientId(clientId);
+	}
+}
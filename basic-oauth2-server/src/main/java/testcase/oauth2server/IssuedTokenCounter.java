@@ -0,0 +1,29 @@
+package testcase.oauth2server;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenEnhancer;
+
+/**
+ * Counts the access tokens issued by the server, published as counter.oauth.tokens.issued (all grants) and
+ * counter.oauth.tokens.issued.refresh (refresh grant only) in /metrics. Lets load tests check how many tokens a
+ * burst of concurrent requests on an expired token really produced.
+ */
+public class IssuedTokenCounter implements TokenEnhancer {
+
+	private final CounterService counterService;
+
+	public IssuedTokenCounter(CounterService counterService) {
+		this.counterService = counterService;
+	}
+
+	@Override
+	public OAuth2AccessToken enhance(OAuth2AccessToken accessToken, OAuth2Authentication authentication) {
+		counterService.increment("oauth.tokens.issued");
+		if (authentication.getOAuth2Request().isRefresh()) {
+			counterService.increment("oauth.tokens.issued.refresh");
+		}
+		return accessToken;
+	}
+}
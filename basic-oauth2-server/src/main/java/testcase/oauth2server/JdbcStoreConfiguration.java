@@ -0,0 +1,64 @@
+package testcase.oauth2server;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.client.JdbcClientDetailsService;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Keep tokens and clients in the database of spring.datasource (enabled with oauth.tokenStore.type=jdbc), so several
+ * authorization servers can share them. Defaults to an embedded H2 database; point spring.datasource.url at a shared
+ * one to run more than one server. See {@link WriteBehindJdbcTokenStore} and {@link CachingClientDetailsService}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "oauth.tokenStore", name = "type", havingValue = "jdbc")
+public class JdbcStoreConfiguration {
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Value("${oauth.tokenStore.jdbc.initialize:true}")
+	private boolean initialize;
+
+	@Value("${oauth.tokenStore.jdbc.queueCapacity:10000}")
+	private int queueCapacity;
+
+	@Value("${oauth.tokenStore.jdbc.batchSize:200}")
+	private int batchSize;
+
+	@Value("${oauth.tokenStore.jdbc.clientCacheTimeToLive:60}")
+	private long clientCacheTimeToLive;
+
+	@Bean
+	public TokenStore tokenStore() {
+		if (initialize) {
+			ResourceDatabasePopulator populator = new ResourceDatabasePopulator(new ClassPathResource("oauth-schema.sql"));
+			DatabasePopulatorUtils.execute(populator, dataSource);
+			// The client may already be there (shared or persistent database)
+			populator = new ResourceDatabasePopulator(new ClassPathResource("oauth-data.sql"));
+			populator.setContinueOnError(true);
+			DatabasePopulatorUtils.execute(populator, dataSource);
+		}
+		WriteBehindJdbcTokenStore tokenStore = new WriteBehindJdbcTokenStore(dataSource);
+		tokenStore.setQueueCapacity(queueCapacity);
+		tokenStore.setBatchSize(batchSize);
+		return tokenStore;
+	}
+
+	/**
+	 * Not a bean: @EnableAuthorizationServer registers its own ClientDetailsService (built from this one, see
+	 * {@link OAuthConfiguration}) and expects it to be the only one.
+	 */
+	public ClientDetailsService clientDetailsService() {
+		return new CachingClientDetailsService(new JdbcClientDetailsService(dataSource), clientCacheTimeToLive);
+	}
+}
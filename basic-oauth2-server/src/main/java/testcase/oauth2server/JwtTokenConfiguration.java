@@ -0,0 +1,55 @@
+package testcase.oauth2server;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.KeyStoreKeyFactory;
+
+/**
+ * Issue access tokens as RSA signed JWTs (enabled with oauth.jwt.enabled=true). Resource servers can then validate
+ * them locally with the public key published at /oauth/token_key instead of calling /oauth/check_token.
+ * 
+ * All the nodes of the authorization server must sign with the same key, so configure a keystore in real scenarios;
+ * without one a key pair is generated at startup and tokens issued before a restart are no longer valid.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "oauth.jwt", name = "enabled")
+public class JwtTokenConfiguration {
+
+	private static final Log logger = LogFactory.getLog(JwtTokenConfiguration.class);
+
+	@Value("${oauth.jwt.keyStore:}")
+	private Resource keyStore;
+
+	@Value("${oauth.jwt.keyStorePassword:}")
+	private String keyStorePassword;
+
+	@Value("${oauth.jwt.keyAlias:oauth-server}")
+	private String keyAlias;
+
+	@Bean
+	public JwtAccessTokenConverter jwtAccessTokenConverter() throws NoSuchAlgorithmException {
+		JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
+		converter.setKeyPair(keyPair());
+		return converter;
+	}
+
+	private KeyPair keyPair() throws NoSuchAlgorithmException {
+		if (keyStore != null && keyStore.exists()) {
+			return new KeyStoreKeyFactory(keyStore, keyStorePassword.toCharArray()).getKeyPair(keyAlias);
+		}
+		logger.warn("No oauth.jwt.keyStore configured: signing JWT access tokens with a generated key pair");
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+}
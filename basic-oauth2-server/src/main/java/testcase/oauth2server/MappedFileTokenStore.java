@@ -0,0 +1,226 @@
+package testcase.oauth2server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Token store keeping tokens off-heap in a {@link MappedRecordFile}, so they survive restarts (the files are just
+ * mapped again) and do not add to the heap the garbage collector has to walk as the number of live tokens grows.
+ * <p>
+ * Record kinds: access tokens and refresh tokens by value, each stored with its authentication (serialized like the
+ * JdbcTokenStore does), plus small links from authentication key and from refresh token to access token value.
+ * Access token records expire with the token and are dropped on the next compaction. Lookups by client or user
+ * scan the access tokens; they are meant for administration, not for the grant path.
+ */
+public class MappedFileTokenStore implements TokenStore, DisposableBean {
+
+	private static final byte ACCESS = 'A';
+
+	private static final byte REFRESH = 'R';
+
+	private static final byte AUTHENTICATION_TO_ACCESS = 'K';
+
+	private static final byte REFRESH_TO_ACCESS = 'L';
+
+	private final MappedRecordFile records;
+
+	private AuthenticationKeyGenerator authenticationKeyGenerator = new DefaultAuthenticationKeyGenerator();
+
+	public MappedFileTokenStore(MappedRecordFile records) {
+		this.records = records;
+	}
+
+	public void setAuthenticationKeyGenerator(AuthenticationKeyGenerator authenticationKeyGenerator) {
+		this.authenticationKeyGenerator = authenticationKeyGenerator;
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(OAuth2AccessToken token) {
+		return readAuthentication(token.getValue());
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(String token) {
+		byte[] record = records.get(ACCESS, token);
+		return record != null ? this.<OAuth2Authentication> second(record) : null;
+	}
+
+	@Override
+	public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		long expiresAt = token.getExpiration() != null ? token.getExpiration().getTime() : 0;
+		byte[] value = utf8(token.getValue());
+		records.put(ACCESS, token.getValue(), pair(token, authentication), expiresAt);
+		records.put(AUTHENTICATION_TO_ACCESS, authenticationKeyGenerator.extractKey(authentication), value, expiresAt);
+		if (token.getRefreshToken() != null) {
+			records.put(REFRESH_TO_ACCESS, token.getRefreshToken().getValue(), value, expiresAt);
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String tokenValue) {
+		byte[] record = records.get(ACCESS, tokenValue);
+		return record != null ? this.<OAuth2AccessToken> first(record) : null;
+	}
+
+	@Override
+	public void removeAccessToken(OAuth2AccessToken token) {
+		removeAccessToken(token.getValue());
+	}
+
+	private void removeAccessToken(String tokenValue) {
+		byte[] record = records.remove(ACCESS, tokenValue);
+		if (record == null) {
+			return;
+		}
+		OAuth2AccessToken token = first(record);
+		String key = authenticationKeyGenerator.extractKey(this.<OAuth2Authentication> second(record));
+		byte[] linked = records.get(AUTHENTICATION_TO_ACCESS, key);
+		// The authentication may already be linked to a newer token
+		if (linked != null && tokenValue.equals(string(linked))) {
+			records.remove(AUTHENTICATION_TO_ACCESS, key);
+		}
+		if (token.getRefreshToken() != null) {
+			linked = records.get(REFRESH_TO_ACCESS, token.getRefreshToken().getValue());
+			if (linked != null && tokenValue.equals(string(linked))) {
+				records.remove(REFRESH_TO_ACCESS, token.getRefreshToken().getValue());
+			}
+		}
+	}
+
+	@Override
+	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		long expiresAt = 0;
+		if (refreshToken instanceof ExpiringOAuth2RefreshToken
+				&& ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration() != null) {
+			expiresAt = ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration().getTime();
+		}
+		records.put(REFRESH, refreshToken.getValue(), pair(refreshToken, authentication), expiresAt);
+	}
+
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String tokenValue) {
+		byte[] record = records.get(REFRESH, tokenValue);
+		return record != null ? this.<OAuth2RefreshToken> first(record) : null;
+	}
+
+	@Override
+	public OAuth2Authentication readAuthenticationForRefreshToken(OAuth2RefreshToken token) {
+		byte[] record = records.get(REFRESH, token.getValue());
+		return record != null ? this.<OAuth2Authentication> second(record) : null;
+	}
+
+	@Override
+	public void removeRefreshToken(OAuth2RefreshToken token) {
+		records.remove(REFRESH, token.getValue());
+		records.remove(REFRESH_TO_ACCESS, token.getValue());
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+		byte[] linked = records.remove(REFRESH_TO_ACCESS, refreshToken.getValue());
+		if (linked != null) {
+			removeAccessToken(string(linked));
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
+		String key = authenticationKeyGenerator.extractKey(authentication);
+		byte[] linked = records.get(AUTHENTICATION_TO_ACCESS, key);
+		if (linked == null) {
+			return null;
+		}
+		byte[] record = records.get(ACCESS, string(linked));
+		if (record == null) {
+			return null;
+		}
+		OAuth2AccessToken accessToken = first(record);
+		if (!key.equals(authenticationKeyGenerator.extractKey(this.<OAuth2Authentication> second(record)))) {
+			// Keep the link consistent with the authentication it was requested for
+			storeAccessToken(accessToken, authentication);
+		}
+		return accessToken;
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientIdAndUserName(final String clientId, final String userName) {
+		final List<OAuth2AccessToken> tokens = new ArrayList<OAuth2AccessToken>();
+		records.scan(ACCESS, new MappedRecordFile.Visitor() {
+			@Override
+			public void visit(String key, byte[] payload, long expiresAt) {
+				OAuth2Authentication authentication = second(payload);
+				if (clientId.equals(authentication.getOAuth2Request().getClientId())
+						&& authentication.getUserAuthentication() != null
+						&& userName.equals(authentication.getUserAuthentication().getName())) {
+					tokens.add(MappedFileTokenStore.this.<OAuth2AccessToken> first(payload));
+				}
+			}
+		});
+		return tokens;
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientId(final String clientId) {
+		final List<OAuth2AccessToken> tokens = new ArrayList<OAuth2AccessToken>();
+		records.scan(ACCESS, new MappedRecordFile.Visitor() {
+			@Override
+			public void visit(String key, byte[] payload, long expiresAt) {
+				OAuth2Authentication authentication = second(payload);
+				if (clientId.equals(authentication.getOAuth2Request().getClientId())) {
+					tokens.add(MappedFileTokenStore.this.<OAuth2AccessToken> first(payload));
+				}
+			}
+		});
+		return tokens;
+	}
+
+	@Override
+	public void destroy() {
+		records.close();
+	}
+
+	/**
+	 * Record payload: <code>length(4) first second</code>, both serialized.
+	 */
+	private static byte[] pair(Object first, Object second) {
+		byte[] firstBytes = SerializationUtils.serialize(first);
+		byte[] secondBytes = SerializationUtils.serialize(second);
+		return ByteBuffer.allocate(4 + firstBytes.length + secondBytes.length).putInt(firstBytes.length)
+				.put(firstBytes).put(secondBytes).array();
+	}
+
+	private <T> T first(byte[] payload) {
+		int length = ByteBuffer.wrap(payload).getInt();
+		byte[] bytes = new byte[length];
+		System.arraycopy(payload, 4, bytes, 0, length);
+		return SerializationUtils.deserialize(bytes);
+	}
+
+	private <T> T second(byte[] payload) {
+		int offset = 4 + ByteBuffer.wrap(payload).getInt();
+		byte[] bytes = new byte[payload.length - offset];
+		System.arraycopy(payload, offset, bytes, 0, bytes.length);
+		return SerializationUtils.deserialize(bytes);
+	}
+
+	private static byte[] utf8(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] bytes) {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
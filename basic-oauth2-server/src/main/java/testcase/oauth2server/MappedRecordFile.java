@@ -0,0 +1,496 @@
+package testcase.oauth2server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Off-heap key/value store of binary records kept in two memory-mapped files: an append-only data file and an open
+ * addressing hash index over it. Nothing but the mappings lives on the heap, and opening an existing store only maps
+ * the files again, nothing is replayed.
+ * <p>
+ * Data file layout: a 32 byte header (magic, version, write position, dead bytes) followed by records of
+ * <code>status(1) kind(1) keyLength(2) payloadLength(4) expiresAt(8) key payload</code>. Index file layout: a 16 byte
+ * header (magic, capacity, used slots, live records) followed by <code>capacity</code> slots of
+ * <code>hash(4) offset(8)</code>, offset 0 meaning empty and -1 removed. Keys are scoped by a one byte kind.
+ * <p>
+ * Updates write the record, then the data header, then the index slot, so a process crash at any point loses at most
+ * the record being written (the mapped pages survive it; {@link #close()} forces them to disk). When the data file
+ * is full (or the index too loaded) the live, unexpired records are copied into a new generation of files, sized for
+ * the live data, which then replaces the current one by an atomic rename of the <code>current</code> pointer file.
+ * <p>
+ * Reads take a shared lock and writes an exclusive one, so a {@link Visitor} must not update the store.
+ */
+public class MappedRecordFile implements Closeable {
+
+	/**
+	 * Callback for {@link MappedRecordFile#scan(byte, Visitor)}.
+	 */
+	public interface Visitor {
+		void visit(String key, byte[] payload, long expiresAt);
+	}
+
+	private static final int DATA_MAGIC = 0x544b4e44;
+
+	private static final int INDEX_MAGIC = 0x544b4e49;
+
+	private static final int VERSION = 1;
+
+	private static final int DATA_HEADER = 32;
+
+	private static final int INDEX_HEADER = 16;
+
+	private static final int RECORD_HEADER = 16;
+
+	private static final int SLOT = 12;
+
+	private static final long REMOVED = -1;
+
+	private static final double MAX_LOAD = 0.7;
+
+	private static final Log logger = LogFactory.getLog(MappedRecordFile.class);
+
+	private final File directory;
+
+	private final int initialDataSize;
+
+	private final int initialIndexCapacity;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private int generation;
+
+	private MappedByteBuffer data;
+
+	private MappedByteBuffer index;
+
+	private int mask;
+
+	/**
+	 * @param directory where the files are kept (created if needed)
+	 * @param initialDataSize size in bytes of the data file (grown on demand, at most 1GB)
+	 * @param initialIndexCapacity number of index slots, rounded up to a power of 2 (grown on demand)
+	 */
+	public MappedRecordFile(File directory, int initialDataSize, int initialIndexCapacity) throws IOException {
+		this.directory = directory;
+		this.initialDataSize = initialDataSize;
+		this.initialIndexCapacity = Integer.highestOneBit(Math.max(initialIndexCapacity, 16) - 1) << 1;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		open();
+	}
+
+	/**
+	 * @return the payload stored for the key, or null
+	 */
+	public byte[] get(byte kind, String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			int slot = find(kind, keyBytes, hash(kind, keyBytes));
+			if (slot < 0) {
+				return null;
+			}
+			long offset = index.getLong(slotPosition(slot) + 4);
+			return payload((int) offset);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Store a record, replacing any record with the same kind and key.
+	 *
+	 * @param expiresAt time in millis after which the record may be dropped, 0 for never
+	 */
+	public void put(byte kind, String key, byte[] payload, long expiresAt) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+		}
+		int length = RECORD_HEADER + keyBytes.length + payload.length;
+		int hash = hash(kind, keyBytes);
+		lock.writeLock().lock();
+		try {
+			if (data.getLong(8) + length > data.capacity() || index.getInt(8) + 1 > mask * MAX_LOAD) {
+				compact(length);
+			}
+			int position = (int) data.getLong(8);
+			ByteBuffer record = data.duplicate();
+			record.position(position);
+			record.put((byte) 1).put(kind).putShort((short) keyBytes.length).putInt(payload.length);
+			record.putLong(expiresAt).put(keyBytes).put(payload);
+			data.putLong(8, position + length);
+
+			int slot = find(kind, keyBytes, hash);
+			if (slot >= 0) {
+				markRemoved((int) index.getLong(slotPosition(slot) + 4));
+			}
+			else {
+				slot = insertionSlot(hash);
+				if (index.getLong(slotPosition(slot) + 4) == 0) {
+					index.putInt(8, index.getInt(8) + 1);
+				}
+				index.putInt(12, index.getInt(12) + 1);
+			}
+			index.putInt(slotPosition(slot), hash);
+			index.putLong(slotPosition(slot) + 4, position);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the record with the given kind and key, if any.
+	 *
+	 * @return the payload of the removed record, or null
+	 */
+	public byte[] remove(byte kind, String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(kind, keyBytes, hash(kind, keyBytes));
+			if (slot < 0) {
+				return null;
+			}
+			int offset = (int) index.getLong(slotPosition(slot) + 4);
+			byte[] payload = payload(offset);
+			markRemoved(offset);
+			index.putLong(slotPosition(slot) + 4, REMOVED);
+			index.putInt(12, index.getInt(12) - 1);
+			return payload;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Visit all live records of a kind, in insertion order. Linear in the size of the data file.
+	 */
+	public void scan(byte kind, Visitor visitor) {
+		lock.readLock().lock();
+		try {
+			long end = data.getLong(8);
+			int position = DATA_HEADER;
+			while (position < end) {
+				if (data.get(position) == 1 && data.get(position + 1) == kind) {
+					byte[] key = new byte[data.getShort(position + 2)];
+					ByteBuffer record = data.duplicate();
+					record.position(position + RECORD_HEADER);
+					record.get(key);
+					visitor.visit(new String(key, StandardCharsets.UTF_8), payload(position),
+							data.getLong(position + 8));
+				}
+				position += recordLength(position);
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of live records
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.getInt(12);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Flush the mapped files to disk.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			data.force();
+			index.force();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void open() throws IOException {
+		File current = new File(directory, "current");
+		if (current.exists()) {
+			generation = Integer.parseInt(new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8)
+					.trim());
+			data = map(dataFile(generation), 0);
+			index = map(indexFile(generation), 0);
+			if (data.capacity() < DATA_HEADER || data.getInt(0) != DATA_MAGIC || data.getInt(4) != VERSION
+					|| data.getLong(8) > data.capacity()) {
+				throw new IOException("Not a token data file: " + dataFile(generation));
+			}
+			// A truncated index (or one cut short by a crash while it was created) is rebuilt as well
+			if (index.capacity() < INDEX_HEADER || index.getInt(0) != INDEX_MAGIC
+					|| index.capacity() < INDEX_HEADER + (long) index.getInt(4) * SLOT) {
+				logger.warn("Invalid index " + indexFile(generation) + ", rebuilding it from the data file");
+				int capacity = initialIndexCapacity;
+				while (countRecords() + 1 > capacity * MAX_LOAD / 2) {
+					capacity <<= 1;
+				}
+				index = createIndex(indexFile(generation), capacity);
+				mask = capacity - 1;
+				reindex();
+			}
+			mask = index.getInt(4) - 1;
+			logger.info("Mapped token store generation " + generation + " with " + index.getInt(12) + " records");
+		}
+		else {
+			generation = 0;
+			data = createData(dataFile(generation), initialDataSize);
+			index = createIndex(indexFile(generation), initialIndexCapacity);
+			mask = initialIndexCapacity - 1;
+			writeCurrent();
+		}
+	}
+
+	/**
+	 * Copy the live, unexpired records into a new generation of files with room for at least
+	 * <code>required</code> more bytes and a lightly loaded index, then switch to it.
+	 */
+	private void compact(int required) {
+		long now = System.currentTimeMillis();
+		long liveBytes = 0;
+		int liveRecords = 0;
+		long end = data.getLong(8);
+		for (int position = DATA_HEADER; position < end; position += recordLength(position)) {
+			if (isLive(position, now)) {
+				liveBytes += recordLength(position);
+				liveRecords++;
+			}
+		}
+		long dataSize = Math.max(initialDataSize, DATA_HEADER + 2 * (liveBytes + required));
+		if (dataSize > Integer.MAX_VALUE / 2) {
+			throw new IllegalStateException("Token store full: " + liveBytes + " bytes of live records");
+		}
+		int capacity = initialIndexCapacity;
+		while (liveRecords + 1 > capacity * MAX_LOAD / 2) {
+			capacity <<= 1;
+		}
+		int next = generation + 1;
+		try {
+			MappedByteBuffer newData = createData(dataFile(next), (int) dataSize);
+			MappedByteBuffer newIndex = createIndex(indexFile(next), capacity);
+			ByteBuffer source = data.duplicate();
+			ByteBuffer target = newData.duplicate();
+			target.position(DATA_HEADER);
+			for (int position = DATA_HEADER; position < end; position += recordLength(position)) {
+				if (isLive(position, now)) {
+					source.limit(position + recordLength(position)).position(position);
+					target.put(source);
+					source.limit(source.capacity());
+				}
+			}
+			newData.putLong(8, target.position());
+			newData.force();
+			MappedByteBuffer oldData = data;
+			MappedByteBuffer oldIndex = index;
+			data = newData;
+			index = newIndex;
+			mask = capacity - 1;
+			reindex();
+			index.force();
+			generation = next;
+			writeCurrent();
+			oldData.force();
+			oldIndex.force();
+			logger.info("Compacted token store into generation " + generation + ": " + liveRecords + " records, "
+					+ liveBytes + " bytes, " + dataSize + " bytes mapped");
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot compact token store in " + directory, e);
+		}
+		// Older generations are unmapped by the GC; deleting a mapped file fails on some platforms, so be lenient
+		for (int old = next - 1; old >= 0 && dataFile(old).exists(); old--) {
+			if (!dataFile(old).delete() || !indexFile(old).delete()) {
+				logger.debug("Could not delete token store generation " + old + " yet");
+			}
+		}
+	}
+
+	private int countRecords() {
+		int count = 0;
+		long end = data.getLong(8);
+		for (int position = DATA_HEADER; position < end; position += recordLength(position)) {
+			if (data.get(position) == 1) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void reindex() {
+		long end = data.getLong(8);
+		int used = 0;
+		for (int position = DATA_HEADER; position < end; position += recordLength(position)) {
+			if (data.get(position) != 1) {
+				continue;
+			}
+			byte[] key = new byte[data.getShort(position + 2)];
+			ByteBuffer record = data.duplicate();
+			record.position(position + RECORD_HEADER);
+			record.get(key);
+			int hash = hash(data.get(position + 1), key);
+			int slot = find(data.get(position + 1), key, hash);
+			if (slot >= 0) {
+				// Crash between appending a replacement and removing the old record: keep the newest
+				markRemoved((int) index.getLong(slotPosition(slot) + 4));
+			}
+			else {
+				slot = insertionSlot(hash);
+				used++;
+			}
+			index.putInt(slotPosition(slot), hash);
+			index.putLong(slotPosition(slot) + 4, position);
+		}
+		index.putInt(8, used);
+		index.putInt(12, used);
+	}
+
+	private int find(byte kind, byte[] key, int hash) {
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int position = slotPosition(slot);
+			long offset = index.getLong(position + 4);
+			if (offset == 0) {
+				return -1;
+			}
+			if (offset != REMOVED && index.getInt(position) == hash && matches((int) offset, kind, key)) {
+				return slot;
+			}
+		}
+	}
+
+	private int insertionSlot(int hash) {
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			long offset = index.getLong(slotPosition(slot) + 4);
+			if (offset == 0 || offset == REMOVED) {
+				return slot;
+			}
+		}
+	}
+
+	private boolean matches(int offset, byte kind, byte[] key) {
+		if (data.get(offset + 1) != kind || data.getShort(offset + 2) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (data.get(offset + RECORD_HEADER + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private byte[] payload(int offset) {
+		byte[] payload = new byte[data.getInt(offset + 4)];
+		ByteBuffer record = data.duplicate();
+		record.position(offset + RECORD_HEADER + data.getShort(offset + 2));
+		record.get(payload);
+		return payload;
+	}
+
+	private void markRemoved(int offset) {
+		data.put(offset, (byte) 0);
+		data.putLong(16, data.getLong(16) + recordLength(offset));
+	}
+
+	private boolean isLive(int position, long now) {
+		long expiresAt = data.getLong(position + 8);
+		return data.get(position) == 1 && (expiresAt == 0 || expiresAt > now);
+	}
+
+	private int recordLength(int position) {
+		return RECORD_HEADER + data.getShort(position + 2) + data.getInt(position + 4);
+	}
+
+	private static int slotPosition(int slot) {
+		return INDEX_HEADER + slot * SLOT;
+	}
+
+	private static int hash(byte kind, byte[] key) {
+		int h = kind;
+		for (byte b : key) {
+			h = 31 * h + b;
+		}
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		return h ^ (h >>> 16);
+	}
+
+	private File dataFile(int generation) {
+		return new File(directory, "tokens-" + generation + ".data");
+	}
+
+	private File indexFile(int generation) {
+		return new File(directory, "tokens-" + generation + ".index");
+	}
+
+	private void writeCurrent() throws IOException {
+		File temp = new File(directory, "current.tmp");
+		Files.write(temp.toPath(), String.valueOf(generation).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), new File(directory, "current").toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static MappedByteBuffer createData(File file, int size) throws IOException {
+		MappedByteBuffer buffer = map(file, size);
+		buffer.putInt(0, DATA_MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, DATA_HEADER);
+		buffer.putLong(16, 0);
+		return buffer;
+	}
+
+	private static MappedByteBuffer createIndex(File file, int capacity) throws IOException {
+		MappedByteBuffer buffer = map(file, INDEX_HEADER + (long) capacity * SLOT);
+		// The file may be an invalid index being rebuilt rather than a new (zero filled) one
+		for (int i = 0; i < buffer.capacity(); i += 4) {
+			buffer.putInt(i, 0);
+		}
+		buffer.putInt(0, INDEX_MAGIC);
+		buffer.putInt(4, capacity);
+		return buffer;
+	}
+
+	/**
+	 * Map a file, resizing it first when <code>size</code> is not 0.
+	 */
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size > 0) {
+				raf.setLength(size);
+			}
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		}
+		finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package testcase.oauth2server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Keep issued tokens in memory-mapped files instead of on the heap (enabled with oauth.tokenStore.type=mapped), so
+ * they survive restarts of the server, see {@link MappedFileTokenStore}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "oauth.tokenStore", name = "type", havingValue = "mapped")
+public class MappedTokenStoreConfiguration {
+
+	@Value("${oauth.tokenStore.mapped.directory:token-store}")
+	private String directory;
+
+	@Value("${oauth.tokenStore.mapped.dataSize:67108864}")
+	private int dataSize;
+
+	@Value("${oauth.tokenStore.mapped.indexCapacity:262144}")
+	private int indexCapacity;
+
+	@Bean
+	public TokenStore tokenStore() throws IOException {
+		return new MappedFileTokenStore(new MappedRecordFile(new File(directory), dataSize, indexCapacity));
+	}
+}
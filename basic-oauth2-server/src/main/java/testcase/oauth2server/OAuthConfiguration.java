@@ -1,19 +1,78 @@
 package testcase.oauth2server;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.oauth2.config.annotation.configurers.ClientDetailsServiceConfigurer;
 import org.springframework.security.oauth2.config.annotation.web.configuration.AuthorizationServerConfigurerAdapter;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableAuthorizationServer;
+import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerEndpointsConfigurer;
 import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerSecurityConfigurer;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.token.TokenEnhancer;
+import org.springframework.security.oauth2.provider.token.TokenEnhancerChain;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
 
 @Configuration
 @EnableAuthorizationServer
 public class OAuthConfiguration extends AuthorizationServerConfigurerAdapter {
 
+	/** Only present when JWT access tokens are enabled, see {@link JwtTokenConfiguration} */
+	@Autowired(required = false)
+	private JwtAccessTokenConverter jwtAccessTokenConverter;
+
+	/**
+	 * Only present when a persistent token store is configured, see {@link MappedTokenStoreConfiguration} and
+	 * {@link JdbcStoreConfiguration}
+	 */
+	@Autowired(required = false)
+	private TokenStore tokenStore;
+
+	/** Only present when tokens and clients are kept in a database */
+	@Autowired(required = false)
+	private JdbcStoreConfiguration jdbcStoreConfiguration;
+
+	/** Only present when check_token responses are cached, see {@link CheckTokenCacheConfiguration} */
+	@Autowired(required = false)
+	private CheckTokenResponseCache checkTokenResponseCache;
+
+	@Autowired
+	private RevocationLog revocationLog;
+
+	@Autowired
+	private CounterService counterService;
+
+	/** The one registered by @EnableAuthorizationServer, built from the clients configured below */
+	@Autowired
+	private ClientDetailsService clientDetailsService;
+
+	/** uuid, hex or base64url */
+	@Value("${oauth.tokenValue.encoding:uuid}")
+	private String tokenValueEncoding;
+
+	/** Random bytes per token value (hex and base64url) */
+	@Value("${oauth.tokenValue.bytes:32}")
+	private int tokenValueBytes;
+
+	/** Millis a refresh grant result is returned to the same refresh request again, 0 to disable */
+	@Value("${oauth.refresh.deduplicationWindow:2000}")
+	private long refreshDeduplicationWindow;
+
 	@Override
 	public void configure(ClientDetailsServiceConfigurer clients)
 			throws Exception {
 	
+		if (jdbcStoreConfiguration != null) {
+			// Same client, registered by oauth-data.sql
+			clients.withClientDetails(jdbcStoreConfiguration.clientDetailsService());
+			return;
+		}
 		clients.inMemory()
 					.withClient("poc-spa-client")		
 					.authorizedGrantTypes("authorization_code","refresh_token")
@@ -31,10 +90,47 @@ public class OAuthConfiguration extends AuthorizationServerConfigurerAdapter {
 					.accessTokenValiditySeconds(4);
 	}	
 	
+	@Override
+	public void configure(AuthorizationServerEndpointsConfigurer endpoints) throws Exception {
+		List<TokenEnhancer> enhancers = new ArrayList<TokenEnhancer>();
+		enhancers.add(new IssuedTokenCounter(counterService));
+		if (jwtAccessTokenConverter != null) {
+			// Tokens become signed JWTs and are stored in a JwtTokenStore (i.e. not stored at all)
+			endpoints.accessTokenConverter(jwtAccessTokenConverter);
+			// An explicit enhancer replaces the converter as default enhancer, so chain it (it must come last)
+			enhancers.add(jwtAccessTokenConverter);
+		}
+		else {
+			// Let the gateways and the check_token cache know about revoked tokens
+			TokenStore store = revocationLog.publishing(tokenStore != null ? tokenStore : new InMemoryTokenStore());
+			endpoints.tokenStore(checkTokenResponseCache != null ? checkTokenResponseCache.evicting(store) : store);
+		}
+		TokenEnhancerChain tokenEnhancer = new TokenEnhancerChain();
+		tokenEnhancer.setTokenEnhancers(enhancers);
+		endpoints.tokenEnhancer(tokenEnhancer);
+		// The token services endpoints would create, generating token values without a shared SecureRandom
+		GeneratingTokenServices tokenServices = new GeneratingTokenServices();
+		tokenServices.setTokenStore(endpoints.getTokenStore());
+		tokenServices.setSupportRefreshToken(true);
+		tokenServices.setClientDetailsService(clientDetailsService);
+		tokenServices.setTokenEnhancer(tokenEnhancer);
+		tokenServices.setTokenValueGenerator(new ThreadLocalTokenValueGenerator(
+				ThreadLocalTokenValueGenerator.Encoding.valueOf(tokenValueEncoding.trim().toUpperCase()),
+				tokenValueBytes));
+		endpoints.tokenServices(tokenServices);
+		if (refreshDeduplicationWindow > 0) {
+			// The default granters are only built on the first grant, i.e. with the configuration above
+			endpoints.tokenGranter(new RefreshGrantDeduplicator(endpoints.getTokenGranter(), refreshDeduplicationWindow,
+					counterService));
+		}
+	}
+	
 	@Override
 	public void configure(AuthorizationServerSecurityConfigurer oauthServer) throws Exception
 	{
 	   // check access endpoint is disabled by default (better isAuthenticated() in real scenarios)
 	   oauthServer.checkTokenAccess("permitAll()");    
+	   // token key endpoint publishes the JWT verification (public) key, only registered when JWT is enabled
+	   oauthServer.tokenKeyAccess("permitAll()");
 	}	
 }
\ No newline at end of file
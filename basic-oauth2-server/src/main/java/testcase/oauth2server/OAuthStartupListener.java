@@ -0,0 +1,16 @@
+package testcase.oauth2server;
+
+import org.springframework.boot.SpringApplication;
+
+import testcase.startup.StartupListener;
+
+/**
+ * Startup timing report, lazy initialization and appcds training exit of the authorization server, configured with
+ * the oauth.startup.* properties (see {@link StartupListener}).
+ */
+public class OAuthStartupListener extends StartupListener {
+
+	public OAuthStartupListener(SpringApplication application, String[] args) {
+		super(application, Application.class, "oauth.startup");
+	}
+}
@@ -0,0 +1,37 @@
+package testcase.oauth2server;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+
+/**
+ * Token store decorator appending the access tokens it removes (revoked, expired, replaced by a refresh grant) to the
+ * {@link RevocationLog}, see {@link RevocationLog#publishing(TokenStore)}.
+ */
+public class PublishingTokenStore extends ForwardingTokenStore {
+
+	private final RevocationLog revocationLog;
+
+	public PublishingTokenStore(TokenStore delegate, RevocationLog revocationLog) {
+		super(delegate);
+		this.revocationLog = revocationLog;
+	}
+
+	@Override
+	public void removeAccessToken(OAuth2AccessToken token) {
+		delegate.removeAccessToken(token);
+		revocationLog.tokenRemoved(token.getValue());
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+		// The store only links the refresh token to the access token: look it up before it is gone
+		OAuth2Authentication authentication = delegate.readAuthenticationForRefreshToken(refreshToken);
+		OAuth2AccessToken accessToken = authentication != null ? delegate.getAccessToken(authentication) : null;
+		delegate.removeAccessTokenUsingRefreshToken(refreshToken);
+		if (accessToken != null) {
+			revocationLog.tokenRemoved(accessToken.getValue());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package testcase.oauth2server;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.TokenGranter;
+import org.springframework.security.oauth2.provider.TokenRequest;
+
+/**
+ * Makes refresh grants idempotent within a short window: grants by the same client with the same refresh token (and
+ * requested scope) that arrive while one is being processed, or shortly after it completed, get the access token
+ * that one produced instead of each minting (and storing) a new one. Other grant types go straight through.
+ * <p>
+ * Only successful grants are reused; a failed grant fails the requests waiting for it with the same error and the
+ * next request tries again. Tokens are returned only to the client that presented the refresh token (the token
+ * endpoint authenticates the client before granting), and an expired token is never reused. Duplicates are counted
+ * as counter.oauth.tokens.refresh.deduplicated in /metrics.
+ */
+public class RefreshGrantDeduplicator implements TokenGranter {
+
+	private static final String REFRESH_TOKEN = "refresh_token";
+
+	/**
+	 * Result of a grant, available once {@link #done} is counted down.
+	 */
+	private static final class Grant {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile OAuth2AccessToken token;
+
+		private volatile RuntimeException error;
+
+		private volatile long completed = Long.MAX_VALUE;
+
+		private boolean isExpired(long now, long window) {
+			OAuth2AccessToken token = this.token;
+			return now - completed > window || (token != null && token.isExpired());
+		}
+
+		private OAuth2AccessToken await() {
+			try {
+				done.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OAuth2Exception("Interrupted while waiting for a concurrent refresh grant", e);
+			}
+			if (error != null) {
+				throw error;
+			}
+			return token;
+		}
+	}
+
+	private final TokenGranter delegate;
+
+	private final long window;
+
+	private final CounterService counterService;
+
+	private final ConcurrentMap<String, Grant> grants = new ConcurrentHashMap<String, Grant>();
+
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * @param window how long in millis after a refresh grant completed its token is returned for the same request
+	 */
+	public RefreshGrantDeduplicator(TokenGranter delegate, long window, CounterService counterService) {
+		this.delegate = delegate;
+		this.window = window;
+		this.counterService = counterService;
+	}
+
+	@Override
+	public OAuth2AccessToken grant(String grantType, TokenRequest tokenRequest) {
+		String refreshToken = tokenRequest.getRequestParameters().get(REFRESH_TOKEN);
+		if (!REFRESH_TOKEN.equals(grantType) || refreshToken == null) {
+			return delegate.grant(grantType, tokenRequest);
+		}
+		String key = tokenRequest.getClientId() + " " + new TreeSet<String>(tokenRequest.getScope()) + " "
+				+ refreshToken;
+		long now = System.currentTimeMillis();
+		sweep(now);
+		Grant grant = new Grant();
+		Grant existing = grants.putIfAbsent(key, grant);
+		while (existing != null && existing.isExpired(now, window)) {
+			grants.remove(key, existing);
+			existing = grants.putIfAbsent(key, grant);
+		}
+		if (existing != null) {
+			OAuth2AccessToken token = existing.await();
+			counterService.increment("oauth.tokens.refresh.deduplicated");
+			return token;
+		}
+		try {
+			grant.token = delegate.grant(grantType, tokenRequest);
+			grant.completed = System.currentTimeMillis();
+			return grant.token;
+		}
+		catch (RuntimeException e) {
+			grant.error = e;
+			grants.remove(key, grant);
+			throw e;
+		}
+		finally {
+			grant.done.countDown();
+		}
+	}
+
+	/**
+	 * Drop the completed grants out of their window, at most once per window.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < window) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Grant> it = grants.values().iterator(); it.hasNext();) {
+			if (it.next().isExpired(now, window)) {
+				it.remove();
+			}
+		}
+	}
+}
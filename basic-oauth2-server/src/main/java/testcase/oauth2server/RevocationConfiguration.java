@@ -0,0 +1,45 @@
+package testcase.oauth2server;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+
+/**
+ * Publish token revocations and logouts to the gateways (see {@link RevocationLog}), and revoke the tokens of a user
+ * who logs out of the authorization server.
+ */
+@Configuration
+public class RevocationConfiguration {
+
+	@Value("${oauth.revocation.capacity:10000}")
+	private int capacity;
+
+	@Value("${oauth.revocation.logoutClients:poc-spa-client}")
+	private String[] logoutClients;
+
+	@Bean
+	public RevocationLog revocationLog() {
+		return new RevocationLog(capacity);
+	}
+
+	@Bean
+	public LogoutHandler revokingLogoutHandler() {
+		final RevocationLog revocationLog = revocationLog();
+		return new LogoutHandler() {
+			@Override
+			public void logout(HttpServletRequest request, HttpServletResponse response,
+					Authentication authentication) {
+				if (authentication != null) {
+					revocationLog.userLoggedOut(authentication.getName(), Arrays.asList(logoutClients));
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,38 @@
+package testcase.oauth2server;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Long polling feed of token revocations and logouts, see {@link RevocationLog}. Gateways poll it with the offset
+ * of the last event they applied and get the next events as soon as there are any.
+ */
+@RestController
+public class RevocationEndpoint {
+
+	@Autowired
+	private RevocationLog revocationLog;
+
+	@Value("${oauth.revocation.maxWait:30000}")
+	private long maxWait;
+
+	/**
+	 * @param after offset of the last event seen, -1 (default) to only get the events from now on
+	 * @param epoch epoch returned with that offset
+	 * @param wait millis to hold the request when there is no new event, capped by oauth.revocation.maxWait
+	 */
+	@RequestMapping(value = "/oauth/revocations", method = RequestMethod.GET)
+	public DeferredResult<Map<String, Object>> revocations(
+			@RequestParam(value = "after", defaultValue = "-1") long after,
+			@RequestParam(value = "epoch", defaultValue = "") String epoch,
+			@RequestParam(value = "wait", defaultValue = "25000") long wait) {
+		return revocationLog.poll(after, epoch, Math.max(0, Math.min(wait, maxWait)));
+	}
+}
@@ -0,0 +1,199 @@
+package testcase.oauth2server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import testcase.token.TokenHash;
+
+/**
+ * Recent token revocations and logouts, numbered by offset, for the gateways caching introspection results to follow
+ * (see {@link RevocationEndpoint}). Events carry the SHA-256 of the access token ({@link TokenHash}), never the token
+ * itself, or the name of the user who logged out.
+ * <p>
+ * Only the last <code>capacity</code> events are kept, in memory. A poll from an offset no longer retained, or from
+ * another epoch (the log is reset on restart), answers with <code>reset</code> so the caller drops everything it
+ * cached. A poll with nothing new is held, without a thread, until an event arrives or it times out.
+ */
+public class RevocationLog {
+
+	public static final String TOKEN = "token";
+
+	public static final String USER = "user";
+
+	/** Maximum number of events per poll response */
+	private static final int MAX_EVENTS = 1000;
+
+	private static final class Event {
+
+		private final long offset;
+
+		private final String type;
+
+		private final String subject;
+
+		private Event(long offset, String type, String subject) {
+			this.offset = offset;
+			this.type = type;
+			this.subject = subject;
+		}
+	}
+
+	private static final class Poll {
+
+		private final long after;
+
+		private final String epoch;
+
+		private final DeferredResult<Map<String, Object>> result;
+
+		private Poll(long after, String epoch, DeferredResult<Map<String, Object>> result) {
+			this.after = after;
+			this.epoch = epoch;
+			this.result = result;
+		}
+	}
+
+	private final String epoch = UUID.randomUUID().toString();
+
+	private final Event[] events;
+
+	private final List<Poll> polls = new ArrayList<Poll>();
+
+	/** Offset of the last event, 0 before the first one */
+	private long lastOffset;
+
+	private volatile TokenStore tokenStore;
+
+	/**
+	 * @param capacity number of events kept for callers catching up
+	 */
+	public RevocationLog(int capacity) {
+		this.events = new Event[capacity];
+	}
+
+	/**
+	 * Decorate the token store used by the token services so that removed tokens are published.
+	 */
+	public TokenStore publishing(TokenStore tokenStore) {
+		this.tokenStore = new PublishingTokenStore(tokenStore, this);
+		return this.tokenStore;
+	}
+
+	/**
+	 * An access token was removed from the token store.
+	 */
+	public void tokenRemoved(String tokenValue) {
+		append(TOKEN, TokenHash.of(tokenValue));
+	}
+
+	/**
+	 * A user logged out: revoke the tokens issued to the user for the given clients and publish the logout, so that
+	 * caches also drop the tokens of the user this server does not store (other servers, other clients).
+	 */
+	public void userLoggedOut(String userName, Collection<String> clientIds) {
+		TokenStore tokenStore = this.tokenStore;
+		if (tokenStore != null) {
+			for (String clientId : clientIds) {
+				// A copy: the store may return a view of the collection removing the tokens changes
+				for (OAuth2AccessToken token : new ArrayList<OAuth2AccessToken>(
+						tokenStore.findTokensByClientIdAndUserName(clientId, userName))) {
+					OAuth2RefreshToken refreshToken = token.getRefreshToken();
+					tokenStore.removeAccessToken(token);
+					if (refreshToken != null) {
+						tokenStore.removeRefreshToken(refreshToken);
+					}
+				}
+			}
+		}
+		append(USER, userName);
+	}
+
+	/**
+	 * Wait for the events after an offset.
+	 *
+	 * @param after offset of the last event the caller has seen, or a negative value to start from now
+	 * @param epoch epoch of that offset, empty if none
+	 * @param timeout millis to wait when there is no event yet
+	 * @return the response: <code>epoch</code>, <code>offset</code> to poll after next, <code>reset</code> and the
+	 * <code>events</code> (each with its <code>offset</code>, <code>type</code> and <code>subject</code>)
+	 */
+	public DeferredResult<Map<String, Object>> poll(long after, String epoch, long timeout) {
+		final DeferredResult<Map<String, Object>> result = new DeferredResult<Map<String, Object>>(timeout);
+		synchronized (this) {
+			// Starting from now: hold the poll at the current offset, so that the event answering it is not skipped
+			final long from = after < 0 ? lastOffset : after;
+			final String fromEpoch = after < 0 ? this.epoch : epoch;
+			Map<String, Object> batch = read(from, fromEpoch);
+			if (Boolean.TRUE.equals(batch.get("reset")) || !((List<?>) batch.get("events")).isEmpty()) {
+				result.setResult(batch);
+				return result;
+			}
+			final Poll poll = new Poll(from, fromEpoch, result);
+			polls.add(poll);
+			result.onTimeout(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (RevocationLog.this) {
+						polls.remove(poll);
+						result.setResult(read(from, fromEpoch));
+					}
+				}
+			});
+			result.onCompletion(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (RevocationLog.this) {
+						polls.remove(poll);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	private synchronized void append(String type, String subject) {
+		lastOffset++;
+		events[(int) (lastOffset % events.length)] = new Event(lastOffset, type, subject);
+		// Answer the held polls (setting a result only schedules the dispatch of their request)
+		for (Poll poll : polls) {
+			poll.result.setResult(read(poll.after, poll.epoch));
+		}
+		polls.clear();
+	}
+
+	private synchronized Map<String, Object> read(long after, String epoch) {
+		long oldest = Math.max(1, lastOffset - events.length + 1);
+		boolean reset = false;
+		long from = after + 1;
+		if (!this.epoch.equals(epoch) || after > lastOffset || from < oldest) {
+			// Events may have been missed: the caller drops everything, so there is no point sending older ones
+			reset = true;
+			from = lastOffset + 1;
+		}
+		long to = Math.min(lastOffset, from + MAX_EVENTS - 1);
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>((int) Math.max(0, to - from + 1));
+		for (long offset = from; offset <= to; offset++) {
+			Event event = events[(int) (offset % events.length)];
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("offset", event.offset);
+			map.put("type", event.type);
+			map.put("subject", event.subject);
+			list.add(map);
+		}
+		Map<String, Object> batch = new LinkedHashMap<String, Object>();
+		batch.put("epoch", this.epoch);
+		batch.put("offset", Math.max(from - 1, to));
+		batch.put("reset", reset);
+		batch.put("events", list);
+		return batch;
+	}
+}
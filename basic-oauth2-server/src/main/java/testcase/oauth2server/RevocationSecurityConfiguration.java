@@ -0,0 +1,45 @@
+package testcase.oauth2server;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.client.ClientDetailsUserDetailsService;
+
+/**
+ * The revocation feed ({@link RevocationEndpoint}) names the users who log out, so only registered clients (the
+ * gateways) may poll it, authenticated with http basic the way they are on the token endpoint. User credentials are
+ * not accepted: the authentication manager only knows the clients.
+ */
+@Configuration
+// Before WebSecurityConfig (default order 100), which matches every other request
+@Order(99)
+public class RevocationSecurityConfiguration extends WebSecurityConfigurerAdapter {
+
+	@Autowired
+	private ClientDetailsService clientDetailsService;
+
+	@Override
+	protected void configure(HttpSecurity http) throws Exception {
+		http
+			.antMatcher("/oauth/revocations")
+			.authorizeRequests()
+				.anyRequest().authenticated()
+				.and()
+			.httpBasic()
+				.and()
+			.sessionManagement()
+				.sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+				.and()
+			.csrf().disable();
+	}
+
+	@Override
+	protected void configure(AuthenticationManagerBuilder auth) throws Exception {
+		auth.userDetailsService(new ClientDetailsUserDetailsService(clientDetailsService));
+	}
+}
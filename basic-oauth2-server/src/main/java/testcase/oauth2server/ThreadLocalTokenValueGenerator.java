@@ -0,0 +1,100 @@
+package testcase.oauth2server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Token values from a CSPRNG per thread, so that concurrent grants do not contend on the SecureRandom shared by
+ * <code>UUID.randomUUID()</code> (the default token values). Each thread's generator is a SHA1PRNG, which has no
+ * lock shared with other instances (NativePRNG instances all read through one synchronized source), seeded once
+ * from the shared SecureRandom when the thread first generates a value.
+ * <p>
+ * Values are the random bytes encoded as hex, as base64url (no padding), or formatted as a random (version 4) UUID
+ * like the default ones.
+ */
+public class ThreadLocalTokenValueGenerator implements TokenValueGenerator {
+
+	/**
+	 * How the random bytes make up the token value.
+	 */
+	public enum Encoding {
+		/** Random UUID string, 36 characters (122 random bits), the random byte count is ignored */
+		UUID,
+		/** Lower case hex, 2 characters per byte */
+		HEX,
+		/** URL and header safe base64 without padding, 4 characters per 3 bytes */
+		BASE64URL
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final SecureRandom SEEDS = new SecureRandom();
+
+	private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			try {
+				SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+				byte[] seed = new byte[32];
+				SEEDS.nextBytes(seed);
+				random.setSeed(seed);
+				return random;
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA1PRNG not available", e);
+			}
+		}
+	};
+
+	private final Encoding encoding;
+
+	private final int bytes;
+
+	/**
+	 * Values formatted as random UUIDs, like the default ones.
+	 */
+	public ThreadLocalTokenValueGenerator() {
+		this(Encoding.UUID, 16);
+	}
+
+	/**
+	 * @param encoding how the random bytes make up the value
+	 * @param bytes number of random bytes per value (16 at least, 32 recommended)
+	 */
+	public ThreadLocalTokenValueGenerator(Encoding encoding, int bytes) {
+		if (bytes < 16) {
+			throw new IllegalArgumentException("Token values need 16 random bytes at least, not " + bytes);
+		}
+		this.encoding = encoding;
+		this.bytes = encoding == Encoding.UUID ? 16 : bytes;
+	}
+
+	@Override
+	public String generate() {
+		byte[] random = new byte[bytes];
+		RANDOM.get().nextBytes(random);
+		switch (encoding) {
+		case HEX:
+			return hex(random, 0, random.length);
+		case BASE64URL:
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		default:
+			// Version 4, IETF variant, as UUID.randomUUID()
+			random[6] = (byte) ((random[6] & 0x0f) | 0x40);
+			random[8] = (byte) ((random[8] & 0x3f) | 0x80);
+			return new StringBuilder(36).append(hex(random, 0, 4)).append('-').append(hex(random, 4, 6))
+					.append('-').append(hex(random, 6, 8)).append('-').append(hex(random, 8, 10)).append('-')
+					.append(hex(random, 10, 16)).toString();
+		}
+	}
+
+	private static String hex(byte[] bytes, int from, int to) {
+		char[] hex = new char[(to - from) * 2];
+		for (int i = from; i < to; i++) {
+			hex[(i - from) * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[(i - from) * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
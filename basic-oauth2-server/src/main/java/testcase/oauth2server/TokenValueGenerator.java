@@ -0,0 +1,13 @@
+package testcase.oauth2server;
+
+/**
+ * Generates the values of the access and refresh tokens issued by the server, see {@link GeneratingTokenServices}.
+ * Values must be unguessable and unique; they are called concurrently from every request thread granting tokens.
+ */
+public interface TokenValueGenerator {
+
+	/**
+	 * @return a new token value
+	 */
+	String generate();
+}
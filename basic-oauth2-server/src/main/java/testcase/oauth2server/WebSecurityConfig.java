@@ -6,16 +6,24 @@ import org.springframework.security.config.annotation.authentication.builders.Au
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
 
 @Configuration
 @EnableWebSecurity
 public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
+
+    /** Revokes the tokens of the user and publishes the logout, see {@link RevocationConfiguration} */
+    @Autowired
+    private LogoutHandler revokingLogoutHandler;
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
     	// http.httpBasic();
     	http
         	.csrf().disable()        	
             .authorizeRequests()
+                // same access rule as /oauth/check_token in OAuthConfiguration
+                .antMatchers("/oauth/check_token/batch").permitAll()
                 .anyRequest().authenticated()
                 .and()
             .formLogin()
@@ -24,6 +32,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
                 .permitAll()
                 .and()
             .logout()
+                .addLogoutHandler(revokingLogoutHandler)
                 .permitAll();
     }
 
@@ -0,0 +1,541 @@
+package testcase.oauth2server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.store.JdbcTokenStore;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * {@link JdbcTokenStore} (standard oauth_access_token and oauth_refresh_token tables, so any number of servers can
+ * share one database) that takes the inserts and deletes out of the grant path: they go to a bounded queue and a
+ * single writer thread applies them in batches, one transaction per batch. Under load a batch holds whatever queued
+ * up while the previous one was written, so the number of database round trips stays flat as the grant rate grows.
+ * When the queue is full callers block until the writer catches up.
+ * <p>
+ * Until a change is written it is kept in memory and reads on this server see it (a token is readable, and a removed
+ * token is gone, as soon as the call returns). Other servers see it once its batch is written, right away when
+ * the writer is idle, later when it falls behind. One exception on this server: an access token removed through
+ * its refresh token (refresh grant) may still be read from the database until the delete is written, unless it was
+ * stored here and not written yet.
+ * <p>
+ * Within a batch only the last change per token is applied, and tokens stored and removed again (e.g. expired on
+ * read) before being written never reach the database. {@link #flush()} waits for the changes made so far.
+ */
+public class WriteBehindJdbcTokenStore extends JdbcTokenStore implements InitializingBean, DisposableBean {
+
+	private static final String INSERT_ACCESS_TOKEN = "insert into oauth_access_token (token_id, token, "
+			+ "authentication_id, user_name, client_id, authentication, refresh_token) values (?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String DELETE_ACCESS_TOKEN = "delete from oauth_access_token where token_id = ?";
+
+	private static final String DELETE_ACCESS_TOKEN_FROM_REFRESH_TOKEN =
+			"delete from oauth_access_token where refresh_token = ?";
+
+	private static final String SELECT_ACCESS_TOKENS_FROM_AUTHENTICATION =
+			"select token_id, token from oauth_access_token where authentication_id = ?";
+
+	private static final String INSERT_REFRESH_TOKEN =
+			"insert into oauth_refresh_token (token_id, token, authentication) values (?, ?, ?)";
+
+	private static final String DELETE_REFRESH_TOKEN = "delete from oauth_refresh_token where token_id = ?";
+
+	private enum Operation {
+		INSERT_ACCESS, DELETE_ACCESS, DELETE_ACCESS_FROM_REFRESH, INSERT_REFRESH, DELETE_REFRESH, FLUSH
+	}
+
+	/**
+	 * A change not written yet: the stored token and its authentication, or a removal (null token).
+	 */
+	private static final class Pending {
+
+		private final Object token;
+
+		private final OAuth2Authentication authentication;
+
+		private Pending(Object token, OAuth2Authentication authentication) {
+			this.token = token;
+			this.authentication = authentication;
+		}
+	}
+
+	private static final class Write {
+
+		private final Operation operation;
+
+		/** token_id (or refresh_token column for DELETE_ACCESS_FROM_REFRESH) */
+		private final String key;
+
+		private final Object[] args;
+
+		private final String value;
+
+		private final String authenticationKey;
+
+		private final Pending pending;
+
+		/** Counted down once the batch is written, for FLUSH */
+		private final CountDownLatch written;
+
+		private Write(Operation operation, String key, Object[] args, String value, String authenticationKey,
+				Pending pending) {
+			this(operation, key, args, value, authenticationKey, pending, null);
+		}
+
+		private Write(Operation operation, String key, Object[] args, String value, String authenticationKey,
+				Pending pending, CountDownLatch written) {
+			this.operation = operation;
+			this.key = key;
+			this.args = args;
+			this.value = value;
+			this.authenticationKey = authenticationKey;
+			this.pending = pending;
+			this.written = written;
+		}
+	}
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final ConcurrentMap<String, Pending> pendingAccessTokens = new ConcurrentHashMap<String, Pending>();
+
+	private final ConcurrentMap<String, Pending> pendingAuthentications = new ConcurrentHashMap<String, Pending>();
+
+	private final ConcurrentMap<String, Pending> pendingRefreshTokens = new ConcurrentHashMap<String, Pending>();
+
+	// Pending access token by refresh token value: the token services keep one access token per refresh token
+	private final ConcurrentMap<String, Pending> pendingByRefreshToken = new ConcurrentHashMap<String, Pending>();
+
+	private AuthenticationKeyGenerator authenticationKeyGenerator = new DefaultAuthenticationKeyGenerator();
+
+	private int queueCapacity = 10000;
+
+	private int batchSize = 200;
+
+	private BlockingQueue<Write> queue;
+
+	private Thread writer;
+
+	private volatile boolean running;
+
+	public WriteBehindJdbcTokenStore(DataSource dataSource) {
+		super(dataSource);
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	@Override
+	public void setAuthenticationKeyGenerator(AuthenticationKeyGenerator authenticationKeyGenerator) {
+		super.setAuthenticationKeyGenerator(authenticationKeyGenerator);
+		this.authenticationKeyGenerator = authenticationKeyGenerator;
+	}
+
+	/**
+	 * @param queueCapacity maximum number of changes waiting to be written (default 10000)
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param batchSize maximum number of changes written in one transaction (default 200)
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		queue = new ArrayBlockingQueue<Write>(queueCapacity);
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "token-store-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop accepting changes and wait (up to 30 seconds) for the queued ones to be written.
+	 */
+	@Override
+	public void destroy() throws InterruptedException {
+		running = false;
+		writer.join(TimeUnit.SECONDS.toMillis(30));
+		if (!queue.isEmpty()) {
+			logger.warn(queue.size() + " token changes not written on shutdown");
+		}
+	}
+
+	/**
+	 * Wait until the changes made so far (by any thread) are written to the database, or failed for good.
+	 */
+	public void flush() throws InterruptedException {
+		CountDownLatch written = new CountDownLatch(1);
+		enqueue(new Write(Operation.FLUSH, null, null, null, null, null, written));
+		written.await();
+	}
+
+	@Override
+	public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+		String authenticationKey = authenticationKeyGenerator.extractKey(authentication);
+		String refreshToken = token.getRefreshToken() != null ? token.getRefreshToken().getValue() : null;
+		Pending pending = new Pending(token, authentication);
+		pendingAccessTokens.put(token.getValue(), pending);
+		pendingAuthentications.put(authenticationKey, pending);
+		if (refreshToken != null) {
+			pendingByRefreshToken.put(refreshToken, pending);
+		}
+		enqueue(new Write(Operation.INSERT_ACCESS, extractTokenKey(token.getValue()), new Object[] {
+				extractTokenKey(token.getValue()), serializeAccessToken(token), authenticationKey,
+				authentication.isClientOnly() ? null : authentication.getName(),
+				authentication.getOAuth2Request().getClientId(), serializeAuthentication(authentication),
+				extractTokenKey(refreshToken) }, token.getValue(), authenticationKey, pending));
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String tokenValue) {
+		Pending pending = pendingAccessTokens.get(tokenValue);
+		if (pending != null) {
+			return (OAuth2AccessToken) pending.token;
+		}
+		return super.readAccessToken(tokenValue);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthentication(String token) {
+		Pending pending = pendingAccessTokens.get(token);
+		if (pending != null) {
+			return pending.authentication;
+		}
+		return super.readAuthentication(token);
+	}
+
+	@Override
+	public void removeAccessToken(String tokenValue) {
+		Pending pending = new Pending(null, null);
+		pendingAccessTokens.put(tokenValue, pending);
+		enqueue(new Write(Operation.DELETE_ACCESS, extractTokenKey(tokenValue), new Object[] {
+				extractTokenKey(tokenValue) }, tokenValue, null, pending));
+	}
+
+	@Override
+	public void removeAccessTokenUsingRefreshToken(String refreshToken) {
+		Pending pending = pendingByRefreshToken.remove(refreshToken);
+		if (pending != null) {
+			String tokenValue = ((OAuth2AccessToken) pending.token).getValue();
+			if (pendingAccessTokens.get(tokenValue) == pending) {
+				removeAccessToken(tokenValue);
+			}
+		}
+		enqueue(new Write(Operation.DELETE_ACCESS_FROM_REFRESH, extractTokenKey(refreshToken), new Object[] {
+				extractTokenKey(refreshToken) }, null, null, null));
+	}
+
+	/**
+	 * Same as the superclass, but tolerates several rows for the same authentication: servers sharing the database
+	 * can each issue a token for it before seeing the other one's.
+	 */
+	@Override
+	public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
+		String key = authenticationKeyGenerator.extractKey(authentication);
+		Pending pending = pendingAuthentications.get(key);
+		if (pending != null) {
+			OAuth2AccessToken token = (OAuth2AccessToken) pending.token;
+			return pendingAccessTokens.get(token.getValue()) == pending ? token : null;
+		}
+		List<OAuth2AccessToken> tokens = jdbcTemplate.query(SELECT_ACCESS_TOKENS_FROM_AUTHENTICATION,
+				new RowMapper<OAuth2AccessToken>() {
+					@Override
+					public OAuth2AccessToken mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return deserializeAccessToken(rs.getBytes(2));
+					}
+				}, key);
+		for (OAuth2AccessToken token : tokens) {
+			Pending removed = pendingAccessTokens.get(token.getValue());
+			if (removed != null && removed.token == null) {
+				continue;
+			}
+			if (!key.equals(authenticationKeyGenerator.extractKey(readAuthentication(token.getValue())))) {
+				removeAccessToken(token.getValue());
+				// Keep the store consistent (maybe the same user is represented by this authentication but the
+				// details have changed)
+				storeAccessToken(token, authentication);
+			}
+			return token;
+		}
+		return null;
+	}
+
+	/**
+	 * Same as the superclass, with the tokens not written yet: a logout revoking the tokens of a user finds the ones
+	 * just issued.
+	 */
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientIdAndUserName(String clientId, String userName) {
+		return withPending(super.findTokensByClientIdAndUserName(clientId, userName), clientId, userName);
+	}
+
+	@Override
+	public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+		return withPending(super.findTokensByClientId(clientId), clientId, null);
+	}
+
+	/**
+	 * @param userName the user the tokens were issued to, null for any
+	 * @return the written tokens not removed since, and the tokens stored and not written yet
+	 */
+	private Collection<OAuth2AccessToken> withPending(Collection<OAuth2AccessToken> written, String clientId,
+			String userName) {
+		Map<String, OAuth2AccessToken> tokens = new LinkedHashMap<String, OAuth2AccessToken>();
+		for (OAuth2AccessToken token : written) {
+			Pending pending = pendingAccessTokens.get(token.getValue());
+			if (pending == null || pending.token != null) {
+				tokens.put(token.getValue(), token);
+			}
+		}
+		for (Pending pending : pendingAccessTokens.values()) {
+			if (pending.token == null) {
+				continue;
+			}
+			OAuth2Authentication authentication = pending.authentication;
+			if (clientId.equals(authentication.getOAuth2Request().getClientId()) && (userName == null
+					|| !authentication.isClientOnly() && userName.equals(authentication.getName()))) {
+				OAuth2AccessToken token = (OAuth2AccessToken) pending.token;
+				tokens.put(token.getValue(), token);
+			}
+		}
+		return new ArrayList<OAuth2AccessToken>(tokens.values());
+	}
+
+	@Override
+	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+		Pending pending = new Pending(refreshToken, authentication);
+		pendingRefreshTokens.put(refreshToken.getValue(), pending);
+		enqueue(new Write(Operation.INSERT_REFRESH, extractTokenKey(refreshToken.getValue()), new Object[] {
+				extractTokenKey(refreshToken.getValue()), serializeRefreshToken(refreshToken),
+				serializeAuthentication(authentication) }, refreshToken.getValue(), null, pending));
+	}
+
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String token) {
+		Pending pending = pendingRefreshTokens.get(token);
+		if (pending != null) {
+			return (OAuth2RefreshToken) pending.token;
+		}
+		return super.readRefreshToken(token);
+	}
+
+	@Override
+	public OAuth2Authentication readAuthenticationForRefreshToken(String value) {
+		Pending pending = pendingRefreshTokens.get(value);
+		if (pending != null) {
+			return pending.authentication;
+		}
+		return super.readAuthenticationForRefreshToken(value);
+	}
+
+	@Override
+	public void removeRefreshToken(String token) {
+		Pending pending = new Pending(null, null);
+		pendingRefreshTokens.put(token, pending);
+		enqueue(new Write(Operation.DELETE_REFRESH, extractTokenKey(token), new Object[] { extractTokenKey(token) },
+				token, null, pending));
+	}
+
+	private void enqueue(Write write) {
+		if (!running) {
+			throw new IllegalStateException("Token store is not running");
+		}
+		try {
+			queue.put(write);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while storing token change", e);
+		}
+	}
+
+	/**
+	 * Writer thread loop: take what is queued (up to the batch size) and write it, until stopped and drained.
+	 */
+	private void write() {
+		List<Write> batch = new ArrayList<Write>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				write(batch);
+			}
+			catch (InterruptedException e) {
+				logger.warn("Token store writer interrupted with " + queue.size() + " changes queued");
+				return;
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<Write> batch) {
+		try {
+			writeInTransaction(batch);
+		}
+		catch (RuntimeException e) {
+			logger.warn("Failed to write " + batch.size() + " token changes in a batch, writing them one by one", e);
+			for (Write write : batch) {
+				try {
+					writeInTransaction(Collections.singletonList(write));
+				}
+				catch (RuntimeException ex) {
+					logger.error("Failed to write token change " + write.operation + " " + write.key, ex);
+				}
+			}
+		}
+		finally {
+			for (Write write : batch) {
+				release(write);
+			}
+		}
+	}
+
+	private void writeInTransaction(final List<Write> batch) {
+		transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				writeCoalesced(batch);
+			}
+		});
+	}
+
+	/**
+	 * Apply the last change per token of the batch: deletes (including the rows about to be inserted again) first,
+	 * then inserts.
+	 */
+	private void writeCoalesced(List<Write> batch) {
+		Map<String, Write> accessTokens = new LinkedHashMap<String, Write>();
+		Map<String, Write> refreshTokens = new LinkedHashMap<String, Write>();
+		Set<String> accessTokensFromRefreshTokens = new LinkedHashSet<String>();
+		for (Write write : batch) {
+			switch (write.operation) {
+			case INSERT_ACCESS:
+			case DELETE_ACCESS:
+				accessTokens.remove(write.key);
+				accessTokens.put(write.key, write);
+				break;
+			case FLUSH:
+				break;
+			case DELETE_ACCESS_FROM_REFRESH:
+				// Earlier inserts of the batch are deleted with it, later ones must survive
+				for (Iterator<Write> it = accessTokens.values().iterator(); it.hasNext();) {
+					Write access = it.next();
+					if (access.operation == Operation.INSERT_ACCESS && write.key.equals(access.args[6])) {
+						it.remove();
+					}
+				}
+				accessTokensFromRefreshTokens.add(write.key);
+				break;
+			default:
+				refreshTokens.remove(write.key);
+				refreshTokens.put(write.key, write);
+			}
+		}
+		batchUpdate(DELETE_ACCESS_TOKEN_FROM_REFRESH_TOKEN, keys(accessTokensFromRefreshTokens));
+		batchUpdate(DELETE_ACCESS_TOKEN, keys(accessTokens.keySet()));
+		batchUpdate(INSERT_ACCESS_TOKEN, inserts(accessTokens.values(), Operation.INSERT_ACCESS));
+		batchUpdate(DELETE_REFRESH_TOKEN, keys(refreshTokens.keySet()));
+		batchUpdate(INSERT_REFRESH_TOKEN, inserts(refreshTokens.values(), Operation.INSERT_REFRESH));
+	}
+
+	private void batchUpdate(String sql, List<Object[]> args) {
+		if (!args.isEmpty()) {
+			jdbcTemplate.batchUpdate(sql, args);
+		}
+	}
+
+	private static List<Object[]> keys(Set<String> keys) {
+		List<Object[]> args = new ArrayList<Object[]>(keys.size());
+		for (String key : keys) {
+			args.add(new Object[] { key });
+		}
+		return args;
+	}
+
+	private static List<Object[]> inserts(Iterable<Write> writes, Operation operation) {
+		List<Object[]> args = new ArrayList<Object[]>();
+		for (Write write : writes) {
+			if (write.operation == operation) {
+				args.add(write.args);
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * The change is in the database (or failed for good): stop serving it from memory, unless it was superseded.
+	 */
+	private void release(Write write) {
+		if (write.written != null) {
+			write.written.countDown();
+		}
+		if (write.pending == null) {
+			return;
+		}
+		if (write.operation == Operation.INSERT_REFRESH || write.operation == Operation.DELETE_REFRESH) {
+			pendingRefreshTokens.remove(write.value, write.pending);
+			return;
+		}
+		// Authentication first: getAccessToken() relies on the token still being pending while it is
+		if (write.authenticationKey != null) {
+			pendingAuthentications.remove(write.authenticationKey, write.pending);
+		}
+		if (write.operation == Operation.INSERT_ACCESS) {
+			OAuth2RefreshToken refreshToken = ((OAuth2AccessToken) write.pending.token).getRefreshToken();
+			if (refreshToken != null) {
+				pendingByRefreshToken.remove(refreshToken.getValue(), write.pending);
+			}
+		}
+		pendingAccessTokens.remove(write.value, write.pending);
+	}
+}
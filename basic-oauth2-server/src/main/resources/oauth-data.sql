@@ -0,0 +1,6 @@
+-- Same client as the in-memory configuration of OAuthConfiguration
+
+insert into oauth_client_details (client_id, client_secret, scope, authorized_grant_types, authorities,
+	access_token_validity, autoapprove)
+values ('poc-spa-client', 'poc-spa-client', 'api_access,isMemberOf,mail,givenName,uid',
+	'authorization_code,refresh_token', 'ROLE_USER', 4, 'true');
@@ -0,0 +1,37 @@
+-- Tables used by JdbcTokenStore and JdbcClientDetailsService (oauth.tokenStore.type=jdbc)
+
+create table if not exists oauth_client_details (
+	client_id varchar(256) primary key,
+	resource_ids varchar(256),
+	client_secret varchar(256),
+	scope varchar(256),
+	authorized_grant_types varchar(256),
+	web_server_redirect_uri varchar(256),
+	authorities varchar(256),
+	access_token_validity integer,
+	refresh_token_validity integer,
+	additional_information varchar(4096),
+	autoapprove varchar(256)
+);
+
+create table if not exists oauth_access_token (
+	token_id varchar(256) primary key,
+	token blob,
+	authentication_id varchar(256),
+	user_name varchar(256),
+	client_id varchar(256),
+	authentication blob,
+	refresh_token varchar(256)
+);
+
+create index if not exists oauth_access_token_authentication on oauth_access_token (authentication_id);
+
+create index if not exists oauth_access_token_refresh on oauth_access_token (refresh_token);
+
+create index if not exists oauth_access_token_client on oauth_access_token (client_id, user_name);
+
+create table if not exists oauth_refresh_token (
+	token_id varchar(256) primary key,
+	token blob,
+	authentication blob
+);
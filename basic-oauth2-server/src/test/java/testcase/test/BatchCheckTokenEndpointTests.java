@@ -0,0 +1,84 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.endpoint.CheckTokenEndpoint;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import testcase.oauth2server.BatchCheckTokenEndpoint;
+
+public class BatchCheckTokenEndpointTests {
+
+	private final BatchCheckTokenEndpoint endpoint = new BatchCheckTokenEndpoint();
+
+	private DefaultTokenServices tokenServices;
+
+	@Before
+	public void setUp() {
+		tokenServices = new DefaultTokenServices();
+		tokenServices.setTokenStore(new InMemoryTokenStore());
+		ReflectionTestUtils.setField(endpoint, "checkTokenEndpoint", new CheckTokenEndpoint(tokenServices));
+		ReflectionTestUtils.setField(endpoint, "maxTokens", 3);
+	}
+
+	@Test
+	public void tokensAreCheckedInTheOrderOfTheRequest() {
+		OAuth2AccessToken first = tokenServices.createAccessToken(authentication("first"));
+		OAuth2AccessToken second = tokenServices.createAccessToken(authentication("second"));
+
+		ResponseEntity<List<Map<String, ?>>> response = endpoint
+				.checkTokens(Arrays.asList(second.getValue(), "unknown", first.getValue()));
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		List<Map<String, ?>> results = response.getBody();
+		assertEquals(3, results.size());
+		assertEquals("second", results.get(0).get("user_name"));
+		assertEquals(Collections.singleton("api_access"), results.get(0).get("scope"));
+		// As /oauth/check_token answers an unknown token
+		assertEquals("invalid_token", results.get(1).get("error"));
+		assertEquals("Token was not recognised", results.get(1).get("error_description"));
+		assertNull(results.get(1).get("user_name"));
+		assertEquals("first", results.get(2).get("user_name"));
+	}
+
+	@Test
+	public void revokedTokensAreInvalid() {
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication("first"));
+		tokenServices.revokeToken(token.getValue());
+
+		List<Map<String, ?>> results = endpoint.checkTokens(Collections.singletonList(token.getValue())).getBody();
+		assertEquals("invalid_token", results.get(0).get("error"));
+	}
+
+	@Test
+	public void moreTokensThanTheMaximumAreRejected() {
+		ResponseEntity<List<Map<String, ?>>> response = endpoint
+				.checkTokens(Arrays.asList("first", "second", "third", "fourth"));
+		assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, response.getStatusCode());
+		assertNull(response.getBody());
+	}
+
+	private static OAuth2Authentication authentication(String user) {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken(user, "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+}
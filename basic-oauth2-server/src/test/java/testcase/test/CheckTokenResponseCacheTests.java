@@ -0,0 +1,108 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+
+import testcase.oauth2server.CheckTokenResponseCache;
+
+public class CheckTokenResponseCacheTests {
+
+	private static final byte[] BODY = "{}".getBytes();
+
+	private final Map<String, ?> response = Collections.singletonMap("exp",
+			TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3600);
+
+	@Test
+	public void responsesAreCachedUntilTheTokenExpires() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 60);
+		cache.put("token", response, BODY);
+		assertArrayEquals(BODY, cache.get("token"));
+		assertNull(cache.get("other"));
+
+		cache.put("expiring", Collections.singletonMap("exp",
+				TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())), BODY);
+		assertNull(cache.get("expiring"));
+		assertArrayEquals(BODY, cache.get("token"));
+	}
+
+	@Test
+	public void responsesAreCachedForTheTimeToLiveAtMost() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 0);
+		cache.put("token", response, BODY);
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void cacheIsBounded() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(1, 60);
+		cache.put("first", response, BODY);
+		cache.put("second", response, BODY);
+		assertArrayEquals(BODY, cache.get("first"));
+		assertNull(cache.get("second"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void revokedTokenIsEvicted() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 60);
+		TokenStore tokenStore = cache.evicting(new InMemoryTokenStore());
+		DefaultOAuth2AccessToken accessToken = store(tokenStore, "token", new DefaultOAuth2RefreshToken("refresh"));
+		cache.put("token", response, BODY);
+		assertArrayEquals(BODY, cache.get("token"));
+
+		tokenStore.removeAccessToken(accessToken);
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void refreshedTokenIsEvicted() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 60);
+		TokenStore tokenStore = cache.evicting(new InMemoryTokenStore());
+		OAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken("refresh");
+		store(tokenStore, "token", refreshToken);
+		cache.put("token", response, BODY);
+
+		// As DefaultTokenServices.refreshAccessToken does
+		tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void tokenRemovedWhileItsResponseIsComputedIsNotCached() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 60);
+		cache.evicting(new InMemoryTokenStore());
+		cache.put("token", response, BODY);
+		assertNull(cache.get("token"));
+	}
+
+	private static DefaultOAuth2AccessToken store(TokenStore tokenStore, String value, OAuth2RefreshToken refreshToken) {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+		accessToken.setExpiration(new Date(System.currentTimeMillis() + 3600000));
+		accessToken.setRefreshToken(refreshToken);
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		OAuth2Authentication authentication = new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken("user", "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+		tokenStore.storeAccessToken(accessToken, authentication);
+		tokenStore.storeRefreshToken(refreshToken, authentication);
+		return accessToken;
+	}
+}
@@ -0,0 +1,139 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.endpoint.CheckTokenEndpoint;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import testcase.oauth2server.CheckTokenResponseCache;
+import testcase.oauth2server.CheckTokenResponseFilter;
+
+public class CheckTokenResponseFilterTests {
+
+	private final Map<String, Integer> counters = new HashMap<String, Integer>();
+
+	private DefaultTokenServices tokenServices;
+
+	private CheckTokenResponseFilter filter;
+
+	private OAuth2Authentication authentication;
+
+	@Before
+	public void setUp() throws Exception {
+		CheckTokenResponseCache cache = new CheckTokenResponseCache(100, 60);
+		tokenServices = new DefaultTokenServices();
+		tokenServices.setTokenStore(cache.evicting(new InMemoryTokenStore()));
+		tokenServices.setSupportRefreshToken(true);
+		filter = new CheckTokenResponseFilter(cache, new CheckTokenEndpoint(tokenServices), new ObjectMapper(),
+				new CounterService() {
+					@Override
+					public void increment(String metricName) {
+						Integer count = counters.get(metricName);
+						counters.put(metricName, count == null ? 1 : count + 1);
+					}
+
+					@Override
+					public void decrement(String metricName) {
+					}
+
+					@Override
+					public void reset(String metricName) {
+					}
+				});
+		filter.afterPropertiesSet();
+
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		authentication = new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken("user", "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+
+	@Test
+	public void secondCheckIsAnsweredFromTheCache() throws Exception {
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+
+		MockHttpServletResponse first = checkToken(token.getValue());
+		assertEquals(200, first.getStatus());
+		assertTrue(first.getContentAsString().contains("\"user_name\":\"user\""));
+		MockHttpServletResponse second = checkToken(token.getValue());
+		assertEquals(200, second.getStatus());
+		assertArrayEquals(first.getContentAsByteArray(), second.getContentAsByteArray());
+
+		assertEquals(Integer.valueOf(1), counters.get("oauth.checkToken.cache.miss"));
+		assertEquals(Integer.valueOf(1), counters.get("oauth.checkToken.cache.hit"));
+	}
+
+	@Test
+	public void invalidTokenIsAnsweredByTheFilter() throws Exception {
+		MockFilterChain chain = new MockFilterChain();
+		MockHttpServletResponse response = checkToken("unknown", chain);
+		assertEquals(400, response.getStatus());
+		assertTrue(response.getContentAsString().contains("\"error\":\"invalid_token\""));
+		assertEquals("no-store", response.getHeader("Cache-Control"));
+		// Not handed on to the endpoint
+		assertNull(chain.getRequest());
+	}
+
+	@Test
+	public void revokedTokenIsNoLongerActive() throws Exception {
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+		assertEquals(200, checkToken(token.getValue()).getStatus());
+
+		tokenServices.revokeToken(token.getValue());
+		assertEquals(400, checkToken(token.getValue()).getStatus());
+	}
+
+	@Test
+	public void refreshedTokenIsNoLongerActive() throws Exception {
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+		assertEquals(200, checkToken(token.getValue()).getStatus());
+
+		OAuth2AccessToken refreshed = tokenServices.refreshAccessToken(token.getRefreshToken().getValue(),
+				new TokenRequest(Collections.<String, String> emptyMap(), "poc-spa-client", null, "refresh_token"));
+		assertEquals(400, checkToken(token.getValue()).getStatus());
+		assertEquals(200, checkToken(refreshed.getValue()).getStatus());
+	}
+
+	@Test
+	public void requestWithoutTokenIsHandedOn() throws Exception {
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(new MockHttpServletRequest("POST", "/oauth/check_token"), new MockHttpServletResponse(), chain);
+		assertNotNull(chain.getRequest());
+	}
+
+	private MockHttpServletResponse checkToken(String token) throws Exception {
+		return checkToken(token, new MockFilterChain());
+	}
+
+	private MockHttpServletResponse checkToken(String token, MockFilterChain chain) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/oauth/check_token");
+		request.addParameter("token", token);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, chain);
+		return response;
+	}
+}
@@ -0,0 +1,161 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.exceptions.InvalidScopeException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+
+import testcase.oauth2server.GeneratingTokenServices;
+import testcase.oauth2server.TokenValueGenerator;
+
+public class GeneratingTokenServicesTests {
+
+	private final OAuth2Authentication authentication = authentication();
+
+	@Test
+	public void defaultTokenServices() throws Exception {
+		verify(new DefaultTokenServices(), new InMemoryTokenStore());
+	}
+
+	@Test
+	public void generatingTokenServices() throws Exception {
+		verify(new GeneratingTokenServices(), new InMemoryTokenStore());
+	}
+
+	@Test
+	public void tokenValuesComeFromTheGenerator() throws Exception {
+		final AtomicInteger values = new AtomicInteger();
+		GeneratingTokenServices tokenServices = new GeneratingTokenServices();
+		tokenServices.setTokenValueGenerator(new TokenValueGenerator() {
+			@Override
+			public String generate() {
+				return "value-" + values.incrementAndGet();
+			}
+		});
+		tokenServices.setTokenStore(new InMemoryTokenStore());
+		tokenServices.setSupportRefreshToken(true);
+
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+		assertEquals("value-1", token.getRefreshToken().getValue());
+		assertEquals("value-2", token.getValue());
+		assertEquals("value-3", tokenServices.refreshAccessToken("value-1", refresh()).getValue());
+	}
+
+	/**
+	 * Grant, reuse and refresh as {@link DefaultTokenServices} does, whatever the token values.
+	 */
+	private void verify(DefaultTokenServices tokenServices, InMemoryTokenStore tokenStore) throws Exception {
+		tokenServices.setTokenStore(tokenStore);
+		tokenServices.setSupportRefreshToken(true);
+		tokenServices.setAccessTokenValiditySeconds(600);
+		tokenServices.setRefreshTokenValiditySeconds(3600);
+
+		// Grant
+		long granted = System.currentTimeMillis();
+		OAuth2AccessToken token = tokenServices.createAccessToken(authentication);
+		assertEquals(Collections.singleton("api_access"), token.getScope());
+		assertExpiresIn(600, granted, token.getExpiration());
+		assertEquals(token.getValue(), tokenServices.readAccessToken(token.getValue()).getValue());
+		assertEquals("user", tokenServices.loadAuthentication(token.getValue()).getName());
+		assertEquals(token.getRefreshToken().getValue(),
+				tokenStore.readRefreshToken(token.getRefreshToken().getValue()).getValue());
+
+		// A valid token is reused
+		assertEquals(token.getValue(), tokenServices.createAccessToken(authentication).getValue());
+
+		// An expired token is replaced, keeping its refresh token
+		DefaultOAuth2AccessToken expired = new DefaultOAuth2AccessToken(token);
+		expired.setExpiration(new Date(System.currentTimeMillis() - 1000));
+		tokenStore.storeAccessToken(expired, authentication);
+		OAuth2AccessToken replaced = tokenServices.createAccessToken(authentication);
+		assertNotEquals(token.getValue(), replaced.getValue());
+		assertEquals(token.getRefreshToken().getValue(), replaced.getRefreshToken().getValue());
+		assertNull(tokenServices.readAccessToken(token.getValue()));
+
+		// Refresh, reusing the refresh token
+		OAuth2AccessToken refreshed = tokenServices.refreshAccessToken(replaced.getRefreshToken().getValue(),
+				refresh());
+		assertNotEquals(replaced.getValue(), refreshed.getValue());
+		assertEquals(replaced.getRefreshToken().getValue(), refreshed.getRefreshToken().getValue());
+		assertEquals(Collections.singleton("api_access"), refreshed.getScope());
+		assertNull(tokenServices.readAccessToken(replaced.getValue()));
+
+		// Refresh with a narrower, wider scope or another client
+		TokenRequest narrower = new TokenRequest(Collections.<String, String> emptyMap(), "poc-spa-client",
+				Collections.singleton("api_access"), "refresh_token");
+		assertEquals(Collections.singleton("api_access"),
+				tokenServices.refreshAccessToken(refreshed.getRefreshToken().getValue(), narrower).getScope());
+		try {
+			tokenServices.refreshAccessToken(refreshed.getRefreshToken().getValue(),
+					new TokenRequest(Collections.<String, String> emptyMap(), "poc-spa-client",
+							new HashSet<String>(Arrays.asList("api_access", "admin")), "refresh_token"));
+			fail("Expected InvalidScopeException");
+		}
+		catch (InvalidScopeException e) {
+		}
+		try {
+			tokenServices.refreshAccessToken(refreshed.getRefreshToken().getValue(),
+					new TokenRequest(Collections.<String, String> emptyMap(), "other-client", null, "refresh_token"));
+			fail("Expected InvalidGrantException");
+		}
+		catch (InvalidGrantException e) {
+		}
+
+		// Refresh, issuing a new refresh token: the old one is removed
+		tokenServices.setReuseRefreshToken(false);
+		String oldRefreshToken = refreshed.getRefreshToken().getValue();
+		long refreshedAt = System.currentTimeMillis();
+		OAuth2AccessToken reissued = tokenServices.refreshAccessToken(oldRefreshToken, refresh());
+		assertNotEquals(oldRefreshToken, reissued.getRefreshToken().getValue());
+		assertExpiresIn(600, refreshedAt, reissued.getExpiration());
+		assertEquals(reissued.getRefreshToken().getValue(),
+				tokenStore.readRefreshToken(reissued.getRefreshToken().getValue()).getValue());
+		try {
+			tokenServices.refreshAccessToken(oldRefreshToken, refresh());
+			fail("Expected InvalidGrantException");
+		}
+		catch (InvalidGrantException e) {
+		}
+
+		// Revoke
+		assertTrue(tokenServices.revokeToken(reissued.getValue()));
+		assertNull(tokenServices.readAccessToken(reissued.getValue()));
+	}
+
+	private static void assertExpiresIn(int seconds, long from, Date expiration) {
+		long expiresIn = expiration.getTime() - from;
+		assertTrue(String.valueOf(expiresIn), expiresIn >= seconds * 1000L && expiresIn < seconds * 1000L + 5000);
+	}
+
+	private static TokenRequest refresh() {
+		return new TokenRequest(Collections.<String, String> emptyMap(), "poc-spa-client", null, "refresh_token");
+	}
+
+	private static OAuth2Authentication authentication() {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken("user", "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+}
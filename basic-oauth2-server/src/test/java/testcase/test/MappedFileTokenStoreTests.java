@@ -0,0 +1,106 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import testcase.oauth2server.MappedFileTokenStore;
+import testcase.oauth2server.MappedRecordFile;
+
+public class MappedFileTokenStoreTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void storeReadAndRemoveTokens() throws Exception {
+		MappedFileTokenStore store = new MappedFileTokenStore(new MappedRecordFile(folder.getRoot(), 4096, 16));
+		OAuth2Authentication authentication = authentication("user");
+		OAuth2RefreshToken refreshToken = refreshToken("refresh");
+		DefaultOAuth2AccessToken accessToken = accessToken("access", refreshToken);
+
+		store.storeAccessToken(accessToken, authentication);
+		store.storeRefreshToken(refreshToken, authentication);
+
+		assertEquals(accessToken, store.readAccessToken("access"));
+		assertEquals(accessToken, store.getAccessToken(authentication));
+		assertEquals("user", store.readAuthentication("access").getName());
+		assertEquals(refreshToken, store.readRefreshToken("refresh"));
+		assertEquals("user", store.readAuthenticationForRefreshToken(refreshToken).getName());
+		assertEquals(1, store.findTokensByClientIdAndUserName("client", "user").size());
+		assertEquals(0, store.findTokensByClientIdAndUserName("client", "other").size());
+		assertEquals(1, store.findTokensByClientId("client").size());
+
+		// Refresh grant: the access token goes, the refresh token stays
+		store.removeAccessTokenUsingRefreshToken(refreshToken);
+		assertNull(store.readAccessToken("access"));
+		assertNull(store.getAccessToken(authentication));
+		assertEquals(refreshToken, store.readRefreshToken("refresh"));
+
+		store.removeRefreshToken(refreshToken);
+		assertNull(store.readRefreshToken("refresh"));
+	}
+
+	@Test
+	public void newTokenReplacesTheOneOfTheAuthentication() throws Exception {
+		MappedFileTokenStore store = new MappedFileTokenStore(new MappedRecordFile(folder.getRoot(), 4096, 16));
+		OAuth2Authentication authentication = authentication("user");
+		DefaultOAuth2AccessToken first = accessToken("first", refreshToken("refresh"));
+		DefaultOAuth2AccessToken second = accessToken("second", refreshToken("refresh"));
+
+		store.storeAccessToken(first, authentication);
+		store.storeAccessToken(second, authentication);
+		assertEquals(second, store.getAccessToken(authentication));
+
+		// Removing the older token leaves the link to the newer one
+		store.removeAccessToken(first);
+		assertEquals(second, store.getAccessToken(authentication));
+	}
+
+	@Test
+	public void tokensSurviveARestart() throws Exception {
+		MappedFileTokenStore store = new MappedFileTokenStore(new MappedRecordFile(folder.getRoot(), 4096, 16));
+		OAuth2Authentication authentication = authentication("user");
+		OAuth2RefreshToken refreshToken = refreshToken("refresh");
+		store.storeAccessToken(accessToken("access", refreshToken), authentication);
+		store.storeRefreshToken(refreshToken, authentication);
+		store.destroy();
+
+		MappedFileTokenStore restarted = new MappedFileTokenStore(new MappedRecordFile(folder.getRoot(), 4096, 16));
+		assertEquals("access", restarted.getAccessToken(authentication).getValue());
+		assertEquals("user", restarted.readAuthentication("access").getName());
+		assertEquals(refreshToken, restarted.readRefreshToken("refresh"));
+	}
+
+	private static OAuth2Authentication authentication(String userName) {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(userName, "N/A",
+				AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+
+	private static OAuth2RefreshToken refreshToken(String value) {
+		return new DefaultExpiringOAuth2RefreshToken(value, new Date(System.currentTimeMillis() + 3600000));
+	}
+
+	private static DefaultOAuth2AccessToken accessToken(String value, OAuth2RefreshToken refreshToken) {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+		accessToken.setExpiration(new Date(System.currentTimeMillis() + 60000));
+		accessToken.setRefreshToken(refreshToken);
+		return accessToken;
+	}
+}
@@ -0,0 +1,131 @@
+package testcase.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import testcase.oauth2server.MappedRecordFile;
+
+public class MappedRecordFileTests {
+
+	private static final byte KIND = 'A';
+
+	private static final byte OTHER_KIND = 'B';
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void putGetRemove() throws Exception {
+		MappedRecordFile records = new MappedRecordFile(folder.getRoot(), 4096, 16);
+		assertNull(records.get(KIND, "key"));
+
+		records.put(KIND, "key", bytes("value"), 0);
+		assertArrayEquals(bytes("value"), records.get(KIND, "key"));
+		// Keys are scoped by kind
+		assertNull(records.get(OTHER_KIND, "key"));
+		assertEquals(1, records.size());
+
+		assertArrayEquals(bytes("value"), records.remove(KIND, "key"));
+		assertNull(records.get(KIND, "key"));
+		assertNull(records.remove(KIND, "key"));
+		assertEquals(0, records.size());
+	}
+
+	@Test
+	public void overwrite() throws Exception {
+		MappedRecordFile records = new MappedRecordFile(folder.getRoot(), 4096, 16);
+		records.put(KIND, "key", bytes("first"), 0);
+		records.put(KIND, "key", bytes("second, longer than the first"), 0);
+		records.put(OTHER_KIND, "key", bytes("other"), 0);
+
+		assertArrayEquals(bytes("second, longer than the first"), records.get(KIND, "key"));
+		assertArrayEquals(bytes("other"), records.get(OTHER_KIND, "key"));
+		assertEquals(2, records.size());
+	}
+
+	@Test
+	public void compactionKeepsLiveRecordsOnly() throws Exception {
+		// Room for a few records only: the store compacts (and grows) many times
+		MappedRecordFile records = new MappedRecordFile(folder.getRoot(), 512, 16);
+		records.put(OTHER_KIND, "expired", bytes("expired"), System.currentTimeMillis() - 1);
+		for (int i = 0; i < 1000; i++) {
+			records.put(KIND, "key-" + (i % 50), bytes("value-" + i), 0);
+		}
+		records.remove(KIND, "key-0");
+
+		assertTrue(generation() > 0);
+		assertEquals(49, records.size());
+		assertNull(records.get(OTHER_KIND, "expired"));
+		assertNull(records.get(KIND, "key-0"));
+		for (int i = 1; i < 50; i++) {
+			assertArrayEquals(bytes("value-" + (950 + i)), records.get(KIND, "key-" + i));
+		}
+	}
+
+	@Test
+	public void reopenAfterClose() throws Exception {
+		MappedRecordFile records = new MappedRecordFile(folder.getRoot(), 512, 16);
+		for (int i = 0; i < 100; i++) {
+			records.put(KIND, "key-" + i, bytes("value-" + i), 0);
+		}
+		records.remove(KIND, "key-0");
+		records.close();
+
+		MappedRecordFile reopened = new MappedRecordFile(folder.getRoot(), 512, 16);
+		assertEquals(99, reopened.size());
+		assertNull(reopened.get(KIND, "key-0"));
+		for (int i = 1; i < 100; i++) {
+			assertArrayEquals(bytes("value-" + i), reopened.get(KIND, "key-" + i));
+		}
+	}
+
+	@Test
+	public void indexIsRebuiltFromTheDataFileWhenTruncated() throws Exception {
+		MappedRecordFile records = new MappedRecordFile(folder.getRoot(), 4096, 16);
+		for (int i = 0; i < 10; i++) {
+			records.put(KIND, "key-" + i, bytes("first-" + i), 0);
+		}
+		records.put(KIND, "key-0", bytes("second-0"), 0);
+		records.remove(KIND, "key-1");
+		records.close();
+
+		RandomAccessFile index = new RandomAccessFile(new File(folder.getRoot(), "tokens-" + generation() + ".index"),
+				"rw");
+		try {
+			index.setLength(10);
+		}
+		finally {
+			index.close();
+		}
+
+		MappedRecordFile reopened = new MappedRecordFile(folder.getRoot(), 4096, 16);
+		assertEquals(9, reopened.size());
+		assertArrayEquals(bytes("second-0"), reopened.get(KIND, "key-0"));
+		assertNull(reopened.get(KIND, "key-1"));
+		for (int i = 2; i < 10; i++) {
+			assertArrayEquals(bytes("first-" + i), reopened.get(KIND, "key-" + i));
+		}
+		reopened.put(KIND, "key-10", bytes("first-10"), 0);
+		assertArrayEquals(bytes("first-10"), reopened.get(KIND, "key-10"));
+	}
+
+	private int generation() throws Exception {
+		return Integer.parseInt(new String(Files.readAllBytes(new File(folder.getRoot(), "current").toPath()),
+				StandardCharsets.UTF_8).trim());
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,205 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.provider.TokenGranter;
+import org.springframework.security.oauth2.provider.TokenRequest;
+
+import testcase.oauth2server.RefreshGrantDeduplicator;
+
+public class RefreshGrantDeduplicatorTests {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final AtomicInteger deduplicated = new AtomicInteger();
+
+	private final CounterService counterService = new CounterService() {
+		@Override
+		public void increment(String metricName) {
+			deduplicated.incrementAndGet();
+		}
+
+		@Override
+		public void decrement(String metricName) {
+		}
+
+		@Override
+		public void reset(String metricName) {
+		}
+	};
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void refreshGrantIsReusedWithinTheWindow() throws Exception {
+		StubGranter granter = new StubGranter(60000);
+		RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 1000, counterService);
+
+		OAuth2AccessToken first = deduplicator.grant("refresh_token", refresh("client", "refresh"));
+		assertSame(first, deduplicator.grant("refresh_token", refresh("client", "refresh")));
+		assertEquals(1, granter.grants.get());
+		assertEquals(1, deduplicated.get());
+
+		// Another refresh token, or the same one presented by another client, is granted on its own
+		assertNotEquals(first, deduplicator.grant("refresh_token", refresh("client", "other")));
+		assertNotEquals(first, deduplicator.grant("refresh_token", refresh("other-client", "refresh")));
+		assertEquals(3, granter.grants.get());
+	}
+
+	@Test
+	public void concurrentRefreshGrantsWaitForTheFirst() throws Exception {
+		final StubGranter granter = new StubGranter(60000);
+		granter.release = new CountDownLatch(1);
+		final RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 1000, counterService);
+
+		Future<OAuth2AccessToken> first = executor.submit(grant(deduplicator));
+		granter.started.await(10, TimeUnit.SECONDS);
+		Future<OAuth2AccessToken> second = executor.submit(grant(deduplicator));
+		Thread.sleep(100);
+		granter.release.countDown();
+
+		assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, granter.grants.get());
+	}
+
+	@Test
+	public void refreshGrantIsRepeatedOnceTheWindowIsOver() throws Exception {
+		StubGranter granter = new StubGranter(60000);
+		RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 50, counterService);
+
+		OAuth2AccessToken first = deduplicator.grant("refresh_token", refresh("client", "refresh"));
+		Thread.sleep(100);
+		assertNotEquals(first, deduplicator.grant("refresh_token", refresh("client", "refresh")));
+		assertEquals(2, granter.grants.get());
+		assertEquals(0, deduplicated.get());
+	}
+
+	@Test
+	public void expiredTokenIsNotReused() throws Exception {
+		StubGranter granter = new StubGranter(-1000);
+		RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 60000, counterService);
+
+		OAuth2AccessToken first = deduplicator.grant("refresh_token", refresh("client", "refresh"));
+		assertNotEquals(first, deduplicator.grant("refresh_token", refresh("client", "refresh")));
+		assertEquals(2, granter.grants.get());
+	}
+
+	@Test
+	public void failedGrantFailsTheWaitingRequestsAndIsNotReused() throws Exception {
+		final StubGranter granter = new StubGranter(60000);
+		granter.release = new CountDownLatch(1);
+		granter.failures.set(1);
+		final RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 60000, counterService);
+
+		Future<OAuth2AccessToken> first = executor.submit(grant(deduplicator));
+		granter.started.await(10, TimeUnit.SECONDS);
+		Future<OAuth2AccessToken> second = executor.submit(grant(deduplicator));
+		Thread.sleep(100);
+		granter.release.countDown();
+
+		for (Future<OAuth2AccessToken> request : Arrays.asList(first, second)) {
+			try {
+				request.get(10, TimeUnit.SECONDS);
+				fail("Expected the grant to fail");
+			}
+			catch (ExecutionException e) {
+				assertEquals(InvalidGrantException.class, e.getCause().getClass());
+			}
+		}
+		// The next request tries again
+		deduplicator.grant("refresh_token", refresh("client", "refresh"));
+		assertEquals(2, granter.grants.get());
+	}
+
+	@Test
+	public void otherGrantTypesGoStraightThrough() throws Exception {
+		StubGranter granter = new StubGranter(60000);
+		RefreshGrantDeduplicator deduplicator = new RefreshGrantDeduplicator(granter, 60000, counterService);
+
+		TokenRequest request = new TokenRequest(Collections.singletonMap("code", "code"), "client",
+				Collections.singleton("api_access"), "authorization_code");
+		assertNotEquals(deduplicator.grant("authorization_code", request),
+				deduplicator.grant("authorization_code", request));
+		assertEquals(2, granter.grants.get());
+	}
+
+	private static TokenRequest refresh(String clientId, String refreshToken) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("grant_type", "refresh_token");
+		parameters.put("refresh_token", refreshToken);
+		return new TokenRequest(parameters, clientId, Collections.singleton("api_access"), "refresh_token");
+	}
+
+	private static Callable<OAuth2AccessToken> grant(final RefreshGrantDeduplicator deduplicator) {
+		return new Callable<OAuth2AccessToken>() {
+			@Override
+			public OAuth2AccessToken call() {
+				return deduplicator.grant("refresh_token", refresh("client", "refresh"));
+			}
+		};
+	}
+
+	/**
+	 * Issues a new token per grant, optionally after a release signal, failing the first grants if asked to.
+	 */
+	private static class StubGranter implements TokenGranter {
+
+		private final long lifetime;
+
+		private final AtomicInteger grants = new AtomicInteger();
+
+		private final AtomicInteger failures = new AtomicInteger();
+
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private volatile CountDownLatch release = new CountDownLatch(0);
+
+		private StubGranter(long lifetime) {
+			this.lifetime = lifetime;
+		}
+
+		@Override
+		public OAuth2AccessToken grant(String grantType, TokenRequest tokenRequest) {
+			int grant = grants.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failures.getAndDecrement() > 0) {
+				throw new InvalidGrantException("Invalid refresh token");
+			}
+			DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("token-" + grant);
+			token.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+			return token;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import testcase.oauth2server.RevocationLog;
+import testcase.token.TokenHash;
+
+public class RevocationLogTests {
+
+	private final RevocationLog log = new RevocationLog(4);
+
+	private final String epoch = epoch(log);
+
+	@Test
+	public void eventsAfterTheOffsetAreAnsweredAtOnce() {
+		log.tokenRemoved("first");
+		log.userLoggedOut("user", Collections.<String> emptyList());
+		log.tokenRemoved("second");
+
+		Map<String, Object> batch = poll(1, epoch);
+		assertEquals(epoch, batch.get("epoch"));
+		assertEquals(3L, batch.get("offset"));
+		assertEquals(false, batch.get("reset"));
+		List<Map<String, Object>> events = events(batch);
+		assertEquals(Arrays.asList(2L, 3L), offsets(events));
+		assertEquals(RevocationLog.USER, events.get(0).get("type"));
+		assertEquals("user", events.get(0).get("subject"));
+		assertEquals(RevocationLog.TOKEN, events.get(1).get("type"));
+		assertEquals(TokenHash.of("second"), events.get(1).get("subject"));
+	}
+
+	@Test
+	public void heldPollIsAnsweredByTheNextEvent() {
+		log.tokenRemoved("first");
+		DeferredResult<Map<String, Object>> result = log.poll(1, epoch, 10000);
+		assertFalse(result.hasResult());
+
+		log.tokenRemoved("second");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> batch = (Map<String, Object>) result.getResult();
+		assertEquals(2L, batch.get("offset"));
+		assertEquals(TokenHash.of("second"), events(batch).get(0).get("subject"));
+	}
+
+	@Test
+	public void pollFromNowGetsTheEventThatAnswersIt() {
+		log.tokenRemoved("first");
+		DeferredResult<Map<String, Object>> result = log.poll(-1, "", 10000);
+		assertFalse(result.hasResult());
+
+		log.tokenRemoved("second");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> batch = (Map<String, Object>) result.getResult();
+		assertEquals(false, batch.get("reset"));
+		assertEquals(Collections.singletonList(2L), offsets(events(batch)));
+	}
+
+	@Test
+	public void offsetsAreKeptAcrossTheWraparoundOfTheRing() {
+		for (int i = 1; i <= 6; i++) {
+			log.tokenRemoved("token-" + i);
+		}
+
+		Map<String, Object> batch = poll(2, epoch);
+		assertEquals(false, batch.get("reset"));
+		List<Map<String, Object>> events = events(batch);
+		assertEquals(Arrays.asList(3L, 4L, 5L, 6L), offsets(events));
+		for (int i = 0; i < events.size(); i++) {
+			assertEquals(TokenHash.of("token-" + (i + 3)), events.get(i).get("subject"));
+		}
+	}
+
+	@Test
+	public void offsetNoLongerRetainedIsReset() {
+		for (int i = 1; i <= 6; i++) {
+			log.tokenRemoved("token-" + i);
+		}
+
+		assertReset(poll(1, epoch), 6);
+		assertReset(poll(0, epoch), 6);
+	}
+
+	@Test
+	public void offsetOfAnotherEpochIsReset() {
+		log.tokenRemoved("first");
+
+		assertReset(poll(1, "other"), 1);
+		assertReset(poll(0, ""), 1);
+		// Ahead of this log: an offset of a previous run
+		assertReset(poll(5, epoch), 1);
+	}
+
+	@Test
+	public void eventsArePagedByMaxEvents() {
+		RevocationLog log = new RevocationLog(2000);
+		String epoch = epoch(log);
+		for (int i = 1; i <= 1500; i++) {
+			log.tokenRemoved("token-" + i);
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> first = (Map<String, Object>) log.poll(0, epoch, 0).getResult();
+		assertEquals(1000, events(first).size());
+		assertEquals(1000L, first.get("offset"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> second = (Map<String, Object>) log.poll(1000, epoch, 0).getResult();
+		assertEquals(500, events(second).size());
+		assertEquals(1001L, events(second).get(0).get("offset"));
+		assertEquals(1500L, second.get("offset"));
+	}
+
+	@Test
+	public void logoutRevokesTheTokensOfTheUserAndPublishesThem() {
+		TokenStore tokenStore = log.publishing(new InMemoryTokenStore());
+		for (String value : Arrays.asList("first", "second")) {
+			DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+			token.setRefreshToken(new DefaultOAuth2RefreshToken(value + "-refresh"));
+			tokenStore.storeAccessToken(token, authentication());
+			tokenStore.storeRefreshToken(token.getRefreshToken(), authentication());
+		}
+
+		log.userLoggedOut("user", Collections.singleton("poc-spa-client"));
+		assertNull(tokenStore.readAccessToken("first"));
+		assertNull(tokenStore.readRefreshToken("first-refresh"));
+		assertNull(tokenStore.readAccessToken("second"));
+		List<Map<String, Object>> events = events(poll(0, epoch));
+		assertEquals(3, events.size());
+		assertEquals(new HashSet<Object>(Arrays.asList(TokenHash.of("first"), TokenHash.of("second"))),
+				new HashSet<Object>(Arrays.asList(events.get(0).get("subject"), events.get(1).get("subject"))));
+		assertEquals(RevocationLog.USER, events.get(2).get("type"));
+		assertEquals("user", events.get(2).get("subject"));
+	}
+
+	private Map<String, Object> poll(long after, String epoch) {
+		DeferredResult<Map<String, Object>> result = log.poll(after, epoch, 10000);
+		assertTrue(result.hasResult());
+		@SuppressWarnings("unchecked")
+		Map<String, Object> batch = (Map<String, Object>) result.getResult();
+		return batch;
+	}
+
+	private static void assertReset(Map<String, Object> batch, long offset) {
+		assertEquals(true, batch.get("reset"));
+		assertEquals(offset, batch.get("offset"));
+		assertTrue(events(batch).isEmpty());
+	}
+
+	private static String epoch(RevocationLog log) {
+		// A poll from another epoch is answered at once, with the epoch of the log
+		return (String) ((Map<?, ?>) log.poll(0, "", 0).getResult()).get("epoch");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> events(Map<String, Object> batch) {
+		return (List<Map<String, Object>>) batch.get("events");
+	}
+
+	private static List<Object> offsets(List<Map<String, Object>> events) {
+		Object[] offsets = new Object[events.size()];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = events.get(i).get("offset");
+		}
+		return Arrays.asList(offsets);
+	}
+
+	private static OAuth2Authentication authentication() {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken("user", "N/A", AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+}
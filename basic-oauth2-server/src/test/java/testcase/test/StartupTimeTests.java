@@ -0,0 +1,35 @@
+package testcase.test;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import testcase.startup.StartupTimings;
+
+/**
+ * Starts the authorization server in fast startup mode (random ports, in memory token store) and checks it is up
+ * within the startup budget: oauth.startup.budget millis, a system property (default 20000).
+ */
+public class StartupTimeTests {
+
+	@Test
+	public void fastStartupIsWithinBudget() {
+		long budget = Long.getLong("oauth.startup.budget", 20000);
+		long start = System.currentTimeMillis();
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(testcase.oauth2server.Application.class)
+				.run("--server.port=0", "--management.port=0", "--oauth.startup.lazyInit.enabled=true",
+						"--oauth.tokenStore.type=memory");
+		try {
+			long time = System.currentTimeMillis() - start;
+			StartupTimings timings = context.getBean(StartupTimings.class);
+			assertTrue("Started in " + time + " ms, over the " + budget + " ms budget\n" + timings.report(10),
+					time < budget);
+			assertTrue(context.getBeanFactory().getBeanDefinition("revocationLog").isLazyInit());
+		}
+		finally {
+			context.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import testcase.oauth2server.ThreadLocalTokenValueGenerator;
+import testcase.oauth2server.ThreadLocalTokenValueGenerator.Encoding;
+
+public class ThreadLocalTokenValueGeneratorTests {
+
+	@Test
+	public void uuidValuesAreRandomVersion4Uuids() {
+		ThreadLocalTokenValueGenerator generator = new ThreadLocalTokenValueGenerator();
+		for (int i = 0; i < 1000; i++) {
+			String value = generator.generate();
+			assertEquals(36, value.length());
+			assertTrue(value, value.matches("[0-9a-f]{8}-[0-9a-f]{4}-4[0-9a-f]{3}-[89ab][0-9a-f]{3}-[0-9a-f]{12}"));
+			UUID uuid = UUID.fromString(value);
+			assertEquals(4, uuid.version());
+			assertEquals(2, uuid.variant());
+			assertEquals(value, uuid.toString());
+		}
+	}
+
+	@Test
+	public void uuidValuesIgnoreTheByteCount() {
+		assertEquals(36, new ThreadLocalTokenValueGenerator(Encoding.UUID, 32).generate().length());
+	}
+
+	@Test
+	public void hexValuesHaveTwoCharactersPerByte() {
+		String value = new ThreadLocalTokenValueGenerator(Encoding.HEX, 32).generate();
+		assertEquals(64, value.length());
+		assertTrue(value, value.matches("[0-9a-f]+"));
+	}
+
+	@Test
+	public void base64urlValuesAreUnpaddedAndUrlSafe() {
+		assertEquals(43, new ThreadLocalTokenValueGenerator(Encoding.BASE64URL, 32).generate().length());
+		for (int i = 0; i < 1000; i++) {
+			String value = new ThreadLocalTokenValueGenerator(Encoding.BASE64URL, 16).generate();
+			assertEquals(22, value.length());
+			assertTrue(value, value.matches("[A-Za-z0-9_-]+"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void lessThan16BytesAreRejected() {
+		new ThreadLocalTokenValueGenerator(Encoding.HEX, 15);
+	}
+
+	@Test
+	public void valuesAreUniqueAcrossThreads() throws Exception {
+		final ThreadLocalTokenValueGenerator generator = new ThreadLocalTokenValueGenerator(Encoding.BASE64URL, 16);
+		final Set<String> values = new HashSet<String>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						String value = generator.generate();
+						synchronized (values) {
+							values.add(value);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, values.size());
+	}
+}
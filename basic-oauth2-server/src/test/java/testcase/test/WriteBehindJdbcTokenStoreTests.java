@@ -0,0 +1,287 @@
+package testcase.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.store.JdbcTokenStore;
+
+import testcase.oauth2server.WriteBehindJdbcTokenStore;
+
+public class WriteBehindJdbcTokenStoreTests {
+
+	private EmbeddedDatabase database;
+
+	private WriterDataSource dataSource;
+
+	private WriteBehindJdbcTokenStore store;
+
+	/** Reads the database only */
+	private JdbcTokenStore written;
+
+	@Before
+	public void setUp() {
+		database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true)
+				.addScript("classpath:oauth-schema.sql").build();
+		dataSource = new WriterDataSource(database);
+		store = new WriteBehindJdbcTokenStore(dataSource);
+		store.afterPropertiesSet();
+		written = new JdbcTokenStore(database);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dataSource.open();
+		store.destroy();
+		database.shutdown();
+	}
+
+	@Test
+	public void changesAreReadBeforeTheyAreWritten() throws Exception {
+		holdWriter();
+		OAuth2Authentication authentication = authentication("user");
+		OAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken("refresh");
+		store.storeAccessToken(accessToken("access", refreshToken), authentication);
+		store.storeRefreshToken(refreshToken, authentication);
+
+		assertEquals("access", store.readAccessToken("access").getValue());
+		assertEquals("user", store.readAuthentication("access").getName());
+		assertEquals("access", store.getAccessToken(authentication).getValue());
+		assertEquals(refreshToken, store.readRefreshToken("refresh"));
+		assertEquals("user", store.readAuthenticationForRefreshToken(refreshToken).getName());
+		assertNull(written.readAccessToken("access"));
+
+		dataSource.open();
+		store.flush();
+		assertEquals("access", written.readAccessToken("access").getValue());
+		assertEquals(refreshToken, written.readRefreshToken("refresh"));
+
+		// Removals are read before they are written as well
+		holdWriter();
+		store.removeAccessToken("access");
+		store.removeRefreshToken("refresh");
+		assertNull(store.readAccessToken("access"));
+		assertNull(store.getAccessToken(authentication));
+		assertNull(store.readRefreshToken("refresh"));
+		assertEquals("access", written.readAccessToken("access").getValue());
+
+		dataSource.open();
+		store.flush();
+		assertNull(written.readAccessToken("access"));
+		assertNull(written.readRefreshToken("refresh"));
+	}
+
+	@Test
+	public void listingsIncludeChangesNotWrittenYet() throws Exception {
+		OAuth2Authentication authentication = authentication("user");
+		store.storeAccessToken(accessToken("written", null), authentication);
+		store.storeAccessToken(accessToken("removed", null), authentication("other"));
+		store.flush();
+		holdWriter();
+		store.removeAccessToken("removed");
+		store.storeAccessToken(accessToken("pending", null), authentication);
+
+		assertEquals(new HashSet<String>(Arrays.asList("written", "pending")),
+				values(store.findTokensByClientIdAndUserName("client", "user")));
+		assertTrue(store.findTokensByClientIdAndUserName("client", "other").isEmpty());
+		assertEquals(new HashSet<String>(Arrays.asList("written", "pending")),
+				values(store.findTokensByClientId("client")));
+		assertEquals(Collections.singleton("written"),
+				values(written.findTokensByClientIdAndUserName("client", "user")));
+	}
+
+	@Test
+	public void lastChangePerTokenIsWrittenWithinABatch() throws Exception {
+		holdWriter();
+		OAuth2Authentication authentication = authentication("user");
+		store.storeAccessToken(accessToken("removed", null), authentication);
+		store.removeAccessToken("removed");
+		store.storeAccessToken(accessToken("kept", null), authentication);
+
+		dataSource.open();
+		store.flush();
+		assertNull(written.readAccessToken("removed"));
+		assertEquals("kept", written.readAccessToken("kept").getValue());
+		// One delete of both keys and one insert in the batch, the removed token was never inserted
+		assertEquals(1, dataSource.count("insert into oauth_access_token"));
+		assertEquals(1, dataSource.count("delete from oauth_access_token where token_id"));
+	}
+
+	@Test
+	public void accessTokensRemovedUsingTheirRefreshTokenBeforeTheNextIsStored() throws Exception {
+		OAuth2Authentication authentication = authentication("user");
+		OAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken("refresh");
+
+		// Refresh grant on a written token: the delete by refresh token runs before the insert of the new token
+		store.storeAccessToken(accessToken("first", refreshToken), authentication);
+		store.flush();
+		holdWriter();
+		store.removeAccessTokenUsingRefreshToken(refreshToken);
+		store.storeAccessToken(accessToken("second", refreshToken), authentication);
+
+		// Refresh grant on a token not written yet, in the same batch
+		store.removeAccessTokenUsingRefreshToken(refreshToken);
+		assertNull(store.readAccessToken("second"));
+		store.storeAccessToken(accessToken("third", refreshToken), authentication);
+
+		dataSource.open();
+		store.flush();
+		assertNull(written.readAccessToken("first"));
+		assertNull(written.readAccessToken("second"));
+		assertEquals("third", written.readAccessToken("third").getValue());
+		assertEquals("third", store.getAccessToken(authentication).getValue());
+	}
+
+	@Test
+	public void failedBatchIsWrittenRowByRow() throws Exception {
+		holdWriter();
+		store.storeAccessToken(accessToken("valid", null), authentication("user"));
+		// user_name is a varchar(256)
+		char[] tooLong = new char[300];
+		Arrays.fill(tooLong, 'x');
+		store.storeAccessToken(accessToken("invalid", null), authentication(new String(tooLong)));
+		store.storeRefreshToken(new DefaultOAuth2RefreshToken("refresh"), authentication("user"));
+
+		dataSource.open();
+		store.flush();
+		assertEquals("valid", written.readAccessToken("valid").getValue());
+		assertEquals("refresh", written.readRefreshToken("refresh").getValue());
+		assertNull(written.readAccessToken("invalid"));
+		// Failed for good: no longer served from memory
+		assertNull(store.readAccessToken("invalid"));
+	}
+
+	private static Set<String> values(Collection<OAuth2AccessToken> tokens) {
+		Set<String> values = new HashSet<String>();
+		for (OAuth2AccessToken token : tokens) {
+			values.add(token.getValue());
+		}
+		return values;
+	}
+
+	private static OAuth2Authentication authentication(String userName) {
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null, null,
+				null, null);
+		return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken(userName, "N/A",
+				AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+
+	private static DefaultOAuth2AccessToken accessToken(String value, OAuth2RefreshToken refreshToken) {
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+		accessToken.setRefreshToken(refreshToken);
+		return accessToken;
+	}
+
+	/**
+	 * Hold the writer of the store on its next batch, so that the changes made until {@link WriterDataSource#open()}
+	 * queue up into the batch after it.
+	 */
+	private void holdWriter() throws InterruptedException {
+		dataSource.hold();
+		// Any change wakes the writer up, which then waits for its connection
+		store.removeRefreshToken("unknown");
+		assertTrue("Writer not held", dataSource.awaitHeld());
+	}
+
+	/**
+	 * Connections of the store's writer thread wait while closed, and record the statements they prepare.
+	 */
+	private static class WriterDataSource extends DelegatingDataSource {
+
+		private final List<String> statements = new CopyOnWriteArrayList<String>();
+
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		private volatile CountDownLatch held = new CountDownLatch(0);
+
+		private WriterDataSource(EmbeddedDatabase database) {
+			super(database);
+		}
+
+		void hold() {
+			gate = new CountDownLatch(1);
+			held = new CountDownLatch(1);
+		}
+
+		boolean awaitHeld() throws InterruptedException {
+			return held.await(10, TimeUnit.SECONDS);
+		}
+
+		void open() {
+			gate.countDown();
+		}
+
+		int count(String statement) {
+			int count = 0;
+			for (String sql : statements) {
+				if (sql.startsWith(statement)) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			final Connection connection = super.getConnection();
+			if (!"token-store-writer".equals(Thread.currentThread().getName())) {
+				return connection;
+			}
+			held.countDown();
+			try {
+				gate.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted", e);
+			}
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if (method.getName().equals("prepareStatement")) {
+								statements.add((String) args[0]);
+							}
+							try {
+								return method.invoke(connection, args);
+							}
+							catch (InvocationTargetException e) {
+								throw e.getTargetException();
+							}
+						}
+					});
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package testcase.benchmarks;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.token.AccessTokenProvider;
+import org.springframework.security.oauth2.client.token.AccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+
+/**
+ * {@link OAuth2RestTemplate#getAccessToken()} with many threads sharing one client context, as concurrent requests
+ * of one session do in the gateway.
+ * <ul>
+ * <li>valid: the token in the context is valid, every call just reads it.</li>
+ * <li>expired: the token provider issues tokens that are already expired, so every call goes down the refresh path
+ * and contends with the other threads refreshing the same token.</li>
+ * </ul>
+ * The token provider is a local stub returning a new token after a configurable delay, standing in for the call to
+ * the authorization server. The tokens it issues are reported as the tokensIssued secondary result (throughput
+ * mode), next to the calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class AccessTokenBenchmark {
+
+	@Param({ "valid", "expired" })
+	public String token;
+
+	@Param({ "true", "false" })
+	public boolean coalesceRefresh;
+
+	/**
+	 * Simulated latency of the token endpoint, in micros
+	 */
+	@Param({ "100" })
+	public long refreshLatency;
+
+	private OAuth2RestTemplate restTemplate;
+
+	private StubAccessTokenProvider accessTokenProvider;
+
+	@Setup
+	public void setUp() {
+		AuthorizationCodeResourceDetails resource = new AuthorizationCodeResourceDetails();
+		resource.setId("poc-spa-client");
+		resource.setClientId("poc-spa-client");
+		resource.setAccessTokenUri("http://localhost:8088/oauth/token");
+		resource.setUserAuthorizationUri("http://localhost:8088/oauth/authorize");
+
+		long lifetime = "valid".equals(token) ? TimeUnit.HOURS.toMillis(1) : -1000;
+		accessTokenProvider = new StubAccessTokenProvider(lifetime, TimeUnit.MICROSECONDS.toNanos(refreshLatency));
+		DefaultOAuth2ClientContext context = new DefaultOAuth2ClientContext();
+		context.setAccessToken(accessTokenProvider.newToken(UUID.randomUUID().toString()));
+
+		restTemplate = new OAuth2RestTemplate(resource, context);
+		restTemplate.setAccessTokenProvider(accessTokenProvider);
+		restTemplate.setCoalesceTokenRefresh(coalesceRefresh);
+	}
+
+	/**
+	 * Tokens issued to the calls of a benchmark thread, so that the results show how many calls refreshed.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters
+	public static class IssuedTokens {
+
+		public long tokensIssued;
+
+		@Setup
+		public void register(AccessTokenBenchmark benchmark) {
+			benchmark.accessTokenProvider.counters.set(this);
+		}
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			tokensIssued = 0;
+		}
+	}
+
+	@Benchmark
+	public OAuth2AccessToken getAccessToken(IssuedTokens issuedTokens) {
+		return restTemplate.getAccessToken();
+	}
+
+	static class StubAccessTokenProvider implements AccessTokenProvider {
+
+		private final long lifetime;
+
+		private final long latencyNanos;
+
+		private final ThreadLocal<IssuedTokens> counters = new ThreadLocal<IssuedTokens>();
+
+		StubAccessTokenProvider(long lifetime, long latencyNanos) {
+			this.lifetime = lifetime;
+			this.latencyNanos = latencyNanos;
+		}
+
+		@Override
+		public OAuth2AccessToken obtainAccessToken(OAuth2ProtectedResourceDetails details,
+				AccessTokenRequest parameters) {
+			OAuth2AccessToken existing = parameters.getExistingToken();
+			String refreshToken = existing != null && existing.getRefreshToken() != null
+					? existing.getRefreshToken().getValue()
+					: UUID.randomUUID().toString();
+			return issue(refreshToken);
+		}
+
+		@Override
+		public OAuth2AccessToken refreshAccessToken(OAuth2ProtectedResourceDetails resource,
+				OAuth2RefreshToken refreshToken, AccessTokenRequest request) {
+			return issue(refreshToken.getValue());
+		}
+
+		@Override
+		public boolean supportsResource(OAuth2ProtectedResourceDetails resource) {
+			return true;
+		}
+
+		@Override
+		public boolean supportsRefresh(OAuth2ProtectedResourceDetails resource) {
+			return true;
+		}
+
+		OAuth2AccessToken newToken(String refreshToken) {
+			DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(UUID.randomUUID().toString());
+			accessToken.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+			accessToken.setRefreshToken(new DefaultOAuth2RefreshToken(refreshToken));
+			return accessToken;
+		}
+
+		private OAuth2AccessToken issue(String refreshToken) {
+			IssuedTokens issuedTokens = counters.get();
+			if (issuedTokens != null) {
+				issuedTokens.tokensIssued++;
+			}
+			long deadline = System.nanoTime() + latencyNanos;
+			while (System.nanoTime() < deadline) {
+				// busy wait: parking would add scheduler noise of the same order as the latency itself
+			}
+			return newToken(refreshToken);
+		}
+	}
+}
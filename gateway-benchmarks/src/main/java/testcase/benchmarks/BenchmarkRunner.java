@@ -0,0 +1,43 @@
+package testcase.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the gateway benchmarks with a fixed baseline setup: throughput and latency percentiles (from each
+ * benchmark's modes) plus allocation rates from the gc profiler, written as JSON to
+ * <code>target/jmh-result.json</code> so that runs before and after a change can be compared.
+ * <p>
+ * Takes the usual JMH command line, e.g. <code>java -jar target/benchmarks.jar AccessToken -p token=expired</code>;
+ * explicit options override the defaults set here.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(commandLine);
+		options.addProfiler(GCProfiler.class);
+		if (commandLine.getIncludes().isEmpty()) {
+			options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+		}
+		if (!commandLine.getForkCount().hasValue()) {
+			options.forks(1);
+		}
+		if (!commandLine.getWarmupIterations().hasValue()) {
+			options.warmupIterations(5);
+		}
+		if (!commandLine.getMeasurementIterations().hasValue()) {
+			options.measurementIterations(10);
+		}
+		if (!commandLine.getResult().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON).result("target/jmh-result.json");
+		}
+		new Runner(options.build()).run();
+	}
+}
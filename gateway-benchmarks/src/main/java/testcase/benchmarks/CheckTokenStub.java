@@ -0,0 +1,63 @@
+package testcase.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local check_token endpoint answering every request with the same valid token response, so that
+ * benchmarks measure the gateway side of the call rather than the authorization server.
+ */
+class CheckTokenStub {
+
+	static final String CHECK_TOKEN_RESPONSE = "{\"aud\":[\"api\"],\"user_name\":\"user\",\"scope\":[\"api_access\","
+			+ "\"isMemberOf\",\"mail\",\"givenName\",\"uid\"],\"exp\":4102444800,\"authorities\":[\"ROLE_USER\"],"
+			+ "\"client_id\":\"poc-spa-client\"}";
+
+	private final byte[] response = CHECK_TOKEN_RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	/**
+	 * @return the url of the stub check_token endpoint
+	 */
+	String start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		server.setExecutor(executor);
+		server.createContext("/oauth/check_token", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream body = exchange.getRequestBody();
+				byte[] buffer = new byte[1024];
+				while (body.read(buffer) != -1) {
+					// drain the form so the connection can be kept alive
+				}
+				exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		InetSocketAddress address = server.getAddress();
+		return "http://" + address.getHostString() + ":" + address.getPort() + "/oauth/check_token";
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
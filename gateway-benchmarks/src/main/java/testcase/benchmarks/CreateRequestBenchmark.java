@@ -0,0 +1,100 @@
+package testcase.benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
+import org.springframework.security.oauth2.common.AuthenticationScheme;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * The per request token work of {@link OAuth2RestTemplate}: <code>createRequest</code> (token lookup plus header or
+ * query authentication) and <code>appendQueryParameter</code> on its own. The underlying request factory returns
+ * in-memory requests, so no connection is opened. The same token is used throughout, as between the refreshes of a
+ * session: gc.alloc.rate.norm (gc profiler) is the allocation per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CreateRequestBenchmark {
+
+	@Param({ "header", "query" })
+	public String scheme;
+
+	private final URI uri = URI.create("http://localhost:8088/me?fields=mail,givenName&lang=en#profile");
+
+	private BenchmarkRestTemplate restTemplate;
+
+	private OAuth2AccessToken accessToken;
+
+	@Setup
+	public void setUp() {
+		AuthorizationCodeResourceDetails resource = new AuthorizationCodeResourceDetails();
+		resource.setId("poc-spa-client");
+		resource.setClientId("poc-spa-client");
+		resource.setAuthenticationScheme(AuthenticationScheme.valueOf(scheme));
+
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("3f8a5c1e-8d2b-4a6f-9c0e-7b1d2e4f6a8c");
+		token.setExpiration(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+		accessToken = token;
+		DefaultOAuth2ClientContext context = new DefaultOAuth2ClientContext();
+		context.setAccessToken(accessToken);
+
+		restTemplate = new BenchmarkRestTemplate(resource, context);
+		restTemplate.setRequestFactory(new ClientHttpRequestFactory() {
+			@Override
+			public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) {
+				return new MockClientHttpRequest(httpMethod, uri);
+			}
+		});
+	}
+
+	@Benchmark
+	public ClientHttpRequest createRequest() throws IOException {
+		return restTemplate.createRequest(uri, HttpMethod.GET);
+	}
+
+	@Benchmark
+	public URI appendQueryParameter() {
+		return restTemplate.appendQueryParameter(uri, accessToken);
+	}
+
+	/**
+	 * Opens up the protected methods under test.
+	 */
+	static class BenchmarkRestTemplate extends OAuth2RestTemplate {
+
+		BenchmarkRestTemplate(OAuth2ProtectedResourceDetails resource, OAuth2ClientContext context) {
+			super(resource, context);
+		}
+
+		@Override
+		public ClientHttpRequest createRequest(URI uri, HttpMethod method) throws IOException {
+			return super.createRequest(uri, method);
+		}
+
+		@Override
+		public URI appendQueryParameter(URI uri, OAuth2AccessToken accessToken) {
+			return super.appendQueryParameter(uri, accessToken);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package testcase.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+
+import testcase.gateway.InterningAccessTokenConverter;
+
+/**
+ * Conversion of a parsed check_token response into an authentication, with the framework's
+ * {@link DefaultAccessTokenConverter} and with the gateway's {@link InterningAccessTokenConverter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtractAuthenticationBenchmark {
+
+	@Param({ "default", "interning" })
+	public String converter;
+
+	private AccessTokenConverter tokenConverter;
+
+	private Map<String, Object> checkTokenResponse;
+
+	@Setup
+	public void setUp() {
+		tokenConverter = "interning".equals(converter)
+				? new InterningAccessTokenConverter()
+				: new DefaultAccessTokenConverter();
+		checkTokenResponse = JsonParserFactory.create().parseMap(CheckTokenStub.CHECK_TOKEN_RESPONSE);
+	}
+
+	@Benchmark
+	public OAuth2Authentication extractAuthentication() {
+		return tokenConverter.extractAuthentication(checkTokenResponse);
+	}
+}
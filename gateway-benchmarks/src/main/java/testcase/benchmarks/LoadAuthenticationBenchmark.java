@@ -0,0 +1,79 @@
+package testcase.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import testcase.gateway.CustomRemoteTokenServices;
+import testcase.gateway.IntrospectionCache;
+import testcase.gateway.PooledClientHttpRequestFactory;
+
+/**
+ * {@link CustomRemoteTokenServices#loadAuthentication(String)} against a local check_token stub: the full gateway
+ * side of a token validation (form encoding, http call, JSON parsing, authentication conversion).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class LoadAuthenticationBenchmark {
+
+	/**
+	 * simple: one connection per call (JDK HttpURLConnection); pooled: keep-alive connection pool
+	 */
+	@Param({ "simple", "pooled" })
+	public String transport;
+
+	/**
+	 * Whether check_token results are cached (a single token: every call after the first is a hit)
+	 */
+	@Param({ "false", "true" })
+	public boolean cache;
+
+	private final CheckTokenStub stub = new CheckTokenStub();
+
+	private PooledClientHttpRequestFactory pooledRequestFactory;
+
+	private CustomRemoteTokenServices tokenServices;
+
+	@Setup
+	public void setUp() throws IOException {
+		String checkTokenUrl = stub.start();
+		if ("pooled".equals(transport)) {
+			pooledRequestFactory = new PooledClientHttpRequestFactory(200, 100, 1000, 5000, 30000);
+			tokenServices = new CustomRemoteTokenServices(pooledRequestFactory);
+		}
+		else {
+			tokenServices = new CustomRemoteTokenServices(new SimpleClientHttpRequestFactory());
+		}
+		tokenServices.setCheckTokenEndpointUrl(checkTokenUrl);
+		if (cache) {
+			tokenServices.setIntrospectionCache(new IntrospectionCache(10000));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (pooledRequestFactory != null) {
+			pooledRequestFactory.destroy();
+		}
+		stub.stop();
+	}
+
+	@Benchmark
+	public OAuth2Authentication loadAuthentication() {
+		return tokenServices.loadAuthentication("3f8a5c1e-8d2b-4a6f-9c0e-7b1d2e4f6a8c");
+	}
+}
@@ -0,0 +1,83 @@
+package testcase.benchmarks;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
+
+import testcase.oauth2server.GeneratingTokenServices;
+import testcase.oauth2server.ThreadLocalTokenValueGenerator;
+import testcase.oauth2server.TokenValueGenerator;
+
+/**
+ * Token grants (access and refresh token creation) in the basic-oauth2-server token services, on one thread and on
+ * all cores, to compare how grants per second scale:
+ * <ul>
+ * <li>uuid: values from <code>UUID.randomUUID()</code>, as spring-oauth2 generates them, all threads drawing from
+ * one shared SecureRandom.</li>
+ * <li>threadLocal: values from {@link ThreadLocalTokenValueGenerator}, the server default.</li>
+ * </ul>
+ * The token store keeps nothing (a JwtTokenStore, without enhancing the tokens into JWTs), so that only the token
+ * services and the value generation are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenGrantBenchmark {
+
+	@Param({ "uuid", "threadLocal" })
+	public String generator;
+
+	private GeneratingTokenServices tokenServices;
+
+	private OAuth2Authentication authentication;
+
+	@Setup
+	public void setUp() {
+		tokenServices = new GeneratingTokenServices();
+		tokenServices.setTokenStore(new JwtTokenStore(new JwtAccessTokenConverter()));
+		tokenServices.setSupportRefreshToken(true);
+		if ("uuid".equals(generator)) {
+			tokenServices.setTokenValueGenerator(new TokenValueGenerator() {
+				@Override
+				public String generate() {
+					return UUID.randomUUID().toString();
+				}
+			});
+		}
+
+		OAuth2Request request = new OAuth2Request(Collections.<String, String> emptyMap(), "poc-spa-client",
+				AuthorityUtils.createAuthorityList("ROLE_USER"), true, Collections.singleton("api_access"), null,
+				null, null, null);
+		authentication = new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken("user", "N/A",
+				AuthorityUtils.createAuthorityList("ROLE_USER")));
+	}
+
+	@Benchmark
+	@Threads(1)
+	public OAuth2AccessToken grantOneThread() {
+		return tokenServices.createAccessToken(authentication);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public OAuth2AccessToken grantAllCores() {
+		return tokenServices.createAccessToken(authentication);
+	}
+}
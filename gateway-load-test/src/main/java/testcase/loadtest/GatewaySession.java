@@ -0,0 +1,102 @@
+package testcase.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A user session in the gateway, established with the same flow a browser follows: login in the authorization
+ * server, then the gateway's /login redirecting to /oauth/authorize and back with the authorization code.
+ * <p>
+ * Both servers run on localhost and use the same session cookie name, so cookies are handled by hand rather than
+ * with a cookie store (which ignores ports), and redirects are followed explicitly.
+ */
+public class GatewaySession {
+
+	private final String cookie;
+
+	private GatewaySession(String cookie) {
+		this.cookie = cookie;
+	}
+
+	/**
+	 * @param httpClient client with cookie management and redirect handling disabled
+	 * @param settings the urls and credentials to use
+	 * @return an authenticated gateway session
+	 */
+	public static GatewaySession login(HttpClient httpClient, LoadTestSettings settings) throws IOException {
+		// Authenticate the user in the authorization server
+		HttpPost login = new HttpPost(settings.getAuthServerUrl() + "/login");
+		List<NameValuePair> credentials = new ArrayList<NameValuePair>();
+		credentials.add(new BasicNameValuePair("username", settings.getUsername()));
+		credentials.add(new BasicNameValuePair("password", settings.password()));
+		login.setEntity(new UrlEncodedFormEntity(credentials, "UTF-8"));
+		HttpResponse response = execute(httpClient, login, 302);
+		String authServerCookie = sessionCookie(response);
+
+		// The gateway redirects to /oauth/authorize ...
+		response = execute(httpClient, new HttpGet(settings.getGatewayUrl() + "/login"), 302);
+		String gatewayCookie = sessionCookie(response);
+
+		// ... which redirects back to the gateway with an authorization code
+		HttpGet authorize = new HttpGet(location(response));
+		authorize.setHeader(HttpHeaders.COOKIE, authServerCookie);
+		response = execute(httpClient, authorize, 302);
+
+		// The gateway exchanges the code for a token and starts a new, authenticated, session
+		HttpGet callback = new HttpGet(location(response));
+		callback.setHeader(HttpHeaders.COOKIE, gatewayCookie);
+		response = execute(httpClient, callback, 302);
+		return new GatewaySession(sessionCookie(response));
+	}
+
+	/**
+	 * Add the session cookie to a request to the gateway.
+	 */
+	public void authenticate(HttpUriRequest request) {
+		request.setHeader(HttpHeaders.COOKIE, cookie);
+	}
+
+	private static HttpResponse execute(HttpClient httpClient, HttpUriRequest request, int expectedStatus)
+			throws IOException {
+		HttpResponse response = httpClient.execute(request);
+		EntityUtils.consumeQuietly(response.getEntity());
+		int status = response.getStatusLine().getStatusCode();
+		if (status != expectedStatus) {
+			throw new IOException(request.getMethod() + " " + request.getURI() + " returned " + status + " instead of "
+					+ expectedStatus);
+		}
+		return response;
+	}
+
+	private static String location(HttpResponse response) throws IOException {
+		Header location = response.getFirstHeader(HttpHeaders.LOCATION);
+		if (location == null) {
+			throw new IOException("Redirect without Location header");
+		}
+		return location.getValue();
+	}
+
+	private static String sessionCookie(HttpResponse response) throws IOException {
+		Header setCookie = response.getFirstHeader("Set-Cookie");
+		if (setCookie == null) {
+			throw new IOException("No session cookie in response");
+		}
+		// Keep name=value, drop the attributes (path, HttpOnly...)
+		String value = setCookie.getValue();
+		int attributes = value.indexOf(';');
+		return attributes < 0 ? value : value.substring(0, attributes);
+	}
+}
@@ -0,0 +1,208 @@
+package testcase.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Drives <code>sessions</code> user sessions, each with <code>concurrency</code> requests in flight, through the
+ * gateway for <code>duration</code>. With the default 4 second access tokens every session crosses several expiry
+ * boundaries, each of them a burst of concurrent requests on an expired token.
+ * <p>
+ * Records the latency distribution and status codes of all requests, and reads from the authorization server
+ * metrics how many tokens it issued during the run, i.e. how many per expiry event. See {@link LoadTestSettings}
+ * for the options; the process exits with status 1 when a configured threshold is exceeded.
+ */
+public class LoadTest {
+
+	private static final Log logger = LogFactory.getLog(LoadTest.class);
+
+	private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+	private final LoadTestSettings settings;
+
+	public LoadTest(LoadTestSettings settings) {
+		this.settings = settings;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTestSettings settings = LoadTestSettings.from(System.getProperties());
+		LoadTestReport report = new LoadTest(settings).run();
+		report.write(new File(settings.getReport()));
+		logger.info("Load test report written to " + settings.getReport());
+		if (!report.check()) {
+			logger.error("Load test thresholds exceeded: " + report.getViolations());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Log the sessions in, run the load and collect the results.
+	 */
+	public LoadTestReport run() throws IOException, InterruptedException {
+		int workers = settings.getSessions() * settings.getConcurrency();
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(5000)
+				.setSocketTimeout(30000)
+				.build();
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.disableCookieManagement()
+				.disableRedirectHandling()
+				.setDefaultRequestConfig(requestConfig)
+				.setMaxConnTotal(workers + settings.getSessions())
+				.setMaxConnPerRoute(workers + settings.getSessions())
+				.build();
+		try {
+			List<GatewaySession> sessions = new ArrayList<GatewaySession>();
+			for (int i = 0; i < settings.getSessions(); i++) {
+				sessions.add(GatewaySession.login(httpClient, settings));
+			}
+			logger.info(sessions.size() + " sessions logged in, running " + workers + " concurrent requests for "
+					+ settings.getDuration() / 1000 + "s");
+
+			long[] tokensBefore = readIssuedTokens(httpClient);
+			long start = System.currentTimeMillis();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getDuration());
+			List<Worker> running = new ArrayList<Worker>();
+			for (GatewaySession session : sessions) {
+				for (int i = 0; i < settings.getConcurrency(); i++) {
+					Worker worker = new Worker(httpClient, session, deadline);
+					worker.setName("load-" + running.size());
+					worker.start();
+					running.add(worker);
+				}
+			}
+			Histogram latency = new Histogram(HIGHEST_LATENCY, 3);
+			Map<String, Long> statusCodes = new HashMap<String, Long>();
+			long errors = 0;
+			for (Worker worker : running) {
+				worker.join();
+				latency.add(worker.latency);
+				errors += worker.errors;
+				for (Map.Entry<String, Long> count : worker.statusCodes.entrySet()) {
+					Long total = statusCodes.get(count.getKey());
+					statusCodes.put(count.getKey(), total == null ? count.getValue() : total + count.getValue());
+				}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			long[] tokensAfter = readIssuedTokens(httpClient);
+
+			LoadTestReport report = new LoadTestReport(settings);
+			report.record(latency, statusCodes, errors, elapsed);
+			long lifetime = settings.getTokenLifetime();
+			long expiryEvents = settings.getSessions() * ((elapsed + lifetime - 1) / lifetime);
+			if (tokensBefore != null && tokensAfter != null) {
+				report.recordTokens(tokensAfter[0] - tokensBefore[0], tokensAfter[1] - tokensBefore[1], expiryEvents);
+			}
+			else {
+				report.recordTokens(-1, -1, expiryEvents);
+			}
+			report.check();
+			logger.info(report.getRequests() + " requests, " + report.getErrors() + " errors, latency (ms) "
+					+ report.getLatency() + ", " + report.getTokensIssued() + " tokens issued for " + expiryEvents
+					+ " expiries");
+			return report;
+		}
+		finally {
+			httpClient.close();
+		}
+	}
+
+	/**
+	 * @return the issued and refreshed token counters of the authorization server, or null if its metrics endpoint
+	 * cannot be read
+	 */
+	private long[] readIssuedTokens(CloseableHttpClient httpClient) {
+		try {
+			HttpResponse response = httpClient.execute(new HttpGet(settings.getAuthServerMetricsUrl()));
+			InputStream content = response.getEntity().getContent();
+			try {
+				Map<?, ?> metrics = new ObjectMapper().readValue(content, Map.class);
+				return new long[] { counter(metrics, "counter.oauth.tokens.issued"),
+						counter(metrics, "counter.oauth.tokens.issued.refresh") };
+			}
+			finally {
+				content.close();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Cannot read issued tokens from " + settings.getAuthServerMetricsUrl() + ": " + e);
+			return null;
+		}
+	}
+
+	private static long counter(Map<?, ?> metrics, String name) {
+		Object value = metrics.get(name);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	/**
+	 * Sends requests of one session back to back until the deadline, recording latency and status of each.
+	 */
+	private final class Worker extends Thread {
+
+		private final CloseableHttpClient httpClient;
+
+		private final GatewaySession session;
+
+		private final long deadline;
+
+		private final Histogram latency = new Histogram(HIGHEST_LATENCY, 3);
+
+		private final Map<String, Long> statusCodes = new HashMap<String, Long>();
+
+		private long errors;
+
+		Worker(CloseableHttpClient httpClient, GatewaySession session, long deadline) {
+			this.httpClient = httpClient;
+			this.session = session;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			String url = settings.getGatewayUrl() + settings.getResourcePath();
+			while (System.nanoTime() < deadline) {
+				HttpGet request = new HttpGet(url);
+				session.authenticate(request);
+				long start = System.nanoTime();
+				String status;
+				try {
+					HttpResponse response = httpClient.execute(request);
+					EntityUtils.consume(response.getEntity());
+					int code = response.getStatusLine().getStatusCode();
+					status = String.valueOf(code);
+					if (code >= 300) {
+						// 302 means the gateway lost the session's token and sends the user to log in again
+						errors++;
+					}
+				}
+				catch (IOException e) {
+					status = e.getClass().getSimpleName();
+					errors++;
+				}
+				latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+						HIGHEST_LATENCY));
+				Long count = statusCodes.get(status);
+				statusCodes.put(status, count == null ? 1 : count + 1);
+			}
+		}
+	}
+}
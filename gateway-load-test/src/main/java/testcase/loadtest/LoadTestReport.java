@@ -0,0 +1,164 @@
+package testcase.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.HdrHistogram.Histogram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Result of a load test run, written as JSON. Latencies are in millis. Token counts are -1 when the authorization
+ * server metrics could not be read, which fails a tokens per expiry threshold.
+ */
+public class LoadTestReport {
+
+	private final LoadTestSettings settings;
+
+	private long requests;
+
+	private long errors;
+
+	private double throughput;
+
+	private final Map<String, Long> statusCodes = new TreeMap<String, Long>();
+
+	private final Map<String, Double> latency = new TreeMap<String, Double>();
+
+	private long tokensIssued = -1;
+
+	private long tokensRefreshed = -1;
+
+	private long expiryEvents;
+
+	private final List<String> violations = new ArrayList<String>();
+
+	LoadTestReport(LoadTestSettings settings) {
+		this.settings = settings;
+	}
+
+	void record(Histogram histogram, Map<String, Long> statusCodes, long errors, long elapsed) {
+		this.requests = histogram.getTotalCount();
+		this.errors = errors;
+		this.throughput = elapsed > 0 ? requests * 1000.0 / elapsed : 0;
+		this.statusCodes.putAll(statusCodes);
+		latency.put("p50", millis(histogram.getValueAtPercentile(50)));
+		latency.put("p90", millis(histogram.getValueAtPercentile(90)));
+		latency.put("p99", millis(histogram.getValueAtPercentile(99)));
+		latency.put("p999", millis(histogram.getValueAtPercentile(99.9)));
+		latency.put("max", millis(histogram.getMaxValue()));
+		latency.put("mean", histogram.getMean() / 1000.0);
+	}
+
+	void recordTokens(long tokensIssued, long tokensRefreshed, long expiryEvents) {
+		this.tokensIssued = tokensIssued;
+		this.tokensRefreshed = tokensRefreshed;
+		this.expiryEvents = expiryEvents;
+	}
+
+	/**
+	 * Compare the results with the thresholds of the settings.
+	 *
+	 * @return true if no threshold was exceeded
+	 */
+	public boolean check() {
+		violations.clear();
+		if (settings.getMaxErrorRate() >= 0 && getErrorRate() > settings.getMaxErrorRate()) {
+			violations.add("error rate " + getErrorRate() + " > " + settings.getMaxErrorRate());
+		}
+		if (settings.getMaxTokensPerExpiry() >= 0 && tokensIssued < 0) {
+			violations.add("tokens per expiry not measured: the authorization server metrics could not be read");
+		}
+		else if (settings.getMaxTokensPerExpiry() >= 0 && getTokensPerExpiry() > settings.getMaxTokensPerExpiry()) {
+			violations.add("tokens per expiry " + getTokensPerExpiry() + " > " + settings.getMaxTokensPerExpiry());
+		}
+		if (settings.getMaxP99() >= 0 && latency.get("p99") > settings.getMaxP99()) {
+			violations.add("p99 latency " + latency.get("p99") + "ms > " + settings.getMaxP99() + "ms");
+		}
+		return violations.isEmpty();
+	}
+
+	/**
+	 * Write the report as JSON.
+	 */
+	public void write(File file) throws IOException {
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, this);
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	public LoadTestSettings getSettings() {
+		return settings;
+	}
+
+	public long getRequests() {
+		return requests;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public double getErrorRate() {
+		return requests > 0 ? (double) errors / requests : 0;
+	}
+
+	/**
+	 * @return requests per second
+	 */
+	public double getThroughput() {
+		return throughput;
+	}
+
+	public Map<String, Long> getStatusCodes() {
+		return statusCodes;
+	}
+
+	public Map<String, Double> getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return access tokens issued by the authorization server during the run (logins excluded)
+	 */
+	public long getTokensIssued() {
+		return tokensIssued;
+	}
+
+	/**
+	 * @return access tokens issued through the refresh grant during the run
+	 */
+	public long getTokensRefreshed() {
+		return tokensRefreshed;
+	}
+
+	/**
+	 * @return number of access token expiries the run went through, at most: sessions x (duration / token lifetime)
+	 * rounded up
+	 */
+	public long getExpiryEvents() {
+		return expiryEvents;
+	}
+
+	/**
+	 * @return tokens issued per expiry event: 1 when every expiry is handled with a single refresh, more on refresh
+	 * storms
+	 */
+	public double getTokensPerExpiry() {
+		return expiryEvents > 0 && tokensIssued >= 0 ? (double) tokensIssued / expiryEvents : -1;
+	}
+
+	public List<String> getViolations() {
+		return violations;
+	}
+}
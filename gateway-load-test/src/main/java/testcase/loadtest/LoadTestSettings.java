@@ -0,0 +1,190 @@
+package testcase.loadtest;
+
+import java.util.Properties;
+
+/**
+ * Settings of a load test run, read from <code>load.*</code> system properties (see {@link #from(Properties)}).
+ * Thresholds left at -1 are not checked.
+ */
+public class LoadTestSettings {
+
+	private String gatewayUrl = "http://localhost:8765";
+
+	private String authServerUrl = "http://localhost:8088";
+
+	private String authServerMetricsUrl = "http://localhost:8089/metrics";
+
+	private String resourcePath = "/me";
+
+	private String username = "user";
+
+	private String password = "password";
+
+	private int sessions = 10;
+
+	private int concurrency = 10;
+
+	private long duration = 30000;
+
+	private long tokenLifetime = 4000;
+
+	private String report = "target/load-test-report.json";
+
+	private double maxErrorRate = -1;
+
+	private double maxTokensPerExpiry = -1;
+
+	private double maxP99 = -1;
+
+	/**
+	 * @param properties typically the system properties: <code>load.gatewayUrl</code>, <code>load.authServerUrl</code>,
+	 * <code>load.authServerMetricsUrl</code>, <code>load.resourcePath</code>, <code>load.username</code>,
+	 * <code>load.password</code>, <code>load.sessions</code>, <code>load.concurrency</code> (requests in flight per
+	 * session), <code>load.duration</code> (seconds), <code>load.tokenLifetime</code> (seconds, the access token
+	 * validity of the client), <code>load.report</code> (file), and the thresholds <code>load.maxErrorRate</code>
+	 * (0..1), <code>load.maxTokensPerExpiry</code> and <code>load.maxP99</code> (millis)
+	 * @return the settings, defaults for whatever is not set
+	 */
+	public static LoadTestSettings from(Properties properties) {
+		LoadTestSettings settings = new LoadTestSettings();
+		settings.gatewayUrl = properties.getProperty("load.gatewayUrl", settings.gatewayUrl);
+		settings.authServerUrl = properties.getProperty("load.authServerUrl", settings.authServerUrl);
+		settings.authServerMetricsUrl = properties.getProperty("load.authServerMetricsUrl",
+				settings.authServerMetricsUrl);
+		settings.resourcePath = properties.getProperty("load.resourcePath", settings.resourcePath);
+		settings.username = properties.getProperty("load.username", settings.username);
+		settings.password = properties.getProperty("load.password", settings.password);
+		settings.sessions = Integer.parseInt(properties.getProperty("load.sessions", "" + settings.sessions));
+		settings.concurrency = Integer.parseInt(properties.getProperty("load.concurrency", "" + settings.concurrency));
+		settings.duration = Long.parseLong(properties.getProperty("load.duration", "" + settings.duration / 1000))
+				* 1000;
+		settings.tokenLifetime = Long.parseLong(
+				properties.getProperty("load.tokenLifetime", "" + settings.tokenLifetime / 1000)) * 1000;
+		settings.report = properties.getProperty("load.report", settings.report);
+		settings.maxErrorRate = Double.parseDouble(properties.getProperty("load.maxErrorRate", "-1"));
+		settings.maxTokensPerExpiry = Double.parseDouble(properties.getProperty("load.maxTokensPerExpiry", "-1"));
+		settings.maxP99 = Double.parseDouble(properties.getProperty("load.maxP99", "-1"));
+		return settings;
+	}
+
+	public String getGatewayUrl() {
+		return gatewayUrl;
+	}
+
+	public void setGatewayUrl(String gatewayUrl) {
+		this.gatewayUrl = gatewayUrl;
+	}
+
+	public String getAuthServerUrl() {
+		return authServerUrl;
+	}
+
+	public void setAuthServerUrl(String authServerUrl) {
+		this.authServerUrl = authServerUrl;
+	}
+
+	public String getAuthServerMetricsUrl() {
+		return authServerMetricsUrl;
+	}
+
+	public void setAuthServerMetricsUrl(String authServerMetricsUrl) {
+		this.authServerMetricsUrl = authServerMetricsUrl;
+	}
+
+	public String getResourcePath() {
+		return resourcePath;
+	}
+
+	public void setResourcePath(String resourcePath) {
+		this.resourcePath = resourcePath;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	/**
+	 * Not part of the report.
+	 */
+	String password() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public int getSessions() {
+		return sessions;
+	}
+
+	public void setSessions(int sessions) {
+		this.sessions = sessions;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @return duration of the run in millis
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 * @return access token validity in millis, used to count the expiry events of a run
+	 */
+	public long getTokenLifetime() {
+		return tokenLifetime;
+	}
+
+	public void setTokenLifetime(long tokenLifetime) {
+		this.tokenLifetime = tokenLifetime;
+	}
+
+	public String getReport() {
+		return report;
+	}
+
+	public void setReport(String report) {
+		this.report = report;
+	}
+
+	public double getMaxErrorRate() {
+		return maxErrorRate;
+	}
+
+	public void setMaxErrorRate(double maxErrorRate) {
+		this.maxErrorRate = maxErrorRate;
+	}
+
+	public double getMaxTokensPerExpiry() {
+		return maxTokensPerExpiry;
+	}
+
+	public void setMaxTokensPerExpiry(double maxTokensPerExpiry) {
+		this.maxTokensPerExpiry = maxTokensPerExpiry;
+	}
+
+	public double getMaxP99() {
+		return maxP99;
+	}
+
+	public void setMaxP99(double maxP99) {
+		this.maxP99 = maxP99;
+	}
+}
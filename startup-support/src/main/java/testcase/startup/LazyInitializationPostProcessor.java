@@ -0,0 +1,69 @@
+package testcase.startup;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.Ordered;
+
+/**
+ * Makes the singleton beans lazy, so that the context refresh only creates the beans something asks for at startup
+ * (the servlet container, filters and handler mappings, and what they depend on) and the rest on first use. Beans that
+ * do their work without being asked for stay eager: infrastructure beans, {@link SmartLifecycle} and
+ * {@link SmartInitializingSingleton} beans, and the eager beans given (e.g. beans starting a background thread in
+ * afterPropertiesSet). Registered by the {@link StartupListener}.
+ * <p>
+ * Trades startup time for the latency of the first requests needing the skipped beans.
+ */
+public class LazyInitializationPostProcessor implements BeanFactoryPostProcessor, Ordered {
+
+	private static final Log logger = LogFactory.getLog(LazyInitializationPostProcessor.class);
+
+	private final Set<String> eagerBeans;
+
+	/**
+	 * @param eagerBeans names of the beans to create at startup anyway
+	 */
+	public LazyInitializationPostProcessor(Collection<String> eagerBeans) {
+		this.eagerBeans = new HashSet<String>(eagerBeans);
+	}
+
+	@Override
+	public int getOrder() {
+		return Ordered.LOWEST_PRECEDENCE;
+	}
+
+	@Override
+	public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+		int lazy = 0;
+		for (String name : beanFactory.getBeanDefinitionNames()) {
+			BeanDefinition definition = beanFactory.getBeanDefinition(name);
+			if (definition.isSingleton() && !definition.isAbstract() && !definition.isLazyInit()
+					&& !isEager(beanFactory, name, definition)) {
+				definition.setLazyInit(true);
+				lazy++;
+			}
+		}
+		logger.info("Lazy initialization of " + lazy + " of " + beanFactory.getBeanDefinitionCount() + " beans");
+	}
+
+	private boolean isEager(ConfigurableListableBeanFactory beanFactory, String name, BeanDefinition definition) {
+		if (definition.getRole() == BeanDefinition.ROLE_INFRASTRUCTURE || eagerBeans.contains(name)) {
+			return true;
+		}
+		if (beanFactory.isFactoryBean(name)) {
+			// Finding out the type of its object could create the factory now
+			return false;
+		}
+		Class<?> type = beanFactory.getType(name);
+		return type != null && (SmartLifecycle.class.isAssignableFrom(type)
+				|| SmartInitializingSingleton.class.isAssignableFrom(type));
+	}
+}
@@ -0,0 +1,143 @@
+package testcase.startup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringApplicationRunListener;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerInitializedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+/**
+ * Fast startup support for the application context of a Spring Boot application, configured with properties under a
+ * prefix (e.g. gateway.startup). Applications register a subclass giving their prefix in META-INF/spring.factories.
+ * <ul>
+ * <li>Times the startup and logs where the time went once it is started (see {@link StartupTimings}): JVM start until
+ * Spring Boot runs, environment (configuration files), context (creation and sources), refresh (beans and the servlet
+ * container) and runners. Disabled with &lt;prefix&gt;.report.enabled=false.</li>
+ * <li>With &lt;prefix&gt;.lazyInit.enabled=true only the beans needed to serve requests are created at startup, the
+ * others on first use (see {@link LazyInitializationPostProcessor}). Beans listed in &lt;prefix&gt;.lazyInit.eagerBeans
+ * are still created at startup.</li>
+ * <li>With &lt;prefix&gt;.exitAfterStart=true the application exits once started: the training run of the appcds
+ * Maven profile, which only needs the classes loaded to start.</li>
+ * </ul>
+ * Only the application's own context is handled, not e.g. the Spring Cloud bootstrap context.
+ */
+public class StartupListener implements SpringApplicationRunListener {
+
+	private static final Log logger = LogFactory.getLog(StartupListener.class);
+
+	private final String prefix;
+
+	private final boolean own;
+
+	private ConfigurableEnvironment environment;
+
+	private StartupTimings timings;
+
+	private int slowestBeans;
+
+	private long phaseStart;
+
+	private long refreshEnd;
+
+	/**
+	 * @param application the application being run (Spring Boot creates a listener per application, child contexts
+	 * included)
+	 * @param applicationClass the application's own source: other applications are left alone
+	 * @param prefix prefix of the properties and metric names, e.g. gateway.startup
+	 */
+	protected StartupListener(SpringApplication application, Class<?> applicationClass, String prefix) {
+		this.own = application.getSources().contains(applicationClass);
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void started() {
+		if (own) {
+			phaseStart = System.currentTimeMillis();
+			timings = new StartupTimings(prefix);
+			timings.phase("jvm", ManagementFactory.getRuntimeMXBean().getUptime());
+		}
+	}
+
+	@Override
+	public void environmentPrepared(ConfigurableEnvironment environment) {
+		if (!own) {
+			return;
+		}
+		this.environment = environment;
+		if (!environment.getProperty(prefix + ".report.enabled", Boolean.class, true)) {
+			timings = null;
+			return;
+		}
+		slowestBeans = environment.getProperty(prefix + ".report.slowestBeans", Integer.class, 10);
+		endPhase("environment");
+	}
+
+	@Override
+	public void contextPrepared(final ConfigurableApplicationContext context) {
+		if (environment != null && environment.getProperty(prefix + ".lazyInit.enabled", Boolean.class, false)) {
+			String[] eagerBeans = environment.getProperty(prefix + ".lazyInit.eagerBeans", String[].class,
+					new String[0]);
+			context.addBeanFactoryPostProcessor(new LazyInitializationPostProcessor(Arrays.asList(eagerBeans)));
+		}
+		if (timings == null) {
+			return;
+		}
+		context.getBeanFactory().addBeanPostProcessor(timings);
+		context.getBeanFactory().registerSingleton("startupTimings", timings);
+		context.addApplicationListener(new ApplicationListener<EmbeddedServletContainerInitializedEvent>() {
+			@Override
+			public void onApplicationEvent(EmbeddedServletContainerInitializedEvent event) {
+				// The management server runs in a child context
+				if (event.getApplicationContext() == context) {
+					refreshEnd = System.currentTimeMillis();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void contextLoaded(ConfigurableApplicationContext context) {
+		if (timings != null) {
+			endPhase("context");
+		}
+	}
+
+	@Override
+	public void finished(ConfigurableApplicationContext context, Throwable exception) {
+		if (exception != null) {
+			return;
+		}
+		if (timings != null) {
+			report();
+		}
+		if (environment != null && environment.getProperty(prefix + ".exitAfterStart", Boolean.class, false)) {
+			System.exit(SpringApplication.exit(context));
+		}
+	}
+
+	private void report() {
+		timings.stopRecording();
+		if (refreshEnd > 0) {
+			timings.phase("refresh", refreshEnd - phaseStart);
+			phaseStart = refreshEnd;
+			endPhase("runners");
+		}
+		else {
+			endPhase("refresh");
+		}
+		logger.info(timings.report(slowestBeans));
+	}
+
+	private void endPhase(String name) {
+		long now = System.currentTimeMillis();
+		timings.phase(name, now - phaseStart);
+		phaseStart = now;
+	}
+}
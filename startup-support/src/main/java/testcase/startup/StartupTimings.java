@@ -0,0 +1,215 @@
+package testcase.startup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Where the startup time went, collected by the {@link StartupListener}: the duration of each startup phase and
+ * the creation time of each bean created during startup. A bean's own time leaves out the beans created while it was
+ * (its dependencies), so the slowest beans are the ones worth making lazy or faster. Phase durations are published
+ * on the actuator <code>/metrics</code> endpoint, in millis.
+ */
+public class StartupTimings extends InstantiationAwareBeanPostProcessorAdapter implements PublicMetrics {
+
+	/**
+	 * A bean being created, on the stack of the thread creating it.
+	 */
+	private static final class Creation {
+
+		private final String beanName;
+
+		private final long start = System.nanoTime();
+
+		private long dependencies;
+
+		private Creation(String beanName) {
+			this.beanName = beanName;
+		}
+	}
+
+	private static final class BeanTiming {
+
+		private final String beanName;
+
+		private final long ownTime;
+
+		private BeanTiming(String beanName, long ownTime) {
+			this.beanName = beanName;
+			this.ownTime = ownTime;
+		}
+	}
+
+	private final String prefix;
+
+	private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+	private final List<BeanTiming> beans = Collections.synchronizedList(new ArrayList<BeanTiming>());
+
+	private final ThreadLocal<Deque<Creation>> creations = new ThreadLocal<Deque<Creation>>() {
+		@Override
+		protected Deque<Creation> initialValue() {
+			return new ArrayDeque<Creation>();
+		}
+	};
+
+	private volatile boolean recording = true;
+
+	/**
+	 * @param prefix metric name prefix, e.g. <code>gateway.startup</code> or <code>oauth.startup</code>
+	 */
+	public StartupTimings(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName) throws BeansException {
+		if (recording) {
+			creations.get().push(new Creation(beanName));
+		}
+		return null;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		Deque<Creation> stack = creations.get();
+		Creation creation = null;
+		for (Creation candidate : stack) {
+			if (candidate.beanName.equals(beanName)) {
+				creation = candidate;
+				break;
+			}
+		}
+		if (creation == null) {
+			// Not timed, or an object made by a factory bean
+			return bean;
+		}
+		// Also drops what creations that failed left above it
+		Creation top;
+		do {
+			top = stack.pop();
+		}
+		while (top != creation);
+		long time = System.nanoTime() - creation.start;
+		beans.add(new BeanTiming(beanName, time - creation.dependencies));
+		if (!stack.isEmpty()) {
+			stack.peek().dependencies += time;
+		}
+		return bean;
+	}
+
+	/**
+	 * Record the duration of a startup phase.
+	 */
+	public void phase(String name, long millis) {
+		phases.put(name, millis);
+	}
+
+	/**
+	 * Stop timing bean creations: the beans created from now on are created on use.
+	 */
+	public void stopRecording() {
+		recording = false;
+	}
+
+	/**
+	 * @return the startup phases and their duration in millis, in the order they ran
+	 */
+	public Map<String, Long> getPhases() {
+		synchronized (phases) {
+			return new LinkedHashMap<String, Long>(phases);
+		}
+	}
+
+	/**
+	 * @return the sum of the phase durations in millis
+	 */
+	public long getTotalTime() {
+		long total = 0;
+		for (long millis : getPhases().values()) {
+			total += millis;
+		}
+		return total;
+	}
+
+	public int getBeanCount() {
+		return beans.size();
+	}
+
+	/**
+	 * @return the time spent creating beans, in millis
+	 */
+	public long getBeanTime() {
+		long time = 0;
+		synchronized (beans) {
+			for (BeanTiming bean : beans) {
+				time += bean.ownTime;
+			}
+		}
+		return TimeUnit.NANOSECONDS.toMillis(time);
+	}
+
+	/**
+	 * @return the names and own creation times in millis of the slowest beans, slowest first
+	 */
+	public Map<String, Long> getSlowestBeans(int count) {
+		List<BeanTiming> sorted;
+		synchronized (beans) {
+			sorted = new ArrayList<BeanTiming>(beans);
+		}
+		Collections.sort(sorted, new Comparator<BeanTiming>() {
+			@Override
+			public int compare(BeanTiming a, BeanTiming b) {
+				return Long.compare(b.ownTime, a.ownTime);
+			}
+		});
+		Map<String, Long> slowest = new LinkedHashMap<String, Long>();
+		for (BeanTiming bean : sorted.subList(0, Math.min(count, sorted.size()))) {
+			slowest.put(bean.beanName, TimeUnit.NANOSECONDS.toMillis(bean.ownTime));
+		}
+		return slowest;
+	}
+
+	/**
+	 * @return a two line report: phase durations, then bean creation with the slowest beans
+	 */
+	public String report(int slowestBeans) {
+		StringBuilder report = new StringBuilder("Startup in ").append(getTotalTime()).append(" ms:");
+		String separator = " ";
+		for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+			report.append(separator).append(phase.getKey()).append(' ').append(phase.getValue());
+			separator = ", ";
+		}
+		report.append("\n").append(getBeanCount()).append(" beans created in ").append(getBeanTime())
+				.append(" ms, slowest (own time, ms):");
+		separator = " ";
+		for (Map.Entry<String, Long> bean : getSlowestBeans(slowestBeans).entrySet()) {
+			report.append(separator).append(bean.getKey()).append(' ').append(bean.getValue());
+			separator = ", ";
+		}
+		return report.toString();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+			metrics.add(new Metric<Long>(prefix + "." + phase.getKey(), phase.getValue()));
+		}
+		metrics.add(new Metric<Long>(prefix + ".total", getTotalTime()));
+		metrics.add(new Metric<Integer>(prefix + ".beans", getBeanCount()));
+		return metrics;
+	}
+}
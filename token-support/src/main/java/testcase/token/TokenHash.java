@@ -0,0 +1,44 @@
+package testcase.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 fingerprint of a token value, used wherever a token has to be kept or shown without keeping or showing
+ * the token itself (cache keys, revocation events, traces). The authorization server publishes revoked tokens by
+ * this fingerprint and the gateway looks its cached results up by it, so both use this class.
+ */
+public final class TokenHash {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 not available", e);
+			}
+		}
+	};
+
+	private TokenHash() {
+	}
+
+	/**
+	 * @param tokenValue the token value
+	 * @return the lower case hex SHA-256 of the UTF-8 token value
+	 */
+	public static String of(String tokenValue) {
+		byte[] digest = DIGEST.get().digest(tokenValue.getBytes(StandardCharsets.UTF_8));
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}